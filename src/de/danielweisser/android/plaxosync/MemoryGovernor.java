@@ -0,0 +1,116 @@
+package de.danielweisser.android.plaxosync;
+
+/**
+ * Tracks the memory pressure of the process from the trim memory signals of the system and from the used heap. The sync scales its page
+ * size, prefetch window and batch size with the pressure and stops downloading photos, when the memory gets critical. A signal is
+ * considered for {@link #SIGNAL_DURATION}, afterwards the sizes are restored, unless the heap is still full.
+ */
+public class MemoryGovernor {
+	private static final SyncLog LOG = SyncLog.get("MemoryGovernor");
+
+	public static final int PRESSURE_NONE = 0;
+	public static final int PRESSURE_MODERATE = 1;
+	public static final int PRESSURE_CRITICAL = 2;
+
+	/**
+	 * The time in ms, that a trim memory signal is considered.
+	 */
+	private static final long SIGNAL_DURATION = 60 * 1000;
+
+	/**
+	 * The fractions of the maximum heap, above which the pressure is moderate or critical.
+	 */
+	private static final float HEAP_MODERATE = 0.6f;
+	private static final float HEAP_CRITICAL = 0.8f;
+
+	/**
+	 * The trim memory levels of ComponentCallbacks2, which is not available with the target platform. The platforms before 4.0 only signal
+	 * {@link #onLowMemory()}.
+	 */
+	private static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+	private static final int TRIM_MEMORY_UI_HIDDEN = 20;
+	private static final int TRIM_MEMORY_COMPLETE = 80;
+
+	private static int signaledPressure = PRESSURE_NONE;
+	private static long signaledAt = 0;
+	private static int lastPressure = PRESSURE_NONE;
+
+	private MemoryGovernor() {
+	}
+
+	/**
+	 * Takes a signal from <code>ComponentCallbacks2.onTrimMemory(int)</code>.
+	 */
+	public static synchronized void onTrimMemory(int level) {
+		if (level == TRIM_MEMORY_UI_HIDDEN) {
+			// The sync has no UI
+			return;
+		}
+		if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+			signal(PRESSURE_CRITICAL);
+		} else {
+			signal(PRESSURE_MODERATE);
+		}
+	}
+
+	/**
+	 * Takes the signal from {@link android.content.ComponentCallbacks#onLowMemory()}.
+	 */
+	public static synchronized void onLowMemory() {
+		signal(PRESSURE_CRITICAL);
+	}
+
+	private static void signal(int pressure) {
+		signaledPressure = pressure;
+		signaledAt = now();
+	}
+
+	/**
+	 * @return The monotonic time in ms
+	 */
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * @return The current pressure, one of {@link #PRESSURE_NONE}, {@link #PRESSURE_MODERATE} and {@link #PRESSURE_CRITICAL}
+	 */
+	public static synchronized int getPressure() {
+		int pressure = PRESSURE_NONE;
+		if (signaledAt > 0 && now() - signaledAt < SIGNAL_DURATION) {
+			pressure = signaledPressure;
+		}
+		final Runtime runtime = Runtime.getRuntime();
+		final float used = (float) (runtime.totalMemory() - runtime.freeMemory()) / runtime.maxMemory();
+		if (used > HEAP_CRITICAL) {
+			pressure = PRESSURE_CRITICAL;
+		} else if (used > HEAP_MODERATE) {
+			pressure = Math.max(pressure, PRESSURE_MODERATE);
+		}
+		if (pressure != lastPressure) {
+			LOG.i("Memory pressure changed from " + lastPressure + " to " + pressure + " (" + (int) (used * 100) + "% of the heap used)");
+			lastPressure = pressure;
+		}
+		return pressure;
+	}
+
+	/**
+	 * Scales a size with the current pressure: halved for moderate and quartered for critical pressure.
+	 *
+	 * @param size
+	 *            The size without memory pressure
+	 * @param min
+	 *            The minimum size
+	 * @return The scaled size
+	 */
+	public static int scale(int size, int min) {
+		return Math.max(min, size >> getPressure());
+	}
+
+	/**
+	 * @return false, if no more photos should be downloaded during this sync
+	 */
+	public static boolean allowsPhotos() {
+		return getPressure() < PRESSURE_CRITICAL;
+	}
+}
@@ -0,0 +1,200 @@
+package de.danielweisser.android.plaxosync;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A facade of the platform log for the classes of the sync, that do not depend on the platform. The lines are written by the
+ * {@link Printer}, that the sync service installs. Without a printer, e.g. on a desktop JVM, the events are counted, but nothing is
+ * written.
+ *
+ * An event is always counted and the counters are logged as a summary at the end of the sync. The single events are only logged, when the
+ * level of the tag is lowered, e.g. with <code>adb shell setprop log.tag.ContactMerger DEBUG</code>. The callers build their messages only,
+ * when {@link Event#sample()} returns true, so that no strings are concatenated otherwise.
+ *
+ * With DEBUG the first {@link #BURST} events of every kind are logged and then every {@link #SAMPLE_RATE}th, with VERBOSE all events are
+ * logged. The levels are read again at the start of every sync.
+ */
+public class SyncLog {
+
+	/**
+	 * The levels of the lines, they have the values of the priorities of <code>android.util.Log</code>.
+	 */
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+
+	/**
+	 * The number of events of a kind, that are logged in every sync, before the events are sampled.
+	 */
+	private static final int BURST = 20;
+	private static final int SAMPLE_RATE = 100;
+
+	private static final ArrayList<SyncLog> logs = new ArrayList<SyncLog>();
+	private static volatile Printer printer = null;
+
+	private final String tag;
+	private final ArrayList<Event> events = new ArrayList<Event>();
+	private volatile boolean debug;
+	private volatile boolean verbose;
+
+	/**
+	 * Writes the lines of the logs.
+	 */
+	public interface Printer {
+		/**
+		 * @return true, if the lines of the tag are written at the given level
+		 */
+		boolean isLoggable(String tag, int level);
+
+		/**
+		 * @param throwable
+		 *            The cause of the line or <code>null</code>
+		 */
+		void println(int level, String tag, String message, Throwable throwable);
+	}
+
+	/**
+	 * A kind of event, that is counted for the summary of the sync.
+	 */
+	public static class Event {
+		private final SyncLog log;
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+		private final AtomicInteger logged = new AtomicInteger();
+
+		private Event(SyncLog log, String name) {
+			this.log = log;
+			this.name = name;
+		}
+
+		/**
+		 * Counts the event.
+		 *
+		 * @return true, if the caller should log the event
+		 */
+		public boolean sample() {
+			int n = count.incrementAndGet();
+			if (log.verbose || log.debug && (n <= BURST || n % SAMPLE_RATE == 0)) {
+				logged.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private SyncLog(String tag) {
+		this.tag = tag;
+		readLevels();
+	}
+
+	/**
+	 * @return The log of the tag, there is one log per tag
+	 */
+	public static synchronized SyncLog get(String tag) {
+		for (SyncLog log : logs) {
+			if (log.tag.equals(tag)) {
+				return log;
+			}
+		}
+		SyncLog log = new SyncLog(tag);
+		logs.add(log);
+		return log;
+	}
+
+	/**
+	 * Sets the printer of all logs and reads the levels of the tags.
+	 *
+	 * @param printer
+	 *            The printer or <code>null</code>, if nothing is written
+	 */
+	public static synchronized void setPrinter(Printer printer) {
+		SyncLog.printer = printer;
+		for (SyncLog log : logs) {
+			log.readLevels();
+		}
+	}
+
+	/**
+	 * Adds a kind of event. The events are usually kept in static fields of the caller.
+	 *
+	 * @param name
+	 *            The name of the event in the summary
+	 */
+	public synchronized Event event(String name) {
+		Event event = new Event(this, name);
+		events.add(event);
+		return event;
+	}
+
+	/**
+	 * Resets the counters of all logs and reads the levels of the tags, which is done at the start of every sync.
+	 */
+	public static synchronized void reset() {
+		for (SyncLog log : logs) {
+			log.readLevels();
+			synchronized (log) {
+				for (Event event : log.events) {
+					event.count.set(0);
+					event.logged.set(0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Logs the counters of every tag, that had events in this sync.
+	 */
+	public static synchronized void logSummary() {
+		for (SyncLog log : logs) {
+			StringBuilder sb = new StringBuilder();
+			int logged = 0;
+			synchronized (log) {
+				for (Event event : log.events) {
+					if (event.count.get() > 0) {
+						sb.append(sb.length() == 0 ? "" : ", ").append(event.name).append(' ').append(event.count.get());
+						logged += event.logged.get();
+					}
+				}
+			}
+			if (sb.length() > 0) {
+				log.i("Events: " + sb + (logged > 0 ? " (" + logged + " logged)" : ""));
+			}
+		}
+	}
+
+	public void d(String message) {
+		println(DEBUG, message, null);
+	}
+
+	public void i(String message) {
+		println(INFO, message, null);
+	}
+
+	public void w(String message) {
+		println(WARN, message, null);
+	}
+
+	public void w(String message, Throwable throwable) {
+		println(WARN, message, throwable);
+	}
+
+	public void e(String message, Throwable throwable) {
+		println(ERROR, message, throwable);
+	}
+
+	private void println(int level, String message, Throwable throwable) {
+		final Printer p = printer;
+		if (p != null) {
+			p.println(level, tag, message, throwable);
+		}
+	}
+
+	private void readLevels() {
+		final Printer p = printer;
+		verbose = p != null && p.isLoggable(tag, VERBOSE);
+		debug = verbose || p != null && p.isLoggable(tag, DEBUG);
+	}
+}
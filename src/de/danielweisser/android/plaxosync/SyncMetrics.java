@@ -0,0 +1,103 @@
+package de.danielweisser.android.plaxosync;
+
+/**
+ * Collects the figures of a single sync, that are logged when the sync is finished.
+ */
+public class SyncMetrics {
+	private long bytesReceived = 0;
+	private long bytesDecoded = 0;
+	private long downloadTime = 0;
+	private long decodeTime = 0;
+	private long parseTime = 0;
+	private long rateLimitWaitTime = 0;
+	private int rateLimitWaits = 0;
+	private int batches = 0;
+	private long batchOperations = 0;
+	private long batchTime = 0;
+	private int minBatchSize = Integer.MAX_VALUE;
+	private int maxBatchSize = 0;
+	private long maxBatchTime = 0;
+
+	/**
+	 * Adds a downloaded response.
+	 * 
+	 * @param received
+	 *            The bytes on the wire
+	 * @param decoded
+	 *            The bytes after decompression
+	 * @param time
+	 *            The time for the download in ms
+	 */
+	public synchronized void addDownload(long received, long decoded, long time) {
+		bytesReceived += received;
+		bytesDecoded += decoded;
+		downloadTime += time;
+	}
+
+	/**
+	 * @param time
+	 *            The time spent in the decompression in ms
+	 */
+	public synchronized void addDecodeTime(long time) {
+		decodeTime += time;
+	}
+
+	/**
+	 * @param time
+	 *            The time spent in the JSON parser in ms
+	 */
+	public synchronized void addParseTime(long time) {
+		parseTime += time;
+	}
+
+	/**
+	 * @param time
+	 *            The time in ms, that requests have been held back by the rate limiter
+	 * @param waits
+	 *            The number of requests, that have been held back
+	 */
+	public synchronized void addRateLimitWait(long time, int waits) {
+		rateLimitWaitTime += time;
+		rateLimitWaits += waits;
+	}
+
+	/**
+	 * Adds an applied batch.
+	 * 
+	 * @param operations
+	 *            The number of operations in the batch
+	 * @param time
+	 *            The duration of applyBatch in ms
+	 */
+	public synchronized void addBatch(int operations, long time) {
+		batches++;
+		batchOperations += operations;
+		batchTime += time;
+		minBatchSize = Math.min(minBatchSize, operations);
+		maxBatchSize = Math.max(maxBatchSize, operations);
+		maxBatchTime = Math.max(maxBatchTime, time);
+	}
+
+	public synchronized long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	public synchronized long getBytesDecoded() {
+		return bytesDecoded;
+	}
+
+	/**
+	 * @return The ratio of decoded to received bytes, 1 for uncompressed responses
+	 */
+	public synchronized float getCompressionRatio() {
+		return bytesReceived == 0 ? 1 : (float) bytesDecoded / bytesReceived;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "received " + bytesReceived + " bytes (" + bytesDecoded + " decoded, ratio " + String.format("%.1f", getCompressionRatio())
+				+ ") in " + downloadTime + "ms, decode " + decodeTime + "ms, parse " + parseTime + "ms, rate limited " + rateLimitWaits + " requests for "
+				+ rateLimitWaitTime + "ms, " + batches + " batches" + (batches == 0 ? "" : " of " + minBatchSize + "-" + maxBatchSize + " operations (avg "
+				+ (batchOperations / batches) + ") in avg " + (batchTime / batches) + "ms, max " + maxBatchTime + "ms");
+	}
+}
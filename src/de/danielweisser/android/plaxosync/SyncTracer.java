@@ -0,0 +1,163 @@
+package de.danielweisser.android.plaxosync;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records the phases of a sync as spans into a ring buffer and exports them in the trace event format of Chrome, so that the timeline of a
+ * sync can be loaded into a trace viewer like chrome://tracing. A span with {@link #begin(String)} and {@link #end(String)} belongs to the
+ * calling thread and has to be nested within the other spans of the thread. An async span may end on another thread and is matched by its
+ * name and id. When the buffer is full, the oldest events are overwritten.
+ *
+ * The tracer is off by default, then a span costs the check of a volatile flag. The tracer does not depend on the platform, so that the
+ * contact model can use it.
+ */
+public class SyncTracer {
+
+	/**
+	 * The number of events in the ring buffer.
+	 */
+	private static final int CAPACITY = 16 * 1024;
+
+	private static final char BEGIN = 'B';
+	private static final char END = 'E';
+	private static final char ASYNC_BEGIN = 'b';
+	private static final char ASYNC_END = 'e';
+
+	private static volatile boolean enabled = false;
+
+	private static char[] phases = null;
+	private static String[] names;
+	private static long[] times;
+	private static long[] ids;
+	private static long[] threadIds;
+	private static String[] threadNames;
+	private static int next = 0;
+	private static int size = 0;
+	private static long origin = 0;
+
+	private SyncTracer() {
+	}
+
+	/**
+	 * Clears the buffer and starts to record. The buffer is allocated with the first start.
+	 */
+	public static synchronized void start() {
+		if (phases == null) {
+			phases = new char[CAPACITY];
+			names = new String[CAPACITY];
+			times = new long[CAPACITY];
+			ids = new long[CAPACITY];
+			threadIds = new long[CAPACITY];
+			threadNames = new String[CAPACITY];
+		}
+		next = 0;
+		size = 0;
+		origin = System.nanoTime();
+		enabled = true;
+	}
+
+	/**
+	 * Stops to record, the recorded events are kept until the next start.
+	 */
+	public static void stop() {
+		enabled = false;
+	}
+
+	public static void begin(String name) {
+		if (enabled) {
+			record(BEGIN, name, 0);
+		}
+	}
+
+	public static void end(String name) {
+		if (enabled) {
+			record(END, name, 0);
+		}
+	}
+
+	/**
+	 * Begins a span, that may end on another thread.
+	 *
+	 * @param id
+	 *            The id, that tells the concurrent spans with the same name apart
+	 */
+	public static void beginAsync(String name, long id) {
+		if (enabled) {
+			record(ASYNC_BEGIN, name, id);
+		}
+	}
+
+	public static void endAsync(String name, long id) {
+		if (enabled) {
+			record(ASYNC_END, name, id);
+		}
+	}
+
+	private static synchronized void record(char phase, String name, long id) {
+		if (phases == null) {
+			return;
+		}
+		final Thread thread = Thread.currentThread();
+		phases[next] = phase;
+		names[next] = name;
+		times[next] = (System.nanoTime() - origin) / 1000;
+		ids[next] = id;
+		threadIds[next] = thread.getId();
+		threadNames[next] = thread.getName();
+		next = (next + 1) % CAPACITY;
+		size = Math.min(size + 1, CAPACITY);
+	}
+
+	/**
+	 * Writes the recorded events as JSON in the trace event format. The times are in microseconds since the start. Spans, whose begin has
+	 * been overwritten in the buffer, are left to the viewer.
+	 */
+	public static synchronized void export(File file) throws IOException {
+		final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			out.write("{\"traceEvents\":[");
+			final HashMap<Long, String> threads = new HashMap<Long, String>();
+			final int first = (next - size + CAPACITY) % CAPACITY;
+			for (int i = 0; i < size; i++) {
+				int e = (first + i) % CAPACITY;
+				threads.put(threadIds[e], threadNames[e]);
+				out.write(i == 0 ? "\n" : ",\n");
+				out.write("{\"name\":" + quote(names[e]) + ",\"cat\":\"sync\",\"ph\":\"" + phases[e] + "\",\"ts\":" + times[e]
+						+ ",\"pid\":1,\"tid\":" + threadIds[e]);
+				if (phases[e] == ASYNC_BEGIN || phases[e] == ASYNC_END) {
+					out.write(",\"id\":" + ids[e]);
+				}
+				out.write('}');
+			}
+			for (Map.Entry<Long, String> thread : threads.entrySet()) {
+				out.write(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getKey() + ",\"args\":{\"name\":"
+						+ quote(thread.getValue()) + "}}");
+			}
+			out.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < ' ') {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
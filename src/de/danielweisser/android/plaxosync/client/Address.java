@@ -1,7 +1,5 @@
 package de.danielweisser.android.plaxosync.client;
 
-import android.text.TextUtils;
-
 public class Address {
 
 	private String street = "";
@@ -79,10 +77,11 @@ public class Address {
 	}
 
 	public boolean isEmpty() {
-		if (TextUtils.isEmpty(street) && TextUtils.isEmpty(city) && TextUtils.isEmpty(state) && TextUtils.isEmpty(zip) && TextUtils.isEmpty(country)) {
-			return true;
-		}
-		return false;
+		return isEmpty(street) && isEmpty(city) && isEmpty(state) && isEmpty(zip) && isEmpty(country);
+	}
+
+	private static boolean isEmpty(String value) {
+		return value == null || value.length() == 0;
 	}
 
 }
@@ -0,0 +1,151 @@
+package de.danielweisser.android.plaxosync.client;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+
+/**
+ * The validators of the contacts collection from the last successful sync of an account. They are sent as conditional headers, so that an
+ * unchanged address book is recognized without downloading and parsing it again. When the server sends no validators, a digest of the body
+ * is compared instead.
+ *
+ * The validators belong to the fields, that have been requested. A response with other fields is another representation of the
+ * collection, so the validators are only taken for the same {@link FieldProjection}.
+ */
+public class CollectionValidators {
+	private static final String KEY_ETAG = "collection.etag";
+	private static final String KEY_LAST_MODIFIED = "collection.lastModified";
+	private static final String KEY_DIGEST = "collection.digest";
+	private static final String KEY_PROJECTION = "collection.projection";
+
+	private String etag;
+	private String lastModified;
+	private String digest;
+	private String projection;
+	private boolean notModified = false;
+
+	/**
+	 * Loads the validators, that have been stored for the account. The validators are dropped, when they have been stored for other fields,
+	 * so that the next fetch downloads the collection with the new fields.
+	 *
+	 * @param projection
+	 *            The fields, that are requested with the next fetch
+	 */
+	public static CollectionValidators load(AccountManager accountManager, Account account, FieldProjection projection) {
+		CollectionValidators validators = new CollectionValidators();
+		validators.projection = projection.toParameter();
+		if (validators.projection.equals(accountManager.getUserData(account, KEY_PROJECTION))) {
+			validators.etag = accountManager.getUserData(account, KEY_ETAG);
+			validators.lastModified = accountManager.getUserData(account, KEY_LAST_MODIFIED);
+			validators.digest = accountManager.getUserData(account, KEY_DIGEST);
+		}
+		return validators;
+	}
+
+	/**
+	 * Stores the validators for the account. This must only be called after the contacts have been synchronized successfully.
+	 */
+	public void save(AccountManager accountManager, Account account) {
+		accountManager.setUserData(account, KEY_ETAG, etag);
+		accountManager.setUserData(account, KEY_LAST_MODIFIED, lastModified);
+		accountManager.setUserData(account, KEY_DIGEST, digest);
+		accountManager.setUserData(account, KEY_PROJECTION, projection);
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	public String getDigest() {
+		return digest;
+	}
+
+	/**
+	 * @return The <code>fields</code> parameter, that the validators belong to, or <code>null</code>, if it is not known
+	 */
+	public String getProjection() {
+		return projection;
+	}
+
+	/**
+	 * Takes the validators, that have been stored elsewhere, e.g. in a snapshot of the contacts.
+	 */
+	public void setValues(String etag, String lastModified, String digest, String projection) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.digest = digest;
+		this.projection = projection;
+	}
+
+	/**
+	 * Adds the If-None-Match and If-Modified-Since headers to the request.
+	 */
+	public void addConditionalHeaders(HttpGet request) {
+		if (etag != null) {
+			request.addHeader("If-None-Match", etag);
+		}
+		if (lastModified != null) {
+			request.addHeader("If-Modified-Since", lastModified);
+		}
+	}
+
+	/**
+	 * Takes the validators of a response with a changed collection.
+	 */
+	public void update(HttpResponse response) {
+		Header etagHeader = response.getFirstHeader("ETag");
+		etag = etagHeader != null ? etagHeader.getValue() : null;
+		Header lastModifiedHeader = response.getFirstHeader("Last-Modified");
+		lastModified = lastModifiedHeader != null ? lastModifiedHeader.getValue() : null;
+	}
+
+	/**
+	 * Compares the digest of the body with the digest from the last sync and takes the new digest.
+	 *
+	 * @param body
+	 *            The body of the response
+	 * @return true, if the body has not changed
+	 */
+	public boolean updateDigest(String body) {
+		String newDigest = digest(body);
+		if (newDigest != null && newDigest.equals(digest)) {
+			return true;
+		}
+		digest = newDigest;
+		return false;
+	}
+
+	/**
+	 * @return true, if the last fetch found the collection unchanged
+	 */
+	public boolean isNotModified() {
+		return notModified;
+	}
+
+	public void setNotModified(boolean notModified) {
+		this.notModified = notModified;
+	}
+
+	static String digest(String body) {
+		try {
+			byte[] hash = MessageDigest.getInstance("MD5").digest(body.getBytes("UTF-8"));
+			return new BigInteger(1, hash).toString(16);
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package de.danielweisser.android.plaxosync.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * A gzip or deflate compressed response entity, that is decompressed while it is read. The compressed bytes are counted, so that the
+ * compression ratio can be reported.
+ */
+class CompressedEntity extends HttpEntityWrapper {
+	private static final String GZIP = "gzip";
+	private static final String DEFLATE = "deflate";
+
+	private final boolean gzip;
+	private CountingInputStream wire;
+	private InputStream content;
+
+	public CompressedEntity(HttpEntity entity, boolean gzip) {
+		super(entity);
+		this.gzip = gzip;
+	}
+
+	/**
+	 * Lets the client request compressed responses and decompress them transparently.
+	 */
+	public static void enable(DefaultHttpClient httpclient) {
+		httpclient.addRequestInterceptor(new HttpRequestInterceptor() {
+			public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+				if (!request.containsHeader("Accept-Encoding")) {
+					request.addHeader("Accept-Encoding", GZIP + ", " + DEFLATE);
+				}
+			}
+		});
+		httpclient.addResponseInterceptor(new HttpResponseInterceptor() {
+			public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+				HttpEntity entity = response.getEntity();
+				Header encoding = entity != null ? entity.getContentEncoding() : null;
+				if (encoding != null) {
+					String value = encoding.getValue().trim().toLowerCase(Locale.US);
+					if (GZIP.equals(value) || "x-gzip".equals(value)) {
+						response.setEntity(new CompressedEntity(entity, true));
+					} else if (DEFLATE.equals(value)) {
+						response.setEntity(new CompressedEntity(entity, false));
+					}
+				}
+			}
+		});
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		if (content == null) {
+			wire = new CountingInputStream(wrappedEntity.getContent());
+			content = gzip ? new GZIPInputStream(wire) : new InflaterInputStream(wire);
+		}
+		return content;
+	}
+
+	/**
+	 * The content is decompressed, so neither the length nor the encoding of the wrapped entity apply.
+	 */
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public Header getContentEncoding() {
+		return null;
+	}
+
+	/**
+	 * @return The compressed bytes, that have been read
+	 */
+	public long getWireCount() {
+		return wire != null ? wire.getCount() : 0;
+	}
+
+	/**
+	 * @return The time spent reading the compressed bytes from the network in ms
+	 */
+	public long getWireTime() {
+		return wire != null ? wire.getTime() : 0;
+	}
+}
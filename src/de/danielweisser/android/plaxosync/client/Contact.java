@@ -1,31 +1,29 @@
 package de.danielweisser.android.plaxosync.client;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.entity.BufferedHttpEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.text.TextUtils;
-import android.util.Log;
+import de.danielweisser.android.plaxosync.SyncTracer;
 
 /**
  * Represents a PlaxoSyncAdapter contact
  */
 public class Contact {
 	public static final String STANDARD_ENCODING = "ISO-8859-1";
-	private static final String TAG = "Contact";
+
+	/**
+	 * Loads the pictures of the contacts, so that the contact itself does not depend on the platform.
+	 */
+	public interface ImageLoader {
+		/**
+		 * @return The picture or <code>null</code>, if it cannot be loaded
+		 */
+		byte[] load(String url);
+	}
+
+	private static volatile ImageLoader imageLoader = null;
+
 	private String id = "";
 	private String namePrefix = "";
 	private String firstName = "";
@@ -47,6 +45,7 @@ public class Contact {
 	private Address workAddress = null;
 	private Address homeAddress = null;
 	private byte[] image = null;
+	private String imageDigest = null;
 
 	public String getID() {
 		return id;
@@ -88,42 +87,33 @@ public class Contact {
 		this.workEmail = workEmail;
 	}
 
+	/**
+	 * Sets the loader, that {@link #getImage()} uses to load the pictures.
+	 */
+	public static void setImageLoader(ImageLoader loader) {
+		imageLoader = loader;
+	}
+
 	public byte[] getImage() {
-		if (image == null) {
-			if (!TextUtils.isEmpty(imageURL)) {
-				HttpClient httpclient = new DefaultHttpClient();
-				try {
-					HttpGet httpRequest = new HttpGet(imageURL);
-					HttpResponse response = (HttpResponse) httpclient.execute(httpRequest);
-					HttpEntity entity = response.getEntity();
-					BufferedHttpEntity bufHttpEntity = new BufferedHttpEntity(entity);
-					InputStream instream = bufHttpEntity.getContent();
-					try {
-						Bitmap bm = BitmapFactory.decodeStream(instream);
-						if (bm != null) {
-							ByteArrayOutputStream baos = new ByteArrayOutputStream();
-							bm.compress(Bitmap.CompressFormat.JPEG, 70, baos);
-							image = baos.toByteArray();
-						}
-					} catch (OutOfMemoryError e) {
-						// Do not set an image, when an OutOfMemoryError occurs
-						image = null;
-					} finally {
-						instream.close();
-						entity.consumeContent();
-					}
-				} catch (ClientProtocolException e) {
-					Log.e(TAG, e.getMessage(), e);
-				} catch (IOException e) {
-					Log.e(TAG, e.getMessage(), e);
-				} finally {
-					httpclient.getConnectionManager().shutdown();
-				}
+		final ImageLoader loader = imageLoader;
+		if (image == null && loader != null && imageURL != null && imageURL.length() > 0) {
+			SyncTracer.begin("getImage");
+			try {
+				image = loader.load(imageURL);
+			} catch (OutOfMemoryError e) {
+				// Do not set an image, when an OutOfMemoryError occurs
+				image = null;
+			} finally {
+				SyncTracer.end("getImage");
 			}
 		}
 		return image;
 	}
 
+	public String getImageURL() {
+		return imageURL;
+	}
+
 	public void setImageURL(String imageURL) {
 		this.imageURL = imageURL;
 	}
@@ -132,6 +122,17 @@ public class Contact {
 		this.image = image;
 	}
 
+	/**
+	 * @return The digest of the picture, that has been written to the phone, or <code>null</code> if it is unknown
+	 */
+	public String getImageDigest() {
+		return imageDigest;
+	}
+
+	public void setImageDigest(String imageDigest) {
+		this.imageDigest = imageDigest;
+	}
+
 	public void setCellWorkPhone(String cellWorkPhone) {
 		this.cellWorkPhone = cellWorkPhone;
 	}
@@ -0,0 +1,311 @@
+package de.danielweisser.android.plaxosync.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.util.Log;
+import de.danielweisser.android.plaxosync.MemoryGovernor;
+
+/**
+ * Holds the fetched contacts of a sync. Up to a threshold the contacts are kept in memory. Beyond it, they are spilled to an append only file
+ * and streamed back in their original order, so that the memory of the sync does not grow with the size of the address book. The sync
+ * iterates the buffer once and diffs the contacts in chunks.
+ *
+ * The threshold is set for an account with the user data <code>sync.buffer</code> as a number of contacts. It is lowered under memory
+ * pressure.
+ */
+public class ContactBuffer extends AbstractCollection<Contact> {
+	private static final String TAG = "ContactBuffer";
+
+	private static final String KEY_THRESHOLD = "sync.buffer";
+
+	/**
+	 * The contacts in memory may use this fraction of the maximum heap by default.
+	 */
+	private static final int MEMORY_BUDGET_FRACTION = 8;
+
+	/**
+	 * The estimated size of a parsed contact in memory in bytes.
+	 */
+	private static final int CONTACT_SIZE = 2 * 1024;
+	private static final int MIN_THRESHOLD = 100;
+
+	private final File dir;
+	private final int threshold;
+	private File file = null;
+	private final ArrayList<Contact> memory = new ArrayList<Contact>();
+	private DataOutputStream out = null;
+	private int spilled = 0;
+
+	/**
+	 * The streams of the iterators, that have not been read to the end, e.g. because the sync has been canceled.
+	 */
+	private final ArrayList<DataInputStream> inputs = new ArrayList<DataInputStream>();
+
+	/**
+	 * @param dir
+	 *            The directory of the spill file
+	 * @param threshold
+	 *            The number of contacts, that are kept in memory
+	 */
+	public ContactBuffer(File dir, int threshold) {
+		this.dir = dir;
+		this.threshold = Math.max(MIN_THRESHOLD, threshold);
+	}
+
+	/**
+	 * Loads the threshold of an account.
+	 *
+	 * @return The configured threshold or a threshold from the heap size
+	 */
+	public static int loadThreshold(AccountManager accountManager, Account account) {
+		String value = accountManager.getUserData(account, KEY_THRESHOLD);
+		if (value != null) {
+			try {
+				return Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				Log.w(TAG, "Invalid buffer threshold: " + value);
+			}
+		}
+		return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / MEMORY_BUDGET_FRACTION / CONTACT_SIZE);
+	}
+
+	/**
+	 * Adds a contact. The contacts in memory are spilled, when they exceed the threshold.
+	 *
+	 * @throws IllegalStateException
+	 *             If the spill file cannot be written
+	 */
+	@Override
+	public boolean add(Contact contact) {
+		memory.add(contact);
+		if (memory.size() >= MemoryGovernor.scale(threshold, MIN_THRESHOLD)) {
+			spill();
+		}
+		return true;
+	}
+
+	@Override
+	public int size() {
+		return spilled + memory.size();
+	}
+
+	/**
+	 * @return The number of contacts, that have been written to the spill file
+	 */
+	public int getSpilled() {
+		return spilled;
+	}
+
+	/**
+	 * Streams the spilled contacts from the file, followed by the contacts in memory. The iterator throws an {@link IllegalStateException}, if
+	 * the spill file cannot be read, so that the contacts are never taken as complete, when they are not.
+	 */
+	@Override
+	public Iterator<Contact> iterator() {
+		if (spilled == 0) {
+			return memory.iterator();
+		}
+		try {
+			out.flush();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			inputs.add(in);
+			return new SpillIterator(in);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot read " + file + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Removes all contacts, e.g. before the contacts are fetched again. The spill file is deleted.
+	 */
+	@Override
+	public void clear() {
+		close();
+		file = null;
+		spilled = 0;
+		memory.clear();
+	}
+
+	/**
+	 * Closes the open iterators and deletes the spill file.
+	 */
+	public void close() {
+		for (DataInputStream in : inputs) {
+			closeQuietly(in);
+		}
+		inputs.clear();
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+			out = null;
+		}
+		if (file != null) {
+			file.delete();
+		}
+	}
+
+	private void spill() {
+		try {
+			if (out == null) {
+				file = File.createTempFile("contacts", ".buf", dir);
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			}
+			for (Contact contact : memory) {
+				write(out, contact);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot write " + file + ": " + e.getMessage());
+		}
+		Log.d(TAG, "Spilled " + memory.size() + " contacts");
+		spilled += memory.size();
+		memory.clear();
+	}
+
+	private class SpillIterator implements Iterator<Contact> {
+		private final DataInputStream in;
+		private int read = 0;
+		private Iterator<Contact> memoryIterator = null;
+
+		SpillIterator(DataInputStream in) {
+			this.in = in;
+		}
+
+		public boolean hasNext() {
+			return read < spilled || memory.size() > 0 && (memoryIterator == null || memoryIterator.hasNext());
+		}
+
+		public Contact next() {
+			if (read < spilled) {
+				try {
+					Contact contact = read(in);
+					if (++read == spilled) {
+						inputs.remove(in);
+						in.close();
+					}
+					return contact;
+				} catch (IOException e) {
+					inputs.remove(in);
+					closeQuietly(in);
+					throw new IllegalStateException("Cannot read " + file + ": " + e.getMessage());
+				}
+			}
+			if (memoryIterator == null) {
+				memoryIterator = memory.iterator();
+			}
+			if (!memoryIterator.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return memoryIterator.next();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static void closeQuietly(DataInputStream in) {
+		try {
+			in.close();
+		} catch (IOException e) {
+			Log.w(TAG, e.getMessage(), e);
+		}
+	}
+
+	private static void write(DataOutputStream out, Contact c) throws IOException {
+		for (String value : new String[] { c.getID(), c.getImageURL(), c.getNamePrefix(), c.getFirstName(), c.getLastName(), c.getWorkEmail(),
+				c.getHomeEmail(), c.getCellWorkPhone(), c.getWorkPhone(), c.getWorkFax(), c.getWorkURL(), c.getCellHomePhone(), c.getHomePhone(),
+				c.getHomeFax(), c.getHomeURL(), c.getCompany(), c.getTitle(), c.getDateOfBirth() }) {
+			writeString(out, value);
+		}
+		writeAddress(out, c.getWorkAddress());
+		writeAddress(out, c.getHomeAddress());
+	}
+
+	private static Contact read(DataInputStream in) throws IOException {
+		Contact c = new Contact();
+		c.setID(readString(in));
+		c.setImageURL(readString(in));
+		c.setNamePrefix(readString(in));
+		c.setFirstName(readString(in));
+		c.setLastName(readString(in));
+		c.setWorkEmail(readString(in));
+		c.setHomeEmail(readString(in));
+		c.setCellWorkPhone(readString(in));
+		c.setWorkPhone(readString(in));
+		c.setWorkFax(readString(in));
+		c.setWorkURL(readString(in));
+		c.setCellHomePhone(readString(in));
+		c.setHomePhone(readString(in));
+		c.setHomeFax(readString(in));
+		c.setHomeURL(readString(in));
+		c.setCompany(readString(in));
+		c.setTitle(readString(in));
+		c.setDateOfBirth(readString(in));
+		c.setWorkAddress(readAddress(in));
+		c.setHomeAddress(readAddress(in));
+		return c;
+	}
+
+	private static void writeAddress(DataOutputStream out, Address address) throws IOException {
+		out.writeBoolean(address != null);
+		if (address != null) {
+			writeString(out, address.getStreet());
+			writeString(out, address.getCity());
+			writeString(out, address.getState());
+			writeString(out, address.getZip());
+			writeString(out, address.getCountry());
+		}
+	}
+
+	private static Address readAddress(DataInputStream in) throws IOException {
+		if (!in.readBoolean()) {
+			return null;
+		}
+		Address address = new Address();
+		address.setStreet(readString(in));
+		address.setCity(readString(in));
+		address.setState(readString(in));
+		address.setZip(readString(in));
+		address.setCountry(readString(in));
+		return address;
+	}
+
+	/**
+	 * Writes the length of the UTF-8 bytes, or -1 for <code>null</code>, followed by the bytes.
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
@@ -0,0 +1,74 @@
+package de.danielweisser.android.plaxosync.client;
+
+import java.util.Collection;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Parses a page of the Portable Contacts response of Plaxo. The parser depends on plain Java and org.json only, so that it can be run and
+ * profiled outside of the platform.
+ */
+public class ContactParser {
+
+	/**
+	 * The counts of a parsed page.
+	 */
+	public static class Page {
+		/**
+		 * The total number of contacts on the server.
+		 */
+		public final int total;
+
+		/**
+		 * The number of entries of the page, including the entries without a name, that are skipped.
+		 */
+		public final int entries;
+
+		/**
+		 * The number of entries, whose id has already been received with an earlier page.
+		 */
+		public final int duplicates;
+
+		private Page(int total, int entries, int duplicates) {
+			this.total = total;
+			this.entries = entries;
+			this.duplicates = duplicates;
+		}
+	}
+
+	private ContactParser() {
+	}
+
+	/**
+	 * Parses the contacts of a page.
+	 * 
+	 * @param contacts
+	 *            Receives the contacts of the page
+	 * @param body
+	 *            The JSON of the page
+	 * @param ids
+	 *            Receives the ids of all entries of the page, including the skipped entries, or <code>null</code>
+	 * @return The counts of the page
+	 * @throws JSONException
+	 *             If the page is not valid or does not contain the total number of contacts
+	 */
+	public static Page parse(Collection<Contact> contacts, String body, Set<String> ids) throws JSONException {
+		JSONObject allData = new JSONObject(body);
+		JSONArray jsonArray = allData.getJSONArray("entry");
+		int duplicates = 0;
+		for (int i = 0; i < jsonArray.length(); i++) {
+			JSONObject entry = jsonArray.getJSONObject(i);
+			if (ids != null && !ids.add(entry.getString("id"))) {
+				duplicates++;
+			}
+			Contact u = Contact.valueOf(entry);
+			if (u != null && u.getFirstName() != null && u.getLastName() != null) {
+				contacts.add(u);
+			}
+		}
+		return new Page(allData.getInt("totalResults"), jsonArray.length(), duplicates);
+	}
+}
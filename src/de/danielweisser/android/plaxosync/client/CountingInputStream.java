@@ -0,0 +1,53 @@
+package de.danielweisser.android.plaxosync.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes and the time, that are spent reading from the wrapped stream.
+ */
+class CountingInputStream extends FilterInputStream {
+	private long count = 0;
+	private long nanos = 0;
+
+	public CountingInputStream(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		final long start = System.nanoTime();
+		int b = super.read();
+		nanos += System.nanoTime() - start;
+		if (b >= 0) {
+			count++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		final long start = System.nanoTime();
+		int n = super.read(buffer, offset, length);
+		nanos += System.nanoTime() - start;
+		if (n > 0) {
+			count += n;
+		}
+		return n;
+	}
+
+	/**
+	 * @return The number of bytes read
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return The time spent in read in ms
+	 */
+	public long getTime() {
+		return nanos / 1000000;
+	}
+}
@@ -0,0 +1,68 @@
+package de.danielweisser.android.plaxosync.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.text.TextUtils;
+
+/**
+ * The fields of the Portable Contacts entries, that are requested from Plaxo. Only the fields read by {@link Contact#valueOf} are
+ * requested, so that the server leaves out everything else. Photos and addresses can be turned off for an account by setting the user data
+ * <code>sync.photos</code> or <code>sync.addresses</code> to <code>false</code>.
+ */
+public class FieldProjection {
+	public static final String PHOTOS = "photos";
+	public static final String ADDRESSES = "addresses";
+
+	/**
+	 * The fields, that are always requested.
+	 */
+	private static final String[] REQUIRED_FIELDS = new String[] { "id", "name", "birthday", "emails", "urls", "phoneNumbers", "organizations" };
+
+	/**
+	 * The fields, that can be turned off by the user.
+	 */
+	private static final String[] OPTIONAL_FIELDS = new String[] { PHOTOS, ADDRESSES };
+
+	private static final String KEY_PREFIX = "sync.";
+
+	private final List<String> disabled = new ArrayList<String>();
+
+	/**
+	 * Loads the projection of an account.
+	 */
+	public static FieldProjection load(AccountManager accountManager, Account account) {
+		FieldProjection projection = new FieldProjection();
+		for (String field : OPTIONAL_FIELDS) {
+			if ("false".equals(accountManager.getUserData(account, KEY_PREFIX + field))) {
+				projection.disabled.add(field);
+			}
+		}
+		return projection;
+	}
+
+	/**
+	 * @return true, if the field is requested from Plaxo
+	 */
+	public boolean isEnabled(String field) {
+		return !disabled.contains(field);
+	}
+
+	/**
+	 * @return The value of the <code>fields</code> parameter
+	 */
+	public String toParameter() {
+		List<String> fields = new ArrayList<String>();
+		for (String field : REQUIRED_FIELDS) {
+			fields.add(field);
+		}
+		for (String field : OPTIONAL_FIELDS) {
+			if (isEnabled(field)) {
+				fields.add(field);
+			}
+		}
+		return TextUtils.join(",", fields);
+	}
+}
@@ -0,0 +1,139 @@
+package de.danielweisser.android.plaxosync.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpGet;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Executes an idempotent GET and sends a second, identical request, when the first one has not finished within a percentile of the earlier
+ * latencies. The first successful response is taken and the other request is aborted, so that a single stalled connection does not decide
+ * the duration of the sync.
+ *
+ * Every sync has its own instance, whose pool is bounded by the connections of the clients and shut down at the end of the sync.
+ */
+public class HedgedRequest {
+	private static final String TAG = "HedgedRequest";
+
+	private final ExecutorService executor;
+
+	/**
+	 * Creates the pool of a sync with a thread per connection of the clients, the further requests are queued.
+	 */
+	public HedgedRequest() {
+		executor = Executors.newFixedThreadPool(PlaxoUtilities.MAX_CONNECTIONS);
+	}
+
+	/**
+	 * Executes the request and reads its response.
+	 */
+	public interface Request<T> {
+		/**
+		 * @param hedge
+		 *            true for the hedged request, which is sent only once, because the first request may still succeed
+		 */
+		T execute(HttpGet request, boolean hedge) throws IOException, PlaxoLoginException;
+	}
+
+	/**
+	 * Aborts the requests in flight and stops the threads.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Executes the request, hedged after the delay of the tracker.
+	 *
+	 * @param url
+	 *            The URL of the GET request
+	 * @param tracker
+	 *            The latencies of the requests of the same kind
+	 * @param request
+	 *            Executes the request and reads its response
+	 * @return The result of the request, that finished first
+	 */
+	public <T> T execute(String url, LatencyTracker tracker, final Request<T> request) throws IOException, PlaxoLoginException {
+		final CompletionService<T> service = new ExecutorCompletionService<T>(executor);
+		final HttpGet[] requests = new HttpGet[2];
+		final long[] starts = new long[2];
+		final Future<?>[] futures = new Future<?>[2];
+		int sent = 0;
+		int pending = 0;
+		Future<T> done = null;
+		try {
+			futures[sent] = submit(service, request, requests[sent] = new HttpGet(url), false);
+			starts[sent++] = SystemClock.elapsedRealtime();
+			pending++;
+			final long hedgeDelay = tracker.getHedgeDelay();
+			if (hedgeDelay >= 0) {
+				done = service.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+				if (done == null) {
+					Log.d(TAG, "No response after " + hedgeDelay + "ms, hedge " + url);
+					futures[sent] = submit(service, request, requests[sent] = new HttpGet(url), true);
+					starts[sent++] = SystemClock.elapsedRealtime();
+					pending++;
+				}
+			}
+			ExecutionException failure = null;
+			while (pending > 0) {
+				if (done == null) {
+					done = service.take();
+				}
+				pending--;
+				try {
+					T result = done.get();
+					int winner = done == futures[0] ? 0 : 1;
+					tracker.add(SystemClock.elapsedRealtime() - starts[winner]);
+					return result;
+				} catch (ExecutionException e) {
+					failure = e;
+					done = null;
+				}
+			}
+			throw unwrap(failure);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Request has been interrupted");
+		} finally {
+			for (int i = 0; i < sent; i++) {
+				if (futures[i] != done) {
+					requests[i].abort();
+					futures[i].cancel(true);
+				}
+			}
+		}
+	}
+
+	private static <T> Future<T> submit(CompletionService<T> service, final Request<T> request, final HttpGet httpget, final boolean hedge) {
+		return service.submit(new Callable<T>() {
+			public T call() throws Exception {
+				return request.execute(httpget, hedge);
+			}
+		});
+	}
+
+	private static IOException unwrap(ExecutionException e) throws PlaxoLoginException {
+		if (e.getCause() instanceof IOException) {
+			return (IOException) e.getCause();
+		} else if (e.getCause() instanceof PlaxoLoginException) {
+			throw (PlaxoLoginException) e.getCause();
+		} else if (e.getCause() instanceof RuntimeException) {
+			throw (RuntimeException) e.getCause();
+		} else if (e.getCause() instanceof Error) {
+			throw (Error) e.getCause();
+		}
+		throw new IllegalStateException(e.getCause());
+	}
+}
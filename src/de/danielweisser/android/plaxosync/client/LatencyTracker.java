@@ -0,0 +1,47 @@
+package de.danielweisser.android.plaxosync.client;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the last requests of one kind, so that the delay for a hedged request can be derived from their distribution.
+ */
+public class LatencyTracker {
+	private static final int SAMPLES = 64;
+	private static final int MIN_SAMPLES = 10;
+
+	/**
+	 * Requests are never hedged earlier than this, so that fast hosts do not get twice the requests.
+	 */
+	private static final long MIN_HEDGE_DELAY = 100;
+
+	private final long[] latencies = new long[SAMPLES];
+	private final double percentile;
+	private int count = 0;
+
+	/**
+	 * @param percentile
+	 *            The percentile of the latencies, after which a request is hedged, e.g. 0.95
+	 */
+	public LatencyTracker(double percentile) {
+		this.percentile = percentile;
+	}
+
+	public synchronized void add(long latency) {
+		latencies[count % SAMPLES] = latency;
+		count++;
+	}
+
+	/**
+	 * @return The time in ms after which a second request is sent, or -1 if there are not enough samples yet
+	 */
+	public synchronized long getHedgeDelay() {
+		final int n = Math.min(count, SAMPLES);
+		if (n < MIN_SAMPLES) {
+			return -1;
+		}
+		long[] sorted = new long[n];
+		System.arraycopy(latencies, 0, sorted, 0, n);
+		Arrays.sort(sorted);
+		return Math.max(MIN_HEDGE_DELAY, sorted[Math.min(n - 1, (int) (n * percentile))]);
+	}
+}
@@ -0,0 +1,253 @@
+package de.danielweisser.android.plaxosync.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.util.Log;
+import de.danielweisser.android.plaxosync.MemoryGovernor;
+import de.danielweisser.android.plaxosync.SyncMetrics;
+import de.danielweisser.android.plaxosync.SyncTracer;
+
+/**
+ * Fetches the contacts in pages of {@link #PAGE_SIZE} with <code>startIndex</code>/<code>count</code>. While a page is parsed, the next
+ * pages are already downloaded on the pooled client, so that the link does not idle. The pages are parsed in their order. The number of
+ * pages in flight is limited by the configured window and by a memory budget, because every downloaded page is kept until it is parsed.
+ *
+ * The prefetch window is set for an account with the user data <code>sync.prefetch</code>.
+ */
+public class PagePrefetcher {
+	private static final String TAG = "PagePrefetcher";
+
+	private static final String KEY_WINDOW = "sync.prefetch";
+
+	/**
+	 * The number of contacts, that are requested with one page. The pages get smaller under memory pressure.
+	 */
+	static final int PAGE_SIZE = 500;
+	private static final int MIN_PAGE_SIZE = 50;
+
+	/**
+	 * The pages in flight may use this fraction of the maximum heap.
+	 */
+	private static final int MEMORY_BUDGET_FRACTION = 8;
+
+	/**
+	 * The number of times the pages are fetched, before the contacts are given up for this sync.
+	 */
+	private static final int MAX_ATTEMPTS = 2;
+
+	/**
+	 * The pages are hedged after the 95th percentile of the earlier pages.
+	 */
+	private static final LatencyTracker pageLatency = new LatencyTracker(0.95);
+
+	private final DefaultHttpClient httpclient;
+	private final String url;
+	private final int window;
+	private final RetryPolicy retryPolicy;
+	private final HedgedRequest hedgedRequest;
+	private final SyncMetrics metrics;
+
+	/**
+	 * @param httpclient
+	 *            A client with a thread safe connection manager
+	 * @param url
+	 *            The URL of the contacts collection including the query
+	 * @param window
+	 *            The maximum number of pages in flight
+	 * @param retryPolicy
+	 *            The retry policy of the sync
+	 * @param hedgedRequest
+	 *            The hedged requests of the sync
+	 * @param metrics
+	 *            The metrics of the sync
+	 */
+	public PagePrefetcher(DefaultHttpClient httpclient, String url, int window, RetryPolicy retryPolicy, HedgedRequest hedgedRequest,
+			SyncMetrics metrics) {
+		this.httpclient = httpclient;
+		this.url = url;
+		this.window = window;
+		this.retryPolicy = retryPolicy;
+		this.hedgedRequest = hedgedRequest;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Loads the prefetch window of an account.
+	 *
+	 * @return The window or 0, if the contacts are fetched with a single request
+	 */
+	public static int loadWindow(AccountManager accountManager, Account account) {
+		String value = accountManager.getUserData(account, KEY_WINDOW);
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Math.max(0, Math.min(PlaxoUtilities.MAX_CONNECTIONS / 2, Integer.parseInt(value)));
+		} catch (NumberFormatException e) {
+			Log.w(TAG, "Invalid prefetch window: " + value);
+			return 0;
+		}
+	}
+
+	/**
+	 * Fetches and parses all pages. The conditional headers of the validators do not apply to single pages, so the collection is compared
+	 * by the digests of its pages. If the collection changes while it is paged, the pages are fetched again.
+	 *
+	 * @param friendList
+	 *            The collection, that receives the contacts
+	 * @param validators
+	 *            The validators of the contacts collection
+	 * @throws PlaxoLoginException
+	 *             If the server rejects a request
+	 * @throws IOException
+	 *             If a page could not be downloaded or parsed, or if the pages do not contain every contact exactly once
+	 */
+	public void fetch(Collection<Contact> friendList, CollectionValidators validators) throws PlaxoLoginException, IOException {
+		for (int attempt = 1;; attempt++) {
+			final String digests = fetchPages(friendList);
+			if (digests != null) {
+				if (validators.updateDigest(digests)) {
+					Log.d(TAG, "Contacts are unchanged");
+					validators.setNotModified(true);
+				}
+				return;
+			}
+			// The sync deletes the contacts, that are not fetched, so incomplete pages are never passed on
+			friendList.clear();
+			if (attempt == MAX_ATTEMPTS) {
+				throw new IOException("The contacts changed while they were paged");
+			}
+			Log.w(TAG, "The contacts changed while they were paged, fetching them again");
+		}
+	}
+
+	/**
+	 * Fetches and parses all pages once. The pages are requested by their offset, so a contact is skipped or received twice, when the
+	 * collection changes between two pages. The pages are complete, when every page reports the same total and the ids of their entries
+	 * are unique and match the total.
+	 *
+	 * @return The digests of the pages or <code>null</code>, if the pages are not complete
+	 */
+	private String fetchPages(Collection<Contact> friendList) throws PlaxoLoginException, IOException {
+		final int firstPageSize = MemoryGovernor.scale(PAGE_SIZE, MIN_PAGE_SIZE);
+		final String firstPage = fetchPage(0, firstPageSize);
+		final StringBuilder digests = new StringBuilder();
+		digests.append(CollectionValidators.digest(firstPage));
+		final HashSet<String> ids = new HashSet<String>();
+		final ContactParser.Page first = PlaxoUtilities.parseJSON(friendList, firstPage, ids, metrics);
+		final int total = first.total;
+		int duplicates = first.duplicates;
+		boolean totalChanged = false;
+		if (total > firstPageSize) {
+			int pages = window(firstPage.length());
+			Log.d(TAG, "Fetch " + total + " contacts with " + pages + " pages in flight");
+			ExecutorService executor = Executors.newFixedThreadPool(pages);
+			try {
+				LinkedList<Future<String>> inFlight = new LinkedList<Future<String>>();
+				int startIndex = submit(executor, inFlight, firstPageSize, total, pages);
+				while (!inFlight.isEmpty()) {
+					String page = inFlight.removeFirst().get();
+					startIndex = submit(executor, inFlight, startIndex, total, pages);
+					digests.append(CollectionValidators.digest(page));
+					ContactParser.Page parsed = PlaxoUtilities.parseJSON(friendList, page, ids, metrics);
+					duplicates += parsed.duplicates;
+					totalChanged |= parsed.total != total;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Fetching the contacts has been interrupted");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				} else if (e.getCause() instanceof PlaxoLoginException) {
+					throw (PlaxoLoginException) e.getCause();
+				} else if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+		if (totalChanged || duplicates > 0 || ids.size() != total) {
+			Log.w(TAG, "Received " + ids.size() + " of " + total + " contacts with " + duplicates + " duplicates");
+			return null;
+		}
+		return digests.toString();
+	}
+
+	/**
+	 * Limits the window, so that the pages in flight fit into the memory budget.
+	 *
+	 * @param pageLength
+	 *            The length of the first page in characters
+	 */
+	private int window(int pageLength) {
+		final long pageBytes = Math.max(1, pageLength * 2L);
+		final long budget = Runtime.getRuntime().maxMemory() / MEMORY_BUDGET_FRACTION;
+		return (int) Math.max(1, Math.min(window, budget / pageBytes));
+	}
+
+	/**
+	 * Requests the next pages, until the window is full. The window and the page size are reduced under memory pressure.
+	 *
+	 * @return The start index of the next page, that has not been requested
+	 */
+	private int submit(ExecutorService executor, LinkedList<Future<String>> inFlight, int startIndex, int total, int pages) {
+		final int limit = MemoryGovernor.scale(pages, 1);
+		while (startIndex < total && inFlight.size() < limit) {
+			final int start = startIndex;
+			final int count = MemoryGovernor.scale(PAGE_SIZE, MIN_PAGE_SIZE);
+			// The page is in flight from the request to the end of the download, which shows, how long it is queued
+			SyncTracer.beginAsync("page", start);
+			inFlight.add(executor.submit(new Callable<String>() {
+				public String call() throws Exception {
+					try {
+						return fetchPage(start, count);
+					} finally {
+						SyncTracer.endAsync("page", start);
+					}
+				}
+			}));
+			startIndex += count;
+		}
+		return startIndex;
+	}
+
+	private String fetchPage(final int startIndex, int count) throws PlaxoLoginException, IOException {
+		return hedgedRequest.execute(url + "&startIndex=" + startIndex + "&count=" + count, pageLatency, new HedgedRequest.Request<String>() {
+			public String execute(HttpGet httpget, boolean hedge) throws IOException, PlaxoLoginException {
+				// The hedge is not retried, the first request is still retried on its own
+				HttpResponse response = hedge ? httpclient.execute(httpget) : retryPolicy.execute(httpclient, httpget);
+				HttpEntity entity = response.getEntity();
+				try {
+					PlaxoUtilities.checkStatus(response);
+					if (entity == null) {
+						throw new IOException("Empty page at " + startIndex);
+					}
+					return PlaxoUtilities.download(entity, metrics);
+				} finally {
+					if (entity != null) {
+						entity.consumeContent();
+					}
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,107 @@
+package de.danielweisser.android.plaxosync.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import de.danielweisser.android.plaxosync.SyncMetrics;
+
+/**
+ * Downloads the photos of a sync and recompresses them for the contacts provider. This is the {@link Contact.ImageLoader} of the sync. The
+ * loader has its own client, so that the connections of an account are not reused by the sync of another account, and it is closed at
+ * the end of the sync.
+ */
+public class PhotoLoader implements Contact.ImageLoader {
+	private static final String TAG = "PhotoLoader";
+
+	/**
+	 * The photos are hedged after the 95th percentile of the earlier downloads.
+	 */
+	private static final LatencyTracker photoLatency = new LatencyTracker(0.95);
+
+	private final DefaultHttpClient photoClient;
+	private final HedgedRequest hedgedRequest;
+
+	/**
+	 * @param hedgedRequest
+	 *            The hedged requests of the sync
+	 * @param metrics
+	 *            The metrics of the sync
+	 */
+	public PhotoLoader(HedgedRequest hedgedRequest, SyncMetrics metrics) {
+		this.photoClient = PlaxoUtilities.createPhotoClient(metrics);
+		this.hedgedRequest = hedgedRequest;
+	}
+
+	/**
+	 * Downloads a photo and recompresses it.
+	 *
+	 * @param url
+	 *            The URL of the photo
+	 * @return The photo or <code>null</code>, if it cannot be downloaded or decoded
+	 */
+	public byte[] load(String url) {
+		try {
+			byte[] data = download(url);
+			if (data != null) {
+				Bitmap bm = BitmapFactory.decodeByteArray(data, 0, data.length);
+				if (bm != null) {
+					ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					bm.compress(Bitmap.CompressFormat.JPEG, 70, baos);
+					return baos.toByteArray();
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+		return null;
+	}
+
+	/**
+	 * Downloads a photo. The download is hedged, when it takes longer than most of the earlier downloads.
+	 *
+	 * @param url
+	 *            The URL of the photo
+	 * @return The photo or <code>null</code>, if the host did not return it
+	 * @throws IOException
+	 */
+	public byte[] download(String url) throws IOException {
+		try {
+			return hedgedRequest.execute(url, photoLatency, new HedgedRequest.Request<byte[]>() {
+				public byte[] execute(HttpGet request, boolean hedge) throws IOException {
+					HttpResponse response = photoClient.execute(request);
+					HttpEntity entity = response.getEntity();
+					if (entity == null) {
+						return null;
+					}
+					try {
+						if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+							Log.w(TAG, "Photo not available: " + response.getStatusLine());
+							return null;
+						}
+						return PlaxoUtilities.readBytes(entity.getContent());
+					} finally {
+						entity.consumeContent();
+					}
+				}
+			});
+		} catch (PlaxoLoginException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Closes the connections of the loader.
+	 */
+	public void close() {
+		photoClient.getConnectionManager().shutdown();
+	}
+}
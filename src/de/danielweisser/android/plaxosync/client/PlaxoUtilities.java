@@ -1,32 +1,43 @@
 package de.danielweisser.android.plaxosync.client;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URI;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
+import java.util.Collection;
+import java.util.Set;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.ProtocolException;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.RedirectHandler;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.protocol.HttpContext;
-import org.json.JSONArray;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import android.content.Context;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
+import de.danielweisser.android.plaxosync.SyncMetrics;
+import de.danielweisser.android.plaxosync.SyncTracer;
 import de.danielweisser.android.plaxosync.authenticator.PlaxoAuthenticatorActivity;
 
 /**
@@ -55,21 +66,84 @@ public class PlaxoUtilities {
 		return t;
 	}
 
+	private static final String CONTACTS_URL = "http://www.plaxo.com/pdata/contacts/@me/@all";
+
+	/**
+	 * The maximum number of connections of the pooled client. Every prefetched page may be hedged, so at most half of them are used for
+	 * prefetching.
+	 */
+	static final int MAX_CONNECTIONS = 8;
+
+	/**
+	 * The timeouts of the Plaxo requests in ms. Large pages take a while on the server, so the socket timeout is generous.
+	 */
+	private static final int CONNECTION_TIMEOUT = 20 * 1000;
+	private static final int SO_TIMEOUT = 60 * 1000;
+
+	/**
+	 * The timeouts of the photo downloads in ms.
+	 */
+	private static final int PHOTO_CONNECTION_TIMEOUT = 10 * 1000;
+	private static final int PHOTO_SO_TIMEOUT = 20 * 1000;
+
+	/**
+	 * The size of the read buffers and of the body, if the server does not send its length.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The charset of the responses, that do not name one.
+	 */
+	private static final String JSON_CHARSET = "UTF-8";
+
+	private static DefaultHttpClient createHttpClient(String username, String password, SyncMetrics metrics) {
+		BasicHttpParams params = new BasicHttpParams();
+		ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS));
+		HttpConnectionParams.setConnectionTimeout(params, CONNECTION_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, SO_TIMEOUT);
+		DefaultHttpClient httpclient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, createSchemeRegistry()), params);
+		httpclient.setRedirectHandler(new RedirectHandler() {
+			public URI getLocationURI(HttpResponse response, HttpContext context) throws ProtocolException {
+				return null;
+			}
+
+			public boolean isRedirectRequested(HttpResponse response, HttpContext context) {
+				return false;
+			}
+		});
+		httpclient.getCredentialsProvider().setCredentials(new AuthScope(null, -1), new UsernamePasswordCredentials(username, password));
+		CompressedEntity.enable(httpclient);
+		RateLimiter.install(httpclient, metrics);
+		return httpclient;
+	}
+
+	private static SchemeRegistry createSchemeRegistry() {
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+		return schemeRegistry;
+	}
+
+	/**
+	 * @return A client for the photo downloads of a sync, whose connection manager is shut down by the caller
+	 */
+	static DefaultHttpClient createPhotoClient(SyncMetrics metrics) {
+		BasicHttpParams params = new BasicHttpParams();
+		ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS));
+		HttpConnectionParams.setConnectionTimeout(params, PHOTO_CONNECTION_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, PHOTO_SO_TIMEOUT);
+		DefaultHttpClient photoClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, createSchemeRegistry()), params);
+		RateLimiter.install(photoClient, metrics);
+		return photoClient;
+	}
+
 	private static DefaultHttpClient getPlaxoConnection(String username, String password) throws PlaxoLoginException {
 		DefaultHttpClient httpclient = null;
 		try {
-			httpclient = new DefaultHttpClient();
-			httpclient.setRedirectHandler(new RedirectHandler() {
-				public URI getLocationURI(HttpResponse response, HttpContext context) throws ProtocolException {
-					return null;
-				}
-
-				public boolean isRedirectRequested(HttpResponse response, HttpContext context) {
-					return false;
-				}
-			});
-			httpclient.getCredentialsProvider().setCredentials(new AuthScope(null, -1), new UsernamePasswordCredentials(username, password));
-			HttpGet httpget = new HttpGet("http://www.plaxo.com/pdata/contacts/@me/@all?count=1");
+			httpclient = createHttpClient(username, password, null);
+			HttpGet httpget = new HttpGet(CONTACTS_URL + "?count=1");
 			HttpResponse response = httpclient.execute(httpget);
 			HttpEntity entity = response.getEntity();
 
@@ -77,13 +151,7 @@ public class PlaxoUtilities {
 			if (entity != null) {
 				entity.consumeContent();
 			}
-			if (response.getStatusLine().getStatusCode() != 200) {
-				if (response.getStatusLine().getStatusCode() == 401) {
-					throw new PlaxoLoginException("Wrong username or password");
-				} else {
-					throw new PlaxoLoginException("Error on connecting to Plaxo. Error code: " + response.getStatusLine().getStatusCode());
-				}
-			}
+			checkStatus(response);
 		} catch (ClientProtocolException e) {
 			Log.e(TAG, e.getMessage(), e);
 			throw new PlaxoLoginException(e.getMessage());
@@ -94,6 +162,16 @@ public class PlaxoUtilities {
 		return httpclient;
 	}
 
+	static void checkStatus(HttpResponse response) throws PlaxoLoginException {
+		if (response.getStatusLine().getStatusCode() != 200) {
+			if (response.getStatusLine().getStatusCode() == 401) {
+				throw new PlaxoLoginException("Wrong username or password");
+			} else {
+				throw new PlaxoLoginException("Error on connecting to Plaxo. Error code: " + response.getStatusLine().getStatusCode());
+			}
+		}
+	}
+
 	/**
 	 * Connects to Plaxo, authenticates the provided username and password.
 	 * 
@@ -168,71 +246,190 @@ public class PlaxoUtilities {
 		});
 	}
 
-	public static List<Contact> fetchContacts(String username, String password, Date mLastUpdated, final Context context) {
-		final ArrayList<Contact> friendList = new ArrayList<Contact>();
+	/**
+	 * Fetches all contacts. The request is sent with the validators of the last sync, and the validators are updated from the response. When
+	 * the collection has not changed, an empty list is returned and {@link CollectionValidators#isNotModified()} is set. With a prefetch
+	 * window the contacts are fetched in pages by the {@link PagePrefetcher}.
+	 * 
+	 * @param username
+	 *            The user's username
+	 * @param password
+	 *            The password
+	 * @param validators
+	 *            The validators of the contacts collection
+	 * @param projection
+	 *            The fields, that are requested
+	 * @param prefetchWindow
+	 *            The number of pages, that are requested concurrently, or 0 to fetch all contacts with a single request
+	 * @param friendList
+	 *            The buffer, that receives the contacts
+	 * @param retryPolicy
+	 *            The retry policy of the sync
+	 * @param hedgedRequest
+	 *            The hedged requests of the sync
+	 * @param metrics
+	 *            The metrics of the sync
+	 * @return The buffer with the contacts or <code>null</code>, if they could not be fetched completely
+	 */
+	public static ContactBuffer fetchContacts(String username, String password, CollectionValidators validators, FieldProjection projection,
+			int prefetchWindow, ContactBuffer friendList, RetryPolicy retryPolicy, HedgedRequest hedgedRequest, SyncMetrics metrics,
+			final Context context) {
 
 		DefaultHttpClient httpclient = null;
+		SyncTracer.begin("fetchContacts");
 		try {
-			httpclient = getPlaxoConnection(username, password);
-			if (httpclient != null) {
-				HttpGet httpget = new HttpGet("http://www.plaxo.com/pdata/contacts/@me/@all");
-				HttpResponse response = httpclient.execute(httpget);
-				HttpEntity entity = response.getEntity();
+			httpclient = createHttpClient(username, password, metrics);
+			final String url = CONTACTS_URL + "?fields=" + projection.toParameter();
+			if (prefetchWindow > 0) {
+				new PagePrefetcher(httpclient, url, prefetchWindow, retryPolicy, hedgedRequest, metrics).fetch(friendList, validators);
+				Log.d(TAG, "Number of contacts: " + friendList.size());
+				return friendList;
+			}
+
+			HttpGet httpget = new HttpGet(url);
+			validators.addConditionalHeaders(httpget);
+			HttpResponse response = retryPolicy.execute(httpclient, httpget);
+			HttpEntity entity = response.getEntity();
 
+			if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+				Log.d(TAG, "Contacts have not been modified");
+				validators.setNotModified(true);
+			} else {
+				checkStatus(response);
 				if (entity != null) {
-					InputStream contentStream = entity.getContent();
-					parseJSON(friendList, contentStream);
-					entity.consumeContent();
-					Log.d(TAG, "Number of contacts: " + friendList.size());
+					String body = download(entity, metrics);
+					if (validators.updateDigest(body)) {
+						Log.d(TAG, "Contacts are unchanged");
+						validators.setNotModified(true);
+					} else {
+						ContactParser.Page page = parseJSON(friendList, body, null, metrics);
+						if (page.entries < page.total) {
+							throw new IOException("Received " + page.entries + " of " + page.total + " contacts");
+						}
+						validators.update(response);
+						Log.d(TAG, "Number of contacts: " + friendList.size());
+					}
 				}
 			}
+			if (entity != null) {
+				entity.consumeContent();
+			}
 		} catch (PlaxoLoginException e) {
 			Log.e(TAG, e.getMessage(), e);
+			return null;
 		} catch (ClientProtocolException e) {
 			Log.e(TAG, e.getMessage(), e);
+			return null;
 		} catch (IOException e) {
 			Log.e(TAG, e.getMessage(), e);
+			return null;
+		} catch (IllegalStateException e) {
+			// The buffer cannot spill the contacts
+			Log.e(TAG, e.getMessage(), e);
+			return null;
 		} finally {
 			if (httpclient != null) {
 				httpclient.getConnectionManager().shutdown();
 			}
+			SyncTracer.end("fetchContacts");
 		}
 
 		return friendList;
 	}
 
 	/**
-	 * Parses the JSON.
+	 * Reads the body of a response and adds the transferred bytes to the metrics.
+	 */
+	static String download(HttpEntity entity, SyncMetrics metrics) throws IOException {
+		final long start = SystemClock.elapsedRealtime();
+		CountingInputStream in = new CountingInputStream(entity.getContent());
+		String body = readBody(in, getCharset(entity), entity.getContentLength());
+		if (entity instanceof CompressedEntity) {
+			CompressedEntity compressed = (CompressedEntity) entity;
+			metrics.addDownload(compressed.getWireCount(), in.getCount(), SystemClock.elapsedRealtime() - start);
+			metrics.addDecodeTime(in.getTime() - compressed.getWireTime());
+		} else {
+			metrics.addDownload(in.getCount(), in.getCount(), SystemClock.elapsedRealtime() - start);
+		}
+		return body;
+	}
+
+	/**
+	 * @return The charset of the response or UTF-8, which is the default of JSON, but not of the platform on every device
+	 */
+	private static String getCharset(HttpEntity entity) {
+		String charset = EntityUtils.getContentCharSet(entity);
+		return charset != null ? charset : JSON_CHARSET;
+	}
+
+	/**
+	 * Reads the body of the response. The body is decoded straight into a single buffer, that is sized by the length of the body, when it is
+	 * known. The parser of the platform only parses strings, so the body is not passed as a stream.
 	 * 
-	 * @param friendList
-	 *            List with contacts
 	 * @param contentStream
 	 *            JSON from HTTP
-	 * @throws FileNotFoundException
+	 * @param charset
+	 *            The charset of the body
+	 * @param length
+	 *            The length of the body in bytes or a negative number, if it is not known
 	 * @throws IOException
 	 */
-	private static void parseJSON(final ArrayList<Contact> friendList, InputStream contentStream) throws FileNotFoundException, IOException {
-		Log.d(TAG, "Trying to parse the JSON");
-		StringBuilder builder = new StringBuilder();
-		BufferedReader inJson = new BufferedReader(new InputStreamReader(contentStream));
-		String line;
-		while ((line = inJson.readLine()) != null) {
-			builder.append(line);
+	private static String readBody(InputStream contentStream, String charset, long length) throws IOException {
+		StringBuilder builder = new StringBuilder(length > 0 && length < Integer.MAX_VALUE ? (int) length : BUFFER_SIZE);
+		Reader reader = new InputStreamReader(contentStream, charset);
+		try {
+			char[] buffer = new char[BUFFER_SIZE];
+			int n;
+			while ((n = reader.read(buffer)) >= 0) {
+				builder.append(buffer, 0, n);
+			}
+		} finally {
+			reader.close();
 		}
+		return builder.toString();
+	}
 
+	static byte[] readBytes(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		try {
-			JSONObject allData = new JSONObject(builder.toString());
-			JSONArray jsonArray = allData.getJSONArray("entry");
-			for (int i = 0; i < jsonArray.length(); i++) {
-				Contact u = Contact.valueOf(jsonArray.getJSONObject(i));
-				if (u != null && u.getFirstName() != null && u.getLastName() != null) {
-					friendList.add(u);
-				}
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, n);
 			}
-		} catch (JSONException e) {
-			Log.e(TAG, e.getMessage(), e);
+		} finally {
+			in.close();
 		}
+		return out.toByteArray();
+	}
 
-		inJson.close();
+	/**
+	 * Parses the JSON.
+	 * 
+	 * @param friendList
+	 *            List with contacts
+	 * @param body
+	 *            JSON from HTTP
+	 * @param ids
+	 *            Receives the ids of the entries or <code>null</code>
+	 * @return The counts of the page
+	 * @throws IOException
+	 *             If the response is not valid
+	 */
+	static ContactParser.Page parseJSON(final Collection<Contact> friendList, String body, Set<String> ids, SyncMetrics metrics)
+			throws IOException {
+		Log.d(TAG, "Trying to parse the JSON");
+		final long start = SystemClock.elapsedRealtime();
+		SyncTracer.begin("parse");
+		try {
+			return ContactParser.parse(friendList, body, ids);
+		} catch (JSONException e) {
+			IOException ioe = new IOException("Invalid contacts: " + e.getMessage());
+			ioe.initCause(e);
+			throw ioe;
+		} finally {
+			SyncTracer.end("parse");
+			metrics.addParseTime(SystemClock.elapsedRealtime() - start);
+		}
 	}
 }
@@ -0,0 +1,164 @@
+package de.danielweisser.android.plaxosync.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import android.os.SystemClock;
+import android.util.Log;
+import de.danielweisser.android.plaxosync.SyncMetrics;
+
+/**
+ * Limits the rate of the requests to every host with a token bucket. The buckets are shared by all clients of the process, so that
+ * concurrent syncs of several accounts and the photo downloads together stay below the rate, that a host accepts. Every client registers
+ * the limiter with {@link #install(AbstractHttpClient, SyncMetrics)}, so that every request and every retry takes a token before it is
+ * sent. The waits are added to the metrics of the sync, that owns the client.
+ *
+ * The buckets of hosts, that have not been configured, are dropped, when they have been refilled completely, because a new bucket behaves
+ * the same. So photo hosts do not accumulate in a long running process.
+ */
+public class RateLimiter {
+	private static final String TAG = "RateLimiter";
+
+	/**
+	 * The rate and burst of the hosts, that have not been configured.
+	 */
+	private static final double DEFAULT_RATE = 10;
+	private static final int DEFAULT_BURST = 10;
+
+	private static final HashMap<String, Bucket> buckets = new HashMap<String, Bucket>();
+
+	static {
+		configure("www.plaxo.com", 5, 10);
+	}
+
+	private RateLimiter() {
+	}
+
+	/**
+	 * A token bucket. A request, that finds the bucket empty, reserves the next token and waits until it is available.
+	 */
+	private static class Bucket {
+		private final double tokensPerMs;
+		private final double capacity;
+		private final boolean configured;
+		private double tokens;
+		private long last;
+
+		Bucket(double permitsPerSecond, int burst, boolean configured) {
+			this.tokensPerMs = permitsPerSecond / 1000;
+			this.capacity = burst;
+			this.configured = configured;
+			this.tokens = burst;
+			this.last = SystemClock.elapsedRealtime();
+		}
+
+		/**
+		 * @return true, if the bucket has been refilled completely since the last request
+		 */
+		synchronized boolean isIdle(long now) {
+			return tokens + (now - last) * tokensPerMs >= capacity;
+		}
+
+		/**
+		 * Takes a token.
+		 *
+		 * @return The time in ms until the token is available
+		 */
+		synchronized long reserve() {
+			final long now = SystemClock.elapsedRealtime();
+			tokens = Math.min(capacity, tokens + (now - last) * tokensPerMs);
+			last = now;
+			tokens -= 1;
+			return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerMs);
+		}
+	}
+
+	/**
+	 * Sets the rate of a host.
+	 *
+	 * @param host
+	 *            The host name
+	 * @param permitsPerSecond
+	 *            The sustained number of requests per second
+	 * @param burst
+	 *            The number of requests, that may be sent at once
+	 */
+	public static synchronized void configure(String host, double permitsPerSecond, int burst) {
+		buckets.put(host, new Bucket(permitsPerSecond, burst, true));
+	}
+
+	/**
+	 * Lets all requests of the client pass the limiter.
+	 *
+	 * @param metrics
+	 *            The metrics of the sync, that owns the client, or <code>null</code>
+	 */
+	public static void install(AbstractHttpClient httpclient, final SyncMetrics metrics) {
+		httpclient.addRequestInterceptor(new HttpRequestInterceptor() {
+			public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+				HttpHost host = (HttpHost) context.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+				if (host != null) {
+					acquire(host.getHostName(), metrics);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Blocks until a request to the host may be sent.
+	 *
+	 * @param metrics
+	 *            The metrics, that receive the wait, or <code>null</code>
+	 * @throws InterruptedIOException
+	 *             If the thread has been interrupted while waiting
+	 */
+	public static void acquire(String host, SyncMetrics metrics) throws InterruptedIOException {
+		final long wait = getBucket(host).reserve();
+		if (wait > 0) {
+			Log.d(TAG, "Wait " + wait + "ms for " + host);
+			if (metrics != null) {
+				metrics.addRateLimitWait(wait, 1);
+			}
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Waiting for " + host + " has been interrupted");
+			}
+		}
+	}
+
+	private static synchronized Bucket getBucket(String host) {
+		Bucket bucket = buckets.get(host);
+		if (bucket == null) {
+			evictIdle();
+			bucket = new Bucket(DEFAULT_RATE, DEFAULT_BURST, false);
+			buckets.put(host, bucket);
+		}
+		return bucket;
+	}
+
+	/**
+	 * Drops the idle buckets of the hosts, that have not been configured. It runs, when a bucket is added, so the number of buckets is
+	 * bounded by the hosts, that are requested at the same time.
+	 */
+	private static void evictIdle() {
+		final long now = SystemClock.elapsedRealtime();
+		for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext();) {
+			Bucket bucket = it.next();
+			if (!bucket.configured && bucket.isIdle(now)) {
+				it.remove();
+			}
+		}
+	}
+}
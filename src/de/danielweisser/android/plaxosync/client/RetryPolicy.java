@@ -0,0 +1,223 @@
+package de.danielweisser.android.plaxosync.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.SyncResult;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Retries single requests, that failed with a network error or a temporary server error, with exponential backoff and jitter. When a sync
+ * fails nevertheless, the next sync of the account is delayed, either as long as the server asked for with Retry-After or by the backoff
+ * of the consecutive failed syncs. The delay is passed to the sync manager with <code>SyncResult.delayUntil</code> since Android 4.3. The
+ * older platforms do not know it, so the end of the delay is kept in the user data <code>sync.notBefore</code> of the account and the
+ * periodic syncs before it are skipped with {@link #isDelayed(AccountManager, Account)}.
+ */
+public class RetryPolicy {
+	private static final String TAG = "RetryPolicy";
+
+	/**
+	 * The number of attempts for a single request.
+	 */
+	private static final int MAX_ATTEMPTS = 3;
+
+	/**
+	 * The backoff of the requests in ms.
+	 */
+	private static final long BASE_DELAY = 1000;
+	private static final long MAX_DELAY = 30 * 1000;
+
+	/**
+	 * The backoff of failed syncs in seconds.
+	 */
+	private static final long BASE_SYNC_DELAY = 5 * 60;
+	private static final long MAX_SYNC_DELAY = 6 * 60 * 60;
+
+	private static final String KEY_FAILURES = "sync.failures";
+	private static final String KEY_NOT_BEFORE = "sync.notBefore";
+
+	private static final int SC_TOO_MANY_REQUESTS = 429;
+
+	private static final Random random = new Random();
+
+	/**
+	 * The longest delay in ms, that the server asked for with Retry-After.
+	 */
+	private long retryAfter = 0;
+
+	/**
+	 * Executes the request and retries it on network errors and temporary server errors. The response of the last attempt is returned, even
+	 * if it is an error.
+	 *
+	 * @throws IOException
+	 *             If the last attempt failed with a network error or the request has been interrupted
+	 */
+	public HttpResponse execute(HttpClient httpclient, HttpUriRequest request) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			long delay;
+			try {
+				HttpResponse response = httpclient.execute(request);
+				int status = response.getStatusLine().getStatusCode();
+				if (!isTemporary(status)) {
+					return response;
+				}
+				long serverDelay = getRetryAfter(response);
+				if (attempt >= MAX_ATTEMPTS || serverDelay > MAX_DELAY) {
+					return response;
+				}
+				if (response.getEntity() != null) {
+					response.getEntity().consumeContent();
+				}
+				delay = Math.max(serverDelay, backoff(attempt));
+				Log.w(TAG, "Status " + status + " for " + request.getURI() + ", retry in " + delay + "ms");
+			} catch (ClientProtocolException e) {
+				throw e;
+			} catch (IOException e) {
+				if (attempt >= MAX_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+					throw e;
+				}
+				delay = backoff(attempt);
+				Log.w(TAG, e.getMessage() + " for " + request.getURI() + ", retry in " + delay + "ms");
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Retry has been interrupted");
+			}
+		}
+	}
+
+	/**
+	 * Delays the next sync of the account after a failed sync.
+	 */
+	public void onSyncFailed(AccountManager accountManager, Account account, SyncResult syncResult) {
+		int failures = 1;
+		try {
+			String value = accountManager.getUserData(account, KEY_FAILURES);
+			if (value != null) {
+				failures = Integer.parseInt(value) + 1;
+			}
+		} catch (NumberFormatException e) {
+			// Start the backoff again
+		}
+		accountManager.setUserData(account, KEY_FAILURES, failures + "");
+
+		long delay = Math.min(MAX_SYNC_DELAY, BASE_SYNC_DELAY << Math.min(failures - 1, 10));
+		delay = delay / 2 + random.nextInt((int) (delay / 2) + 1);
+		delay = Math.max(delay, getRetryAfter() / 1000);
+		Log.i(TAG, "Sync failed " + failures + " times, delay the next sync by " + delay + "s");
+		final long delayUntil = System.currentTimeMillis() / 1000 + delay;
+		if (Build.VERSION.SDK_INT < 18 || !setDelayUntil(syncResult, delayUntil)) {
+			accountManager.setUserData(account, KEY_NOT_BEFORE, delayUntil + "");
+		}
+	}
+
+	/**
+	 * Sets <code>SyncResult.delayUntil</code>, which is not available with the target platform.
+	 *
+	 * @return false, if the field cannot be set
+	 */
+	private static boolean setDelayUntil(SyncResult syncResult, long delayUntil) {
+		try {
+			SyncResult.class.getField("delayUntil").setLong(syncResult, delayUntil);
+			return true;
+		} catch (NoSuchFieldException e) {
+			Log.w(TAG, "Cannot delay the next sync: " + e.getMessage());
+		} catch (IllegalAccessException e) {
+			Log.w(TAG, "Cannot delay the next sync: " + e.getMessage());
+		}
+		return false;
+	}
+
+	/**
+	 * @return true, if the account is still within the delay of a failed sync, that the sync manager does not know
+	 */
+	public static boolean isDelayed(AccountManager accountManager, Account account) {
+		String value = accountManager.getUserData(account, KEY_NOT_BEFORE);
+		if (value == null) {
+			return false;
+		}
+		try {
+			return System.currentTimeMillis() / 1000 < Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Resets the backoff of the account after a successful sync.
+	 */
+	public void onSyncSucceeded(AccountManager accountManager, Account account) {
+		if (accountManager.getUserData(account, KEY_FAILURES) != null) {
+			accountManager.setUserData(account, KEY_FAILURES, null);
+		}
+		if (accountManager.getUserData(account, KEY_NOT_BEFORE) != null) {
+			accountManager.setUserData(account, KEY_NOT_BEFORE, null);
+		}
+	}
+
+	/**
+	 * @return The longest delay in ms, that the server asked for
+	 */
+	public synchronized long getRetryAfter() {
+		return retryAfter;
+	}
+
+	private static boolean isTemporary(int status) {
+		return status == SC_TOO_MANY_REQUESTS || status == HttpStatus.SC_SERVICE_UNAVAILABLE || status >= 500;
+	}
+
+	/**
+	 * @return A random delay up to the exponential backoff of the attempt ("full jitter")
+	 */
+	private static long backoff(int attempt) {
+		long cap = Math.min(MAX_DELAY, BASE_DELAY << (attempt - 1));
+		synchronized (random) {
+			return 1 + (long) (random.nextDouble() * cap);
+		}
+	}
+
+	/**
+	 * Reads the Retry-After header, which is either a number of seconds or a HTTP date.
+	 *
+	 * @return The delay in ms or 0
+	 */
+	private long getRetryAfter(HttpResponse response) {
+		Header header = response.getFirstHeader("Retry-After");
+		if (header == null) {
+			return 0;
+		}
+		long delay = 0;
+		String value = header.getValue().trim();
+		try {
+			delay = Long.parseLong(value) * 1000;
+		} catch (NumberFormatException e) {
+			try {
+				SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+				delay = format.parse(value).getTime() - System.currentTimeMillis();
+			} catch (ParseException pe) {
+				Log.w(TAG, "Invalid Retry-After: " + value);
+			}
+		}
+		delay = Math.max(0, delay);
+		synchronized (this) {
+			retryAfter = Math.max(retryAfter, delay);
+		}
+		return delay;
+	}
+}
@@ -0,0 +1,24 @@
+package de.danielweisser.android.plaxosync.platform;
+
+/**
+ * A batch, that a {@link ContactSink} could not apply. The cause is the failure of the store. A temporary failure, e.g. a transaction, that
+ * was too large, says nothing about the contacts of the batch, the other failures are caused by a contact of the batch.
+ */
+public class ApplyException extends Exception {
+	private final boolean temporary;
+
+	/**
+	 * @param cause
+	 *            The failure of the store
+	 * @param temporary
+	 *            true, if the contacts are not known to be broken
+	 */
+	public ApplyException(Throwable cause, boolean temporary) {
+		super(cause.getClass().getSimpleName() + ": " + cause.getMessage(), cause);
+		this.temporary = temporary;
+	}
+
+	public boolean isTemporary() {
+		return temporary;
+	}
+}
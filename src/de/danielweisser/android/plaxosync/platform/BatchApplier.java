@@ -0,0 +1,305 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import de.danielweisser.android.plaxosync.SyncLog;
+import de.danielweisser.android.plaxosync.SyncMetrics;
+import de.danielweisser.android.plaxosync.SyncTracer;
+
+/**
+ * Applies the operations of several contacts within shared batches. The size of the batches is chosen by a {@link BatchSizeController}.
+ * When a batch fails, it is split at contact boundaries until the contact, that causes the failure, is found. The remaining contacts are
+ * applied and the failing contact is put into the quarantine. Only a failure of the sink splits a batch. When the mirror cannot be
+ * written after a batch has been committed, the mirrored state of its contacts is dropped, so that the next sync reads them again.
+ *
+ * Only the batches of an import may yield, see {@link #setYieldSource(ContactSnapshotSource)}. A batch with yield points may be partly
+ * committed, when it fails, so the committed contacts are looked up before the rest of the batch is split.
+ */
+public class BatchApplier {
+	private static final SyncLog LOG = SyncLog.get("BatchApplier");
+
+	private final ContactSink sink;
+	private final ContactQuarantine quarantine;
+	private final MirrorStore mirror;
+	private final DeferredPhotoQueue deferredPhotos;
+	private final HashSet<Long> deferredIds;
+	private final String accountName;
+	private final SyncCounters counters;
+	private final TimeSlicer slicer;
+	private final SyncMetrics metrics;
+	private final BatchSizeController batchSize = new BatchSizeController();
+
+	private final ArrayList<ContactOperations> pending = new ArrayList<ContactOperations>();
+	private int pendingSize = 0;
+	private final ArrayList<Long> insertedIds = new ArrayList<Long>();
+	private boolean dryRun = false;
+	private PendingAggregation pendingAggregation = null;
+	private ContactSnapshotSource yieldSource = null;
+
+	public BatchApplier(ContactSink sink, ContactQuarantine quarantine, MirrorStore mirror, String accountName, TimeSlicer slicer,
+			SyncMetrics metrics, SyncCounters counters) {
+		this.sink = sink;
+		this.quarantine = quarantine;
+		this.mirror = mirror;
+		this.deferredPhotos = mirror.getDeferredPhotos();
+		this.deferredIds = deferredPhotos.getIds(accountName);
+		this.accountName = accountName;
+		this.slicer = slicer;
+		this.metrics = metrics;
+		this.counters = counters;
+	}
+
+	/**
+	 * In a dry run the batches are only passed to the sink. The mirror, the queue of the deferred pictures and the quarantine are not
+	 * changed and the batches are not added to the metrics. The batches have a fixed size, because the duration of the
+	 * planned batches says nothing about the contacts provider, so that the estimated number of batches does not depend on the device.
+	 */
+	public void setDryRun(boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	/**
+	 * Adds the operations of a contact. The pending batch is applied first, if the operations do not fit into it. Unchanged contacts are only
+	 * added, when their state has to be written to the mirror or to the queue of the deferred pictures.
+	 *
+	 * @throws InterruptedException
+	 *             If the sync has been canceled
+	 */
+	public void add(ContactOperations ops) throws InterruptedException {
+		if (ops.isEmpty() && ops.isMirrored() && !ops.isPhotoDeferred() && !deferredIds.contains(ops.getRawContactId())) {
+			return;
+		}
+		final int maxSize = dryRun ? BatchSizeController.INITIAL_BATCH_SIZE : batchSize.getBatchSize();
+		if (!pending.isEmpty() && pendingSize + ops.size() > maxSize) {
+			flush();
+		}
+		pending.add(ops);
+		pendingSize += ops.size();
+	}
+
+	/**
+	 * Applies the pending batch.
+	 *
+	 * @throws InterruptedException
+	 *             If the sync has been canceled
+	 */
+	public void flush() throws InterruptedException {
+		if (pending.isEmpty()) {
+			return;
+		}
+		apply(new ArrayList<ContactOperations>(pending), true);
+		pending.clear();
+		pendingSize = 0;
+	}
+
+	/**
+	 * Records the inserted raw contacts, whose aggregation is suspended, until their aggregation is resumed.
+	 */
+	public void setPendingAggregation(PendingAggregation pendingAggregation) {
+		this.pendingAggregation = pendingAggregation;
+	}
+
+	/**
+	 * Lets the store commit the batches between the contacts, when a batch only inserts new contacts. The contacts of a failed batch, that
+	 * have been committed, are found by their source ids in the source. So it may only be set for an import into an account, that has no
+	 * other raw contacts with these source ids. The batches of a split are applied without yield points.
+	 *
+	 * @param source
+	 *            The source of the sink
+	 */
+	public void setYieldSource(ContactSnapshotSource source) {
+		this.yieldSource = source;
+	}
+
+	/**
+	 * @return The ids of all raw contacts, that have been inserted so far
+	 */
+	public List<Long> getInsertedIds() {
+		return insertedIds;
+	}
+
+	private void apply(List<ContactOperations> contacts, boolean mayYield) throws InterruptedException {
+		slicer.checkpoint();
+		int operations = 0;
+		boolean yieldAllowed = mayYield && yieldSource != null && !dryRun && contacts.size() > 1;
+		for (ContactOperations ops : contacts) {
+			operations += ops.size();
+			yieldAllowed &= ops.isNew();
+		}
+
+		long[] rawContactIds = null;
+		if (operations > 0) {
+			final long start = System.nanoTime();
+			SyncTracer.begin("applyBatch");
+			try {
+				rawContactIds = sink.apply(contacts, yieldAllowed);
+			} catch (ApplyException e) {
+				if (e.isTemporary()) {
+					// The batch may have been too large for the transaction, but the contact itself is not known to be broken
+					batchSize.onFailed();
+				}
+				isolate(yieldAllowed ? skipCommitted(contacts) : contacts, e, !e.isTemporary());
+				return;
+			} finally {
+				SyncTracer.end("applyBatch");
+			}
+			final long duration = (System.nanoTime() - start) / 1000000;
+			if (!dryRun) {
+				batchSize.onApplied(operations, duration);
+				metrics.addBatch(operations, duration);
+			}
+		}
+		if (rawContactIds == null) {
+			rawContactIds = new long[contacts.size()];
+			for (int i = 0; i < contacts.size(); i++) {
+				rawContactIds[i] = contacts.get(i).getRawContactId();
+			}
+		}
+		onApplied(contacts, rawContactIds);
+	}
+
+	/**
+	 * Finds the contacts of a failed batch with yield points, that the store has committed before the failure, and records them as applied.
+	 * A contact is committed completely or not at all, because the batch only yields before the first operation of a contact.
+	 *
+	 * @return The contacts, that have not been written
+	 */
+	private List<ContactOperations> skipCommitted(List<ContactOperations> contacts) {
+		final SourceIdIndex committed = yieldSource.getRawContacts(accountName, new HashSet<Long>());
+		final ArrayList<ContactOperations> remaining = new ArrayList<ContactOperations>(contacts.size());
+		final ArrayList<ContactOperations> applied = new ArrayList<ContactOperations>(contacts.size());
+		final long[] rawContactIds = new long[contacts.size()];
+		for (ContactOperations ops : contacts) {
+			final long rawContactId = committed.get(ops.getSourceId());
+			if (rawContactId == SourceIdIndex.NOT_FOUND) {
+				remaining.add(ops);
+			} else {
+				rawContactIds[applied.size()] = rawContactId;
+				applied.add(ops);
+			}
+		}
+		LOG.w("Failed batch has committed " + applied.size() + " of " + contacts.size() + " contacts");
+		onApplied(applied, rawContactIds);
+		return remaining;
+	}
+
+	/**
+	 * Records the contacts of a committed batch. The batch is never applied again from here on, a failure of the mirror only drops the
+	 * mirrored state of the contacts.
+	 */
+	private void onApplied(List<ContactOperations> contacts, long[] rawContactIds) {
+		final String[] imageDigests = new String[contacts.size()];
+		for (int i = 0; i < contacts.size(); i++) {
+			imageDigests[i] = onApplied(contacts.get(i), rawContactIds[i]);
+		}
+		if (!dryRun) {
+			try {
+				mirror(contacts, rawContactIds, imageDigests);
+			} catch (MirrorException e) {
+				forget(contacts, rawContactIds, e);
+			} catch (IllegalArgumentException e) {
+				forget(contacts, rawContactIds, e);
+			}
+		}
+		for (ContactOperations ops : contacts) {
+			// The picture is not needed anymore, so it does not have to stay in memory for the rest of the sync
+			ops.getContact().setImage(null);
+			ops.setDisplayPhoto(null);
+		}
+	}
+
+	/**
+	 * Counts an applied contact and writes its picture, if it is too large for the batch.
+	 *
+	 * @return The digest of the picture on the phone or <code>null</code>, if it has to be written again
+	 */
+	private String onApplied(ContactOperations ops, long rawContactId) {
+		if (ops.isNew()) {
+			insertedIds.add(rawContactId);
+			counters.numInserts++;
+		} else if (!ops.isEmpty()) {
+			counters.numUpdates++;
+		}
+		String imageDigest = ops.getImageDigest();
+		if (ops.getDisplayPhoto() != null) {
+			SyncTracer.begin("writePhoto");
+			try {
+				if (!sink.writePhoto(rawContactId, ops.getDisplayPhoto())) {
+					// Write the picture again with the next sync
+					imageDigest = null;
+				}
+			} finally {
+				SyncTracer.end("writePhoto");
+			}
+		}
+		return imageDigest;
+	}
+
+	/**
+	 * Writes the state of the applied contacts to the mirror and the queue of the deferred pictures in one transaction.
+	 */
+	private void mirror(List<ContactOperations> contacts, long[] rawContactIds, String[] imageDigests) {
+		mirror.beginTransaction();
+		try {
+			for (int i = 0; i < contacts.size(); i++) {
+				final ContactOperations ops = contacts.get(i);
+				final long rawContactId = rawContactIds[i];
+				final String imageDigest = imageDigests[i];
+				if (ops.isNew() && pendingAggregation != null) {
+					pendingAggregation.add(accountName, rawContactId);
+				}
+				mirror.put(accountName, rawContactId, ops.getContact(), imageDigest, imageDigest != null ? ops.getImageURL() : null);
+				if (ops.isPhotoDeferred()) {
+					deferredPhotos.add(accountName, rawContactId, ops.getContact().getImageURL());
+				} else if (deferredIds.contains(rawContactId)) {
+					deferredPhotos.remove(rawContactId);
+				}
+			}
+			mirror.commit();
+		} finally {
+			mirror.endTransaction();
+		}
+		// The ids of the queued pictures follow the queue only after the transaction has been committed
+		for (int i = 0; i < contacts.size(); i++) {
+			if (contacts.get(i).isPhotoDeferred()) {
+				deferredIds.add(rawContactIds[i]);
+			} else {
+				deferredIds.remove(rawContactIds[i]);
+			}
+		}
+	}
+
+	/**
+	 * Drops the mirrored state of contacts, whose mirror transaction has failed, so that the next sync reads them from the provider.
+	 */
+	private void forget(List<ContactOperations> contacts, long[] rawContactIds, Exception e) {
+		LOG.e("Cannot mirror " + contacts.size() + " applied contacts", e);
+		for (int i = 0; i < contacts.size(); i++) {
+			mirror.delete(rawContactIds[i]);
+		}
+	}
+
+	private void isolate(List<ContactOperations> contacts, ApplyException e, boolean isContactError) throws InterruptedException {
+		if (contacts.isEmpty()) {
+			return;
+		}
+		if (contacts.size() == 1) {
+			ContactOperations ops = contacts.get(0);
+			LOG.e("Cannot apply the operations of contact " + ops.getSourceId(), e.getCause());
+			if (isContactError && !dryRun) {
+				quarantine.add(ops.getContact(), e.getMessage());
+			} else if (!isContactError) {
+				// The contact has not been written for a temporary reason, so the collection has to be fetched again
+				counters.numIoExceptions++;
+			}
+			counters.numSkippedEntries++;
+			return;
+		}
+		LOG.w("Split failed batch with " + contacts.size() + " contacts: " + e.getMessage());
+		int middle = contacts.size() / 2;
+		apply(contacts.subList(0, middle), false);
+		apply(contacts.subList(middle, contacts.size()), false);
+	}
+}
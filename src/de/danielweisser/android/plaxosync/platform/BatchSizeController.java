@@ -0,0 +1,60 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import de.danielweisser.android.plaxosync.MemoryGovernor;
+
+/**
+ * Chooses the number of operations for the next batch from the duration of the previous batches. The size grows additively as long as the
+ * batches finish within the target duration and is halved when a batch takes longer (AIMD), so that a batch holds the contacts provider
+ * only for a short time on slow devices, while fast devices use large batches.
+ */
+public class BatchSizeController {
+
+	/**
+	 * The duration of an applyBatch call in ms, that the controller aims at.
+	 */
+	private static final long TARGET_DURATION = 250;
+
+	private static final int MIN_BATCH_SIZE = 10;
+	private static final int MAX_BATCH_SIZE = 500;
+	/**
+	 * The size of the first batch, which is also the fixed size of the batches of a dry run.
+	 */
+	static final int INITIAL_BATCH_SIZE = 100;
+	private static final int INCREASE = 10;
+
+	private int batchSize = INITIAL_BATCH_SIZE;
+
+	/**
+	 * @return The maximum number of operations for the next batch, reduced under memory pressure
+	 */
+	public synchronized int getBatchSize() {
+		return MemoryGovernor.scale(batchSize, MIN_BATCH_SIZE);
+	}
+
+	/**
+	 * Adjusts the batch size after a batch has been applied.
+	 *
+	 * @param operations
+	 *            The number of operations in the batch
+	 * @param duration
+	 *            The duration of the batch in ms
+	 */
+	public synchronized void onApplied(int operations, long duration) {
+		if (operations * 2 < batchSize) {
+			// The last batch of a sync and the halves of a split batch say little about the current size
+			return;
+		}
+		if (duration > TARGET_DURATION) {
+			batchSize = Math.max(MIN_BATCH_SIZE, batchSize / 2);
+		} else {
+			batchSize = Math.min(MAX_BATCH_SIZE, batchSize + INCREASE);
+		}
+	}
+
+	/**
+	 * Halves the batch size after a batch has been rejected, e.g. because it exceeded the size of a binder transaction.
+	 */
+	public synchronized void onFailed() {
+		batchSize = Math.max(MIN_BATCH_SIZE, batchSize / 2);
+	}
+}
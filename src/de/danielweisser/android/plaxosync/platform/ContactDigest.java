@@ -0,0 +1,71 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import de.danielweisser.android.plaxosync.SyncLog;
+import de.danielweisser.android.plaxosync.client.Address;
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * The digests of pictures and contacts. A picture is compared by its digest, because the platform rescales the written picture, and a
+ * quarantined contact is recognized by the fingerprint of its fields.
+ */
+public class ContactDigest {
+	private static final SyncLog LOG = SyncLog.get("ContactDigest");
+
+	private ContactDigest() {
+	}
+
+	/**
+	 * Calculates a digest of the picture, that is stored next to the photo, because the platform rescales the written display photo. It is also
+	 * used for other fingerprints of contact data.
+	 *
+	 * @param photo
+	 *            The picture
+	 * @return The hex encoded digest or <code>null</code>, when there is no picture
+	 */
+	public static String digest(byte[] photo) {
+		if (photo == null) {
+			return null;
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(photo);
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			LOG.e(e.getMessage(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Calculates the fingerprint of the fields of a contact, that is independent of its normalization.
+	 */
+	public static String fingerprint(Contact c) {
+		StringBuilder sb = new StringBuilder();
+		String[] fields = new String[] { c.getNamePrefix(), c.getFirstName(), c.getLastName(), c.getWorkEmail(), c.getHomeEmail(), c.getImageURL(),
+				c.getCellWorkPhone(), c.getWorkPhone(), c.getWorkFax(), c.getWorkURL(), c.getCellHomePhone(), c.getHomePhone(), c.getHomeFax(),
+				c.getHomeURL(), c.getCompany(), c.getTitle(), c.getDateOfBirth() };
+		for (String field : fields) {
+			sb.append(ContactNormalizer.normalize(field)).append('\u0000');
+		}
+		for (Address a : new Address[] { c.getWorkAddress(), c.getHomeAddress() }) {
+			// A missing address has the same fingerprint as an empty one
+			String[] addressFields = a == null ? new String[5] : new String[] { a.getStreet(), a.getCity(), a.getState(), a.getZip(), a.getCountry() };
+			for (String field : addressFields) {
+				sb.append(ContactNormalizer.normalize(field)).append('\u0000');
+			}
+		}
+		try {
+			return digest(sb.toString().getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			return Integer.toHexString(sb.toString().hashCode());
+		}
+	}
+}
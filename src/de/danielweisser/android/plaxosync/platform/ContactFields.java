@@ -0,0 +1,71 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import de.danielweisser.android.plaxosync.client.Address;
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * The text fields of a contact in the order of the columns of the {@link ContactMirror} and the records of the {@link ContactSnapshot}.
+ */
+public class ContactFields {
+
+	private ContactFields() {
+	}
+
+	/**
+	 * @return The text fields of the contact in the order of the columns
+	 */
+	static String[] get(Contact c) {
+		return new String[] { c.getNamePrefix(), c.getFirstName(), c.getLastName(), c.getWorkEmail(), c.getHomeEmail(), c.getCellWorkPhone(),
+				c.getWorkPhone(), c.getWorkFax(), c.getWorkURL(), c.getCellHomePhone(), c.getHomePhone(), c.getHomeFax(), c.getHomeURL(),
+				c.getCompany(), c.getTitle(), c.getDateOfBirth() };
+	}
+
+	/**
+	 * Sets the text fields, that have been read in the order of the columns.
+	 */
+	static void set(Contact contact, String[] v) {
+		contact.setNamePrefix(v[0]);
+		contact.setFirstName(v[1]);
+		contact.setLastName(v[2]);
+		contact.setWorkEmail(v[3]);
+		contact.setHomeEmail(v[4]);
+		contact.setCellWorkPhone(v[5]);
+		contact.setWorkPhone(v[6]);
+		contact.setWorkFax(v[7]);
+		contact.setWorkURL(v[8]);
+		contact.setCellHomePhone(v[9]);
+		contact.setHomePhone(v[10]);
+		contact.setHomeFax(v[11]);
+		contact.setHomeURL(v[12]);
+		contact.setCompany(v[13]);
+		contact.setTitle(v[14]);
+		contact.setDateOfBirth(v[15]);
+	}
+
+	/**
+	 * @return A copy of the mirrored state of the contact, the picture itself is not copied
+	 */
+	static Contact copy(Contact contact) {
+		Contact copy = new Contact();
+		copy.setID(contact.getID());
+		copy.setImageDigest(contact.getImageDigest());
+		copy.setImageURL(contact.getImageURL());
+		set(copy, get(contact));
+		copy.setWorkAddress(copy(contact.getWorkAddress()));
+		copy.setHomeAddress(copy(contact.getHomeAddress()));
+		return copy;
+	}
+
+	private static Address copy(Address address) {
+		if (address == null) {
+			return null;
+		}
+		Address copy = new Address();
+		copy.setStreet(address.getStreet());
+		copy.setCity(address.getCity());
+		copy.setState(address.getState());
+		copy.setZip(address.getZip());
+		copy.setCountry(address.getCountry());
+		return copy;
+	}
+}
@@ -1,46 +1,53 @@
 package de.danielweisser.android.plaxosync.platform;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map.Entry;
 
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
-import android.content.ContentProviderResult;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
 import android.content.SyncResult;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
-import android.net.Uri;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
-import android.provider.ContactsContract.CommonDataKinds.Email;
-import android.provider.ContactsContract.CommonDataKinds.Organization;
-import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.CommonDataKinds.Photo;
-import android.provider.ContactsContract.CommonDataKinds.StructuredName;
-import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
-import android.provider.ContactsContract.CommonDataKinds.Website;
-import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Groups;
-import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.Settings;
+import android.text.TextUtils;
 import android.util.Log;
 import de.danielweisser.android.plaxosync.Constants;
-import de.danielweisser.android.plaxosync.client.Address;
+import de.danielweisser.android.plaxosync.SyncMetrics;
+import de.danielweisser.android.plaxosync.client.CollectionValidators;
 import de.danielweisser.android.plaxosync.client.Contact;
+import de.danielweisser.android.plaxosync.client.FieldProjection;
 
 /**
- * Class for managing contacts sync related operations
+ * Class for managing contacts sync related operations. The contacts are synchronized by the {@link ContactSynchronizer}, the manager opens
+ * its mirror and quarantine for the account and reports its counters in the sync result.
  */
 public class ContactManager {
 	private static final String TAG = "ContactManager";
 
+	private final ContactSnapshotSource source;
+	private final ContactSink sink;
+
+	/**
+	 * Synchronizes with the contacts provider.
+	 */
+	public ContactManager() {
+		this(null, null);
+	}
+
+	/**
+	 * Synchronizes with another store, e.g. a {@link MemoryContactStore}.
+	 */
+	public ContactManager(ContactSnapshotSource source, ContactSink sink) {
+		this.source = source;
+		this.sink = sink;
+	}
+
 	/**
 	 * Synchronize raw contacts
 	 * 
@@ -49,220 +56,201 @@ public class ContactManager {
 	 * @param accountName
 	 *            The account name
 	 * @param contacts
-	 *            The list of retrieved Plaxo contacts
+	 *            The retrieved Plaxo contacts, that are iterated once
+	 * @param projection
+	 *            The fields, that have been requested from Plaxo
+	 * @param deferPhotos
+	 *            true, if the pictures are not downloaded now, but queued in the {@link DeferredPhotoQueue}
+	 * @param metrics
+	 *            The metrics of the sync
+	 * @return false, if the sync has been canceled or the contacts cannot be read before all contacts have been synchronized
 	 */
-	public synchronized void syncContacts(Context context, String accountName, List<Contact> contacts, SyncResult syncResult) {
-		final ContentResolver resolver = context.getContentResolver();
-
-		// Get all phone contacts for the Plaxo account
-		HashMap<String, Long> contactsOnPhone = getAllContactsOnPhone(resolver, accountName);
-
-		// Update and create new contacts
-		for (final Contact contact : contacts) {
-			if (contactsOnPhone.containsKey(contact.getID())) {
-				Long contactId = contactsOnPhone.get(contact.getID());
-				Log.d(TAG, "Update contact: " + contact.getID());
-				updateContact(resolver, contactId, contact);
-				syncResult.stats.numUpdates++;
-				contactsOnPhone.remove(contact.getID());
-			} else {
-				Log.d(TAG, "Add contact: " + contact.getFirstName() + " " + contact.getLastName());
-				addContact(resolver, accountName, contact);
-				syncResult.stats.numInserts++;
-			}
-		}
-
-		// Delete contacts
-		for (Entry<String, Long> contact : contactsOnPhone.entrySet()) {
-			Log.d(TAG, "Delete contact: " + contact.getKey() + "(" + contact.getValue() + ")");
-			deleteContact(resolver, contact.getValue());
-			syncResult.stats.numDeletes++;
+	public synchronized boolean syncContacts(Context context, String accountName, Collection<Contact> contacts, FieldProjection projection,
+			boolean deferPhotos, SyncMetrics metrics, SyncResult syncResult) {
+		final ContactMirror mirror = new ContactMirror(context);
+		try {
+			final SyncCounters counters = new SyncCounters();
+			final boolean synced = createSynchronizer(context, accountName, mirror).syncContacts(accountName, contacts, projection, deferPhotos,
+					metrics, counters);
+			addCounters(counters, syncResult);
+			return synced;
+		} finally {
+			mirror.close();
 		}
 	}
 
-	private void updateContact(ContentResolver resolver, long rawContactId, Contact contact) {
-		ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
-
-		Contact existingContact = new Contact();
-
-		final String selection = Data.RAW_CONTACT_ID + "=?";
-		final String[] projection = new String[] { Data.MIMETYPE, Data.DATA1, Data.DATA2, Data.DATA3, Data.DATA4, Data.DATA7, Data.DATA8, Data.DATA9,
-				Data.DATA10, Data.DATA15 };
-
+	/**
+	 * Runs the sync of the raw contacts as a dry run. The contacts are diffed against the contacts on the phone like with
+	 * {@link #syncContacts(Context, String, Collection, FieldProjection, boolean, SyncMetrics, SyncResult)}, but the operations are only
+	 * counted. Neither the contacts, nor the mirror or the queue of the deferred pictures are changed.
+	 *
+	 * @return The planned operations or <code>null</code>, if the dry run has been canceled or the contacts cannot be read
+	 */
+	public synchronized SyncPlan planContacts(Context context, String accountName, Collection<Contact> contacts, FieldProjection projection,
+			boolean deferPhotos, SyncMetrics metrics) {
+		final ContactMirror mirror = new ContactMirror(context);
 		try {
-			final Cursor c = resolver.query(Data.CONTENT_URI, projection, selection, new String[] { rawContactId + "" }, null);
-
-			if (c != null) {
-				while (c.moveToNext()) {
-					String mimetype = c.getString(c.getColumnIndex(Data.MIMETYPE));
-					if (mimetype.equals(StructuredName.CONTENT_ITEM_TYPE)) {
-						existingContact.setFirstName(c.getString(c.getColumnIndex(Data.DATA2)));
-						existingContact.setLastName(c.getString(c.getColumnIndex(Data.DATA3)));
-						existingContact.setNamePrefix(c.getString(c.getColumnIndex(Data.DATA4)));
-					} else if (mimetype.equals(Email.CONTENT_ITEM_TYPE)) {
-						int type = c.getInt(c.getColumnIndex(Data.DATA2));
-						if (type == Email.TYPE_HOME) {
-							existingContact.setHomeEmail(c.getString(c.getColumnIndex(Data.DATA1)));
-						} else if (type == Email.TYPE_WORK) {
-							existingContact.setWorkEmail(c.getString(c.getColumnIndex(Data.DATA1)));
-						}
-					} else if (mimetype.equals(Phone.CONTENT_ITEM_TYPE)) {
-						int type = c.getInt(c.getColumnIndex(Data.DATA2));
-						if (type == Phone.TYPE_WORK_MOBILE) {
-							existingContact.setCellWorkPhone(c.getString(c.getColumnIndex(Data.DATA1)));
-						} else if (type == Phone.TYPE_WORK) {
-							existingContact.setWorkPhone(c.getString(c.getColumnIndex(Data.DATA1)));
-						} else if (type == Phone.TYPE_HOME) {
-							existingContact.setHomePhone(c.getString(c.getColumnIndex(Data.DATA1)));
-						} else if (type == Phone.TYPE_MOBILE) {
-							existingContact.setCellHomePhone(c.getString(c.getColumnIndex(Data.DATA1)));
-						} else if (type == Phone.TYPE_FAX_HOME) {
-							existingContact.setHomeFax(c.getString(c.getColumnIndex(Data.DATA1)));
-						} else if (type == Phone.TYPE_FAX_WORK) {
-							existingContact.setWorkFax(c.getString(c.getColumnIndex(Data.DATA1)));
-						}
-					} else if (mimetype.equals(Website.CONTENT_ITEM_TYPE)) {
-						int type = c.getInt(c.getColumnIndex(Data.DATA2));
-						if (type == Website.TYPE_HOME) {
-							existingContact.setHomeURL(c.getString(c.getColumnIndex(Data.DATA1)));
-						} else if (type == Website.TYPE_WORK) {
-							existingContact.setWorkURL(c.getString(c.getColumnIndex(Data.DATA1)));
-						}
-					} else if (mimetype.equals(Organization.CONTENT_ITEM_TYPE)) {
-						int type = c.getInt(c.getColumnIndex(Data.DATA2));
-						if (type == Organization.TYPE_WORK) {
-							existingContact.setCompany(c.getString(c.getColumnIndex(Data.DATA1)));
-							existingContact.setTitle(c.getString(c.getColumnIndex(Data.DATA4)));
-						}
-					} else if (mimetype.equals(Photo.CONTENT_ITEM_TYPE)) {
-						existingContact.setImage(c.getBlob(c.getColumnIndex(Photo.PHOTO)));
-					} else if (mimetype.equals(StructuredPostal.CONTENT_ITEM_TYPE)) {
-						int type = c.getInt(c.getColumnIndex(Data.DATA2));
-						Address address = new Address();
-						address.setStreet(c.getString(c.getColumnIndex(Data.DATA4)));
-						address.setCity(c.getString(c.getColumnIndex(Data.DATA7)));
-						address.setCountry(c.getString(c.getColumnIndex(Data.DATA10)));
-						address.setZip(c.getString(c.getColumnIndex(Data.DATA9)));
-						address.setState(c.getString(c.getColumnIndex(Data.DATA8)));
-						if (type == StructuredPostal.TYPE_WORK) {
-							existingContact.setWorkAddress(address);
-						} else if (type == StructuredPostal.TYPE_HOME) {
-							existingContact.setHomeAddress(address);
-						}
-					}
-				}
+			final SyncPlan plan = new SyncPlan();
+			if (!createSynchronizer(context, accountName, mirror).planContacts(accountName, contacts, projection, deferPhotos, plan, metrics)) {
+				return null;
 			}
+			Log.i(TAG, "Dry run: " + plan);
+			return plan;
+		} finally {
+			mirror.close();
+		}
+	}
 
-			prepareFields(rawContactId, contact, existingContact, ops, false);
-
-			if (ops.size() > 0) {
-				resolver.applyBatch(ContactsContract.AUTHORITY, ops);
-			}
-		} catch (RemoteException e) {
-			Log.e(TAG, e.getMessage(), e);
-		} catch (OperationApplicationException e) {
-			Log.e(TAG, e.getMessage(), e);
-		} catch (SQLiteException e) {
-			Log.e(TAG, e.getMessage(), e);
-		} catch (IllegalStateException e) {
-			Log.e(TAG, e.getMessage(), e);
+	/**
+	 * Resumes the aggregation of the raw contacts, that an import has left suspended, because it has been killed.
+	 *
+	 * @param context
+	 *            The context
+	 * @param accountName
+	 *            The account name
+	 */
+	public synchronized void resumeAggregation(Context context, String accountName) {
+		final ContactMirror mirror = new ContactMirror(context);
+		try {
+			createSynchronizer(context, accountName, mirror).resumeAggregation(accountName);
+		} finally {
+			mirror.close();
 		}
 	}
 
-	private void deleteContact(ContentResolver resolver, Long rawContactId) {
+	/**
+	 * Downloads the pictures, that have been deferred by earlier text only syncs, and writes them to the contacts. The contacts are taken from
+	 * the mirror, so that nothing has to be fetched from Plaxo again.
+	 *
+	 * @param context
+	 *            The context
+	 * @param accountName
+	 *            The account name
+	 * @param metrics
+	 *            The metrics of the sync
+	 * @return false, if the sync has been canceled before all pictures have been written
+	 */
+	public synchronized boolean syncDeferredPhotos(Context context, String accountName, SyncMetrics metrics, SyncResult syncResult) {
+		final ContactMirror mirror = new ContactMirror(context);
 		try {
-			resolver.delete(RawContacts.CONTENT_URI, RawContacts._ID + "=?", new String[] { "" + rawContactId });
-		} catch (SQLiteException e) {
-			Log.e(TAG, e.getMessage(), e);
-		} catch (IllegalStateException e) {
-			Log.e(TAG, e.getMessage(), e);
+			final SyncCounters counters = new SyncCounters();
+			final boolean synced = createSynchronizer(context, accountName, mirror).syncDeferredPhotos(accountName, metrics, counters);
+			addCounters(counters, syncResult);
+			return synced;
+		} finally {
+			mirror.close();
 		}
 	}
 
 	/**
-	 * Retrieves all contacts that are on the phone for this account.
-	 * 
-	 * @return
+	 * Restores the contacts of the account from its {@link ContactSnapshot}, if the account has no contacts on the phone. Nothing is
+	 * downloaded, the pictures are queued like deferred pictures and downloaded by a later sync.
+	 *
+	 * @param context
+	 *            The context
+	 * @param accountName
+	 *            The account name
+	 * @param validators
+	 *            The validators of the fields, that are requested, which receive the validators of the snapshot, so that the next fetch only
+	 *            downloads the changes since the snapshot
+	 * @param metrics
+	 *            The metrics of the sync
+	 * @return true, if the contacts have been restored completely and the validators of the snapshot have been taken
 	 */
-	private static HashMap<String, Long> getAllContactsOnPhone(ContentResolver resolver, String accountName) {
-		final String[] projection = new String[] { RawContacts._ID, RawContacts.SYNC1, RawContacts.SOURCE_ID };
-		final String selection = RawContacts.ACCOUNT_NAME + "=?";
+	public synchronized boolean restoreSnapshot(Context context, String accountName, CollectionValidators validators, SyncMetrics metrics,
+			SyncResult syncResult) {
+		final ContactSnapshot snapshot = new ContactSnapshot(context, accountName);
+		if (!snapshot.exists() || !getSource(context).getRawContacts(accountName, new HashSet<Long>()).isEmpty()) {
+			return false;
+		}
+		final CollectionValidators snapshotValidators = new CollectionValidators();
+		final List<Contact> contacts;
+		try {
+			contacts = snapshot.read(snapshotValidators);
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot read the snapshot", e);
+			snapshot.delete();
+			return false;
+		}
 
-		final Cursor c = resolver.query(RawContacts.CONTENT_URI, projection, selection, new String[] { accountName }, null);
-		HashMap<String, Long> contactsOnPhone = new HashMap<String, Long>();
-		if (c != null) {
-			while (c.moveToNext()) {
-				contactsOnPhone.put(c.getString(c.getColumnIndex(RawContacts.SOURCE_ID)), c.getLong(c.getColumnIndex(Data._ID)));
+		int lostPhotos = 0;
+		for (Contact contact : contacts) {
+			if (contact.getImageDigest() != null && TextUtils.isEmpty(contact.getImageURL())) {
+				lostPhotos++;
 			}
-			c.close();
 		}
 
-		return contactsOnPhone;
-	}
-
-	private Uri addCallerIsSyncAdapterFlag(Uri uri) {
-		Uri.Builder b = uri.buildUpon();
-		b.appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true");
-		return b.build();
+		final ContactMirror mirror = new ContactMirror(context);
+		try {
+			final SyncCounters counters = new SyncCounters();
+			final boolean restored = createSynchronizer(context, accountName, mirror).restoreContacts(accountName, contacts, metrics, counters);
+			addCounters(counters, syncResult);
+			if (!restored) {
+				return false;
+			}
+			if (lostPhotos > 0) {
+				// The pictures cannot be queued without their URLs, so the next sync has to fetch the whole collection
+				Log.w(TAG, "The pictures of " + lostPhotos + " contacts are missing, the snapshot is restored without its validators");
+				return false;
+			}
+			if (!TextUtils.equals(snapshotValidators.getProjection(), validators.getProjection())) {
+				// The snapshot lacks the fields, that have been turned on since, so the next sync has to fetch the whole collection
+				Log.w(TAG, "The snapshot has been written for other fields, it is restored without its validators");
+				return false;
+			}
+			validators.setValues(snapshotValidators.getEtag(), snapshotValidators.getLastModified(), snapshotValidators.getDigest(),
+					snapshotValidators.getProjection());
+			return true;
+		} finally {
+			mirror.close();
+		}
 	}
 
 	/**
-	 * Add a new contact to the RawContacts table.
-	 * 
-	 * @param resolver
+	 * Writes the {@link ContactSnapshot} of the account from the mirror.
+	 *
+	 * @param context
+	 *            The context
 	 * @param accountName
-	 * @param contact
+	 *            The account name
+	 * @param validators
+	 *            The validators of the synchronized collection
 	 */
-	private void addContact(ContentResolver resolver, String accountName, Contact contact) {
-		ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
-
-		Uri uri = addCallerIsSyncAdapterFlag(RawContacts.CONTENT_URI);
-
-		ContentValues cv = new ContentValues();
-		cv.put(RawContacts.ACCOUNT_TYPE, Constants.ACCOUNT_TYPE);
-		cv.put(RawContacts.ACCOUNT_NAME, accountName);
-		cv.put(RawContacts.SOURCE_ID, contact.getID());
-
-		// This is the first insert into the raw contacts table
-		ContentProviderOperation i1 = ContentProviderOperation.newInsert(uri).withValues(cv).build();
-		ops.add(i1);
-
-		prepareFields(-1, contact, new Contact(), ops, true);
-
-		// Now create the contact with a single batch operation
+	public synchronized void writeSnapshot(Context context, String accountName, CollectionValidators validators) {
+		final long start = SystemClock.elapsedRealtime();
+		final ContactMirror mirror = new ContactMirror(context);
 		try {
-			ContentProviderResult[] res = resolver.applyBatch(ContactsContract.AUTHORITY, ops);
-			// The first insert is the one generating the ID for this contact
-			long id = ContentUris.parseId(res[0].uri);
-			Log.d(TAG, "The new contact has id: " + id);
-		} catch (Exception e) {
-			Log.e(TAG, "Cannot create contact ", e);
+			final Collection<Contact> contacts = mirror.load(accountName).values();
+			new ContactSnapshot(context, accountName).write(contacts, validators);
+			Log.d(TAG, "Wrote the snapshot of " + contacts.size() + " contacts in " + (SystemClock.elapsedRealtime() - start) + "ms");
+		} catch (IOException e) {
+			Log.e(TAG, "Cannot write the snapshot", e);
+		} finally {
+			mirror.close();
 		}
 	}
 
-	private void prepareFields(long rawContactId, Contact newC, Contact existingC, ArrayList<ContentProviderOperation> ops, boolean isNew) {
-		ContactMerger contactMerger = new ContactMerger(rawContactId, newC, existingC, ops);
-		contactMerger.updateName();
-		contactMerger.updateMail(Email.TYPE_WORK);
-		contactMerger.updateMail(Email.TYPE_HOME);
-
-		contactMerger.updatePhone(Phone.TYPE_HOME);
-		contactMerger.updatePhone(Phone.TYPE_MOBILE);
-		contactMerger.updatePhone(Phone.TYPE_WORK_MOBILE);
-		contactMerger.updatePhone(Phone.TYPE_WORK);
-		contactMerger.updatePhone(Phone.TYPE_FAX_WORK);
-		contactMerger.updatePhone(Phone.TYPE_FAX_HOME);
+	private ContactSynchronizer createSynchronizer(Context context, String accountName, ContactMirror mirror) {
+		return new ContactSynchronizer(getSource(context), getSink(context), mirror, new PreferencesQuarantine(context, accountName));
+	}
 
-		contactMerger.updateURL(Website.TYPE_HOME);
-		contactMerger.updateURL(Website.TYPE_WORK);
-		contactMerger.updateURL(Website.TYPE_PROFILE);
+	private ContactSnapshotSource getSource(Context context) {
+		return source != null ? source : new ProviderContactStore(context.getContentResolver());
+	}
 
-		contactMerger.updatePicture();
-		contactMerger.updateBirthday();
-		contactMerger.updateCompanyInformation();
+	private ContactSink getSink(Context context) {
+		return sink != null ? sink : new ProviderContactStore(context.getContentResolver());
+	}
 
-		contactMerger.updateAddress(StructuredPostal.TYPE_WORK);
-		contactMerger.updateAddress(StructuredPostal.TYPE_HOME);
+	/**
+	 * Adds the counters of the synchronizer to the statistics of the sync.
+	 */
+	private static void addCounters(SyncCounters counters, SyncResult syncResult) {
+		syncResult.stats.numInserts += counters.numInserts;
+		syncResult.stats.numUpdates += counters.numUpdates;
+		syncResult.stats.numDeletes += counters.numDeletes;
+		syncResult.stats.numSkippedEntries += counters.numSkippedEntries;
+		syncResult.stats.numIoExceptions += counters.numIoExceptions;
 	}
 
 	public static void makeGroupVisible(String accountName, ContentResolver resolver) {
@@ -1,13 +1,7 @@
 package de.danielweisser.android.plaxosync.platform;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 
-import android.content.ContentProviderOperation;
-import android.content.ContentProviderOperation.Builder;
-import android.content.ContentValues;
-import android.net.Uri;
-import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Event;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
@@ -16,69 +10,117 @@ import android.provider.ContactsContract.CommonDataKinds.Photo;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.provider.ContactsContract.CommonDataKinds.Website;
-import android.provider.ContactsContract.Data;
-import android.text.TextUtils;
-import android.util.Log;
+import de.danielweisser.android.plaxosync.SyncLog;
 import de.danielweisser.android.plaxosync.client.Address;
 import de.danielweisser.android.plaxosync.client.Contact;
 
 /**
- * A helper class that merges the fields of existing contacts with the fields of new contacts.
+ * A helper class that merges the fields of existing contacts with the fields of new contacts. Both contacts have to be normalized with the
+ * {@link ContactNormalizer} first. The merger only uses the constants of the contacts contract, so it runs without the platform.
  */
 public class ContactMerger {
 
 	private static final String TAG = "ContactMerger";
-	
-	private final long rawContactId;
+
+	/**
+	 * The changed fields by kind.
+	 */
+	private static final SyncLog LOG = SyncLog.get(TAG);
+	private static final SyncLog.Event NAME = LOG.event("name");
+	private static final SyncLog.Event MAIL = LOG.event("mail");
+	private static final SyncLog.Event PHONE = LOG.event("phone");
+	private static final SyncLog.Event URL = LOG.event("url");
+	private static final SyncLog.Event PICTURE = LOG.event("picture");
+	private static final SyncLog.Event COMPANY = LOG.event("company");
+	private static final SyncLog.Event ADDRESS = LOG.event("address");
+	private static final SyncLog.Event BIRTHDAY = LOG.event("birthday");
+
 	private final Contact newC;
 	private final Contact existingC;
-	private final ArrayList<ContentProviderOperation> ops;
+	private final ContactOperations ops;
+	private final ContactSink sink;
 
-	public ContactMerger(long rawContactId, Contact newContact, Contact existingContact, ArrayList<ContentProviderOperation> ops) {
-		this.rawContactId = rawContactId;
+	/**
+	 * @param newContact
+	 *            The contact from Plaxo
+	 * @param existingContact
+	 *            The contact on the phone or <code>null</code>, if only {@link #insertContact(boolean)} is used
+	 * @param ops
+	 *            The operations for this contact
+	 * @param sink
+	 *            The sink, that decides, which pictures are written after the batch
+	 */
+	public ContactMerger(Contact newContact, Contact existingContact, ContactOperations ops, ContactSink sink) {
 		this.newC = newContact;
 		this.existingC = existingContact;
 		this.ops = ops;
+		this.sink = sink;
 	}
 
-	public void updateName() {
-		if (TextUtils.isEmpty(existingC.getFirstName()) || TextUtils.isEmpty(existingC.getLastName())) {
-			Log.d(TAG, "Set name to: " + newC.getFirstName() + " " + newC.getLastName());
-			ContentValues cv = new ContentValues();
-			cv.put(StructuredName.PREFIX, newC.getNamePrefix());
-			cv.put(StructuredName.GIVEN_NAME, newC.getFirstName());
-			cv.put(StructuredName.FAMILY_NAME, newC.getLastName());
-			cv.put(StructuredName.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE);
-			Builder insertOp = createInsert(rawContactId, cv);
-			ops.add(insertOp.build());
-		} else if (!newC.getFirstName().equals(existingC.getFirstName()) || !newC.getLastName().equals(existingC.getLastName())
-				|| (newC.getNamePrefix() != null && existingC.getNamePrefix() != null && !newC.getNamePrefix().equals(existingC.getNamePrefix()))) {
-			Log.d(TAG, "Update name to: " + newC.getFirstName() + " " + newC.getLastName());
-			ContentValues cv = new ContentValues();
-			cv.put(StructuredName.PREFIX, newC.getNamePrefix());
-			cv.put(StructuredName.GIVEN_NAME, newC.getFirstName());
-			cv.put(StructuredName.FAMILY_NAME, newC.getLastName());
-			Builder updateOp = ContentProviderOperation.newUpdate(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(
-					Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?", new String[] { rawContactId + "", StructuredName.CONTENT_ITEM_TYPE })
-					.withValues(cv);
-			ops.add(updateOp.build());
+	/**
+	 * Inserts all fields of a new contact without comparing them to an existing contact.
+	 *
+	 * @param withPicture
+	 *            false, if the picture is not downloaded now
+	 */
+	public void insertContact(boolean withPicture) {
+		insertName();
+		insertMail(newC.getWorkEmail(), Email.TYPE_WORK);
+		insertMail(newC.getHomeEmail(), Email.TYPE_HOME);
+
+		insertPhone(newC.getHomePhone(), Phone.TYPE_HOME);
+		insertPhone(newC.getCellHomePhone(), Phone.TYPE_MOBILE);
+		insertPhone(newC.getCellWorkPhone(), Phone.TYPE_WORK_MOBILE);
+		insertPhone(newC.getWorkPhone(), Phone.TYPE_WORK);
+		insertPhone(newC.getWorkFax(), Phone.TYPE_FAX_WORK);
+		insertPhone(newC.getHomeFax(), Phone.TYPE_FAX_HOME);
+
+		insertURL(newC.getHomeURL(), Website.TYPE_HOME);
+		insertURL(newC.getWorkURL(), Website.TYPE_WORK);
+
+		if (withPicture) {
+			ops.setImageDigest(ContactDigest.digest(newC.getImage()));
+			ops.setImageURL(newC.getImageURL());
+			if (newC.getImage() != null) {
+				insertPicture();
+			}
+		}
+		if (!isEmpty(newC.getDateOfBirth())) {
+			insertBirthday();
+		}
+		if (!isEmpty(newC.getCompany()) || !isEmpty(newC.getTitle())) {
+			insertCompanyInformation();
+		}
+
+		if (newC.getWorkAddress() != null && !newC.getWorkAddress().isEmpty()) {
+			insertAddress(newC.getWorkAddress(), StructuredPostal.TYPE_WORK);
+		}
+		if (newC.getHomeAddress() != null && !newC.getHomeAddress().isEmpty()) {
+			insertAddress(newC.getHomeAddress(), StructuredPostal.TYPE_HOME);
 		}
 	}
 
-	private Builder createInsert(long rawContactId, ContentValues cv) {
-		Builder insertOp = ContentProviderOperation.newInsert(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withValues(cv);
-		if (rawContactId == -1) {
-			insertOp.withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0);
-		} else {
-			insertOp.withValue(Data.RAW_CONTACT_ID, rawContactId);
+	public void updateName() {
+		if (isEmpty(existingC.getFirstName()) && isEmpty(existingC.getLastName()) && isEmpty(existingC.getNamePrefix())) {
+			if (!isEmpty(newC.getFirstName()) || !isEmpty(newC.getLastName())) {
+				if (NAME.sample()) {
+					LOG.d("Set name to: " + newC.getFirstName() + " " + newC.getLastName());
+				}
+				insertName();
+			}
+		} else if (!newC.getFirstName().equals(existingC.getFirstName()) || !newC.getLastName().equals(existingC.getLastName())
+				|| !newC.getNamePrefix().equals(existingC.getNamePrefix())) {
+			if (NAME.sample()) {
+				LOG.d("Update name to: " + newC.getFirstName() + " " + newC.getLastName());
+			}
+			ops.update(StructuredName.CONTENT_ITEM_TYPE, ContactOperations.ANY_TYPE).put(StructuredName.PREFIX, newC.getNamePrefix()).put(
+					StructuredName.GIVEN_NAME, newC.getFirstName()).put(StructuredName.FAMILY_NAME, newC.getLastName());
 		}
-		return insertOp;
 	}
 
-	private Uri addCallerIsSyncAdapterFlag(Uri uri) {
-		Uri.Builder b = uri.buildUpon();
-		b.appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true");
-		return b.build();
+	private void insertName() {
+		ops.insert(StructuredName.CONTENT_ITEM_TYPE).put(StructuredName.PREFIX, newC.getNamePrefix()).put(StructuredName.GIVEN_NAME,
+				newC.getFirstName()).put(StructuredName.FAMILY_NAME, newC.getLastName());
 	}
 
 	public void updateMail(int mailType) {
@@ -95,27 +137,31 @@ public class ContactMerger {
 	}
 
 	private void updateMail(String newMail, String existingMail, int mailType) {
-		String selection = Data.RAW_CONTACT_ID + "=? AND " + Email.MIMETYPE + "=? AND " + Email.TYPE + "=?";
-		if (TextUtils.isEmpty(newMail) && !TextUtils.isEmpty(existingMail)) {
-			Log.d(TAG, "Delete mail data " + mailType + " (" + existingMail + ")");
-			ops.add(ContentProviderOperation.newDelete(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Email.CONTENT_ITEM_TYPE, mailType + "" }).build());
-		} else if (!TextUtils.isEmpty(newMail) && TextUtils.isEmpty(existingMail)) {
-			Log.d(TAG, "Add mail data " + mailType + " (" + newMail + ")");
-			ContentValues cv = new ContentValues();
-			cv.put(Email.DATA, newMail);
-			cv.put(Email.TYPE, mailType);
-			cv.put(Email.MIMETYPE, Email.CONTENT_ITEM_TYPE);
-			Builder insertOp = createInsert(rawContactId, cv);
-			ops.add(insertOp.build());
-		} else if (!newMail.equals(existingMail)) {
-			Log.d(TAG, "Update mail data " + mailType + " (" + existingMail + " => " + newMail + ")");
-			Builder updateOp = ContentProviderOperation.newUpdate(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Email.CONTENT_ITEM_TYPE, mailType + "" }).withValue(Email.DATA, newMail);
-			ops.add(updateOp.build());
+		if (isEmpty(newMail) && !isEmpty(existingMail)) {
+			if (MAIL.sample()) {
+				LOG.d("Delete mail data " + mailType + " (" + existingMail + ")");
+			}
+			ops.delete(Email.CONTENT_ITEM_TYPE, mailType);
+		} else if (!isEmpty(newMail) && isEmpty(existingMail)) {
+			if (MAIL.sample()) {
+				LOG.d("Add mail data " + mailType + " (" + newMail + ")");
+			}
+			insertMail(newMail, mailType);
+		} else if (!isEmpty(newMail) && !newMail.equals(existingMail)) {
+			if (MAIL.sample()) {
+				LOG.d("Update mail data " + mailType + " (" + existingMail + " => " + newMail + ")");
+			}
+			ops.update(Email.CONTENT_ITEM_TYPE, mailType).put(Email.DATA, newMail);
 		}
 	}
 
+	private void insertMail(String newMail, int mailType) {
+		if (isEmpty(newMail)) {
+			return;
+		}
+		ops.insert(Email.CONTENT_ITEM_TYPE).put(Email.DATA, newMail).put(Email.TYPE, mailType);
+	}
+
 	public void updatePhone(int phoneType) {
 		String newPhone = null;
 		String existingPhone = null;
@@ -142,25 +188,29 @@ public class ContactMerger {
 	}
 
 	private void updatePhone(String newPhone, String existingPhone, int phoneType) {
-		String selection = Data.RAW_CONTACT_ID + "=? AND " + Phone.MIMETYPE + "=? AND " + Phone.TYPE + "=?";
-		if (TextUtils.isEmpty(newPhone) && !TextUtils.isEmpty(existingPhone)) {
-			Log.d(TAG, "Delete phone data " + phoneType + " (" + existingPhone + ")");
-			ops.add(ContentProviderOperation.newDelete(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Phone.CONTENT_ITEM_TYPE, phoneType + "" }).build());
-		} else if (!TextUtils.isEmpty(newPhone) && TextUtils.isEmpty(existingPhone)) {
-			Log.d(TAG, "Add phone data " + phoneType + " (" + newPhone + ")");
-			ContentValues cv = new ContentValues();
-			cv.put(Phone.DATA, newPhone);
-			cv.put(Phone.TYPE, phoneType);
-			cv.put(Phone.MIMETYPE, Phone.CONTENT_ITEM_TYPE);
-			Builder insertOp = createInsert(rawContactId, cv);
-			ops.add(insertOp.build());
-		} else if (!newPhone.equals(existingPhone)) {
-			Log.d(TAG, "Update phone data " + phoneType + " (" + existingPhone + " => " + newPhone + ")");
-			Builder updateOp = ContentProviderOperation.newUpdate(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Phone.CONTENT_ITEM_TYPE, phoneType + "" }).withValue(Phone.DATA, newPhone);
-			ops.add(updateOp.build());
+		if (isEmpty(newPhone) && !isEmpty(existingPhone)) {
+			if (PHONE.sample()) {
+				LOG.d("Delete phone data " + phoneType + " (" + existingPhone + ")");
+			}
+			ops.delete(Phone.CONTENT_ITEM_TYPE, phoneType);
+		} else if (!isEmpty(newPhone) && isEmpty(existingPhone)) {
+			if (PHONE.sample()) {
+				LOG.d("Add phone data " + phoneType + " (" + newPhone + ")");
+			}
+			insertPhone(newPhone, phoneType);
+		} else if (!isEmpty(newPhone) && !ContactNormalizer.isSamePhone(newPhone, existingPhone)) {
+			if (PHONE.sample()) {
+				LOG.d("Update phone data " + phoneType + " (" + existingPhone + " => " + newPhone + ")");
+			}
+			ops.update(Phone.CONTENT_ITEM_TYPE, phoneType).put(Phone.DATA, newPhone);
+		}
+	}
+
+	private void insertPhone(String newPhone, int phoneType) {
+		if (isEmpty(newPhone)) {
+			return;
 		}
+		ops.insert(Phone.CONTENT_ITEM_TYPE).put(Phone.DATA, newPhone).put(Phone.TYPE, phoneType);
 	}
 
 	public void updateURL(int urlType) {
@@ -177,75 +227,106 @@ public class ContactMerger {
 	}
 
 	private void updateURL(String newURL, String existingURL, int urlType) {
-		String selection = Data.RAW_CONTACT_ID + "=? AND " + Website.MIMETYPE + "=? AND " + Website.TYPE + "=?";
-		if (TextUtils.isEmpty(newURL) && !TextUtils.isEmpty(existingURL)) {
-			Log.d(TAG, "Delete url data " + urlType + " (" + existingURL + ")");
-			ops.add(ContentProviderOperation.newDelete(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Website.CONTENT_ITEM_TYPE, urlType + "" }).build());
-		} else if (!TextUtils.isEmpty(newURL) && TextUtils.isEmpty(existingURL)) {
-			Log.d(TAG, "Add url data " + urlType + " (" + newURL + ")");
-			ContentValues cv = new ContentValues();
-			cv.put(Website.DATA, newURL);
-			cv.put(Website.TYPE, urlType);
-			cv.put(Website.MIMETYPE, Website.CONTENT_ITEM_TYPE);
-			Builder insertOp = createInsert(rawContactId, cv);
-			ops.add(insertOp.build());
-		} else if (!TextUtils.isEmpty(newURL) && !newURL.equals(existingURL)) {
-			Log.d(TAG, "Update url data " + urlType + " (" + existingURL + " => " + newURL + ")");
-			Builder updateOp = ContentProviderOperation.newUpdate(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Website.CONTENT_ITEM_TYPE, urlType + "" }).withValue(Website.DATA, newURL);
-			ops.add(updateOp.build());
+		if (isEmpty(newURL) && !isEmpty(existingURL)) {
+			if (URL.sample()) {
+				LOG.d("Delete url data " + urlType + " (" + existingURL + ")");
+			}
+			ops.delete(Website.CONTENT_ITEM_TYPE, urlType);
+		} else if (!isEmpty(newURL) && isEmpty(existingURL)) {
+			if (URL.sample()) {
+				LOG.d("Add url data " + urlType + " (" + newURL + ")");
+			}
+			insertURL(newURL, urlType);
+		} else if (!isEmpty(newURL) && !ContactNormalizer.isSameURL(newURL, existingURL)) {
+			if (URL.sample()) {
+				LOG.d("Update url data " + urlType + " (" + existingURL + " => " + newURL + ")");
+			}
+			ops.update(Website.CONTENT_ITEM_TYPE, urlType).put(Website.DATA, newURL);
+		}
+	}
+
+	private void insertURL(String newURL, int urlType) {
+		if (isEmpty(newURL)) {
+			return;
 		}
+		ops.insert(Website.CONTENT_ITEM_TYPE).put(Website.DATA, newURL).put(Website.TYPE, urlType);
 	}
 
 	public void updatePicture() {
-		String selection = Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?";
-		if (newC.getImage() == null && existingC.getImage() != null) {
-			Log.d(TAG, "Delete image");
-			ops.add(ContentProviderOperation.newDelete(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Photo.CONTENT_ITEM_TYPE }).build());
-		} else if (newC.getImage() != null && existingC.getImage() == null) {
-			Log.d(TAG, "Add image");
-			ContentValues cv = new ContentValues();
-			cv.put(Photo.PHOTO, newC.getImage());
-			cv.put(Photo.MIMETYPE, Photo.CONTENT_ITEM_TYPE);
-			Builder insertOp = createInsert(rawContactId, cv);
-			ops.add(insertOp.build());
-		} else if (!Arrays.equals(newC.getImage(), existingC.getImage())) {
-			Log.d(TAG, "Update image");
-			Builder updateOp = ContentProviderOperation.newUpdate(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Photo.CONTENT_ITEM_TYPE }).withValue(Photo.PHOTO, newC.getImage());
-			ops.add(updateOp.build());
+		ops.setImageDigest(ContactDigest.digest(newC.getImage()));
+		ops.setImageURL(newC.getImageURL());
+		// The digest is checked first, so that the picture of a mirrored contact is not downloaded again
+		boolean hasExistingImage = existingC.getImageDigest() != null || existingC.getImage() != null;
+		if (newC.getImage() == null && hasExistingImage) {
+			if (PICTURE.sample()) {
+				LOG.d("Delete image");
+			}
+			ops.delete(Photo.CONTENT_ITEM_TYPE, ContactOperations.ANY_TYPE);
+		} else if (newC.getImage() != null && !hasExistingImage) {
+			if (PICTURE.sample()) {
+				LOG.d("Add image");
+			}
+			insertPicture();
+		} else if (newC.getImage() != null && !isSamePicture()) {
+			if (PICTURE.sample()) {
+				LOG.d("Update image");
+			}
+			if (sink.isStreamed(newC.getImage())) {
+				ops.setDisplayPhoto(newC.getImage());
+			} else {
+				ops.update(Photo.CONTENT_ITEM_TYPE, ContactOperations.ANY_TYPE).put(Photo.PHOTO, newC.getImage()).put(PhotoWriter.PHOTO_DIGEST,
+						ops.getImageDigest());
+			}
+		}
+	}
+
+	private void insertPicture() {
+		if (sink.isStreamed(newC.getImage())) {
+			ops.setDisplayPhoto(newC.getImage());
+		} else {
+			ops.insert(Photo.CONTENT_ITEM_TYPE).put(Photo.PHOTO, newC.getImage()).put(PhotoWriter.PHOTO_DIGEST, ops.getImageDigest());
+		}
+	}
+
+	/**
+	 * The platform rescales stored pictures, so the digest of the last written picture is compared whenever it is available.
+	 */
+	private boolean isSamePicture() {
+		if (existingC.getImageDigest() != null) {
+			return existingC.getImageDigest().equals(ops.getImageDigest());
 		}
+		return Arrays.equals(newC.getImage(), existingC.getImage());
 	}
 
 	public void updateCompanyInformation() {
-		String selection = Data.RAW_CONTACT_ID + "=? AND " + Organization.MIMETYPE + "=?";
-		if (TextUtils.isEmpty(newC.getCompany()) && TextUtils.isEmpty(newC.getTitle())
-				&& (!TextUtils.isEmpty(existingC.getCompany()) || !TextUtils.isEmpty(existingC.getTitle()))) {
-			Log.d(TAG, "Delete company data " + "(" + existingC.getCompany() + ")");
-			ops.add(ContentProviderOperation.newDelete(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Organization.CONTENT_ITEM_TYPE }).build());
-		} else if (TextUtils.isEmpty(existingC.getCompany()) && TextUtils.isEmpty(existingC.getTitle())
-				&& (!TextUtils.isEmpty(newC.getCompany()) || !TextUtils.isEmpty(newC.getTitle()))) {
-			Log.d(TAG, "Add company data " + " (" + newC.getCompany() + " / " + newC.getTitle() + ")");
-			ContentValues cv = new ContentValues();
-			cv.put(Organization.COMPANY, newC.getCompany());
-			cv.put(Organization.TITLE, newC.getTitle());
-			cv.put(Organization.TYPE, Organization.TYPE_WORK);
-			cv.put(Organization.MIMETYPE, Organization.CONTENT_ITEM_TYPE);
-			Builder insertOp = createInsert(rawContactId, cv);
-			ops.add(insertOp.build());
+		if (isEmpty(newC.getCompany()) && isEmpty(newC.getTitle())
+				&& (!isEmpty(existingC.getCompany()) || !isEmpty(existingC.getTitle()))) {
+			if (COMPANY.sample()) {
+				LOG.d("Delete company data " + "(" + existingC.getCompany() + ")");
+			}
+			ops.delete(Organization.CONTENT_ITEM_TYPE, ContactOperations.ANY_TYPE);
+		} else if (isEmpty(existingC.getCompany()) && isEmpty(existingC.getTitle())
+				&& (!isEmpty(newC.getCompany()) || !isEmpty(newC.getTitle()))) {
+			if (COMPANY.sample()) {
+				LOG.d("Add company data " + " (" + newC.getCompany() + " / " + newC.getTitle() + ")");
+			}
+			insertCompanyInformation();
 		} else if ((existingC.getCompany() != null && !existingC.getCompany().equals(newC.getCompany()))
 				|| (existingC.getTitle() != null && !existingC.getTitle().equals(newC.getTitle()))) {
-			Log.d(TAG, "Update company data " + " (" + existingC.getCompany() + "/" + existingC.getTitle() + " => " + newC.getCompany() + "/" + newC.getTitle() + ")");
-			Builder updateOp = ContentProviderOperation.newUpdate(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Organization.CONTENT_ITEM_TYPE }).withValue(Organization.COMPANY, newC.getCompany()).withValue(
+			if (COMPANY.sample()) {
+				LOG.d("Update company data " + " (" + existingC.getCompany() + "/" + existingC.getTitle() + " => " + newC.getCompany() + "/"
+						+ newC.getTitle() + ")");
+			}
+			ops.update(Organization.CONTENT_ITEM_TYPE, ContactOperations.ANY_TYPE).put(Organization.COMPANY, newC.getCompany()).put(
 					Organization.TITLE, newC.getTitle());
-			ops.add(updateOp.build());
 		}
 	}
 
+	private void insertCompanyInformation() {
+		ops.insert(Organization.CONTENT_ITEM_TYPE).put(Organization.COMPANY, newC.getCompany()).put(Organization.TITLE, newC.getTitle()).put(
+				Organization.TYPE, Organization.TYPE_WORK);
+	}
+
 	public void updateAddress(int adressType) {
 		if (adressType == StructuredPostal.TYPE_HOME) {
 			updateAddress(newC.getHomeAddress(), existingC.getHomeAddress(), adressType);
@@ -255,56 +336,57 @@ public class ContactMerger {
 	}
 
 	private void updateAddress(Address newAddress, Address existingAddress, int adressType) {
-		final String selection = Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=? AND " + StructuredPostal.TYPE + "=?";
 		if ((newAddress == null || newAddress.isEmpty()) && existingAddress != null) {
-			Log.d(TAG, "Delete address " + adressType + "(" + existingC.getFirstName() + " " + existingC.getLastName() + ")");
-			ops.add(ContentProviderOperation.newDelete(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", StructuredPostal.CONTENT_ITEM_TYPE, adressType + "" }).build());
+			if (ADDRESS.sample()) {
+				LOG.d("Delete address " + adressType + "(" + existingC.getFirstName() + " " + existingC.getLastName() + ")");
+			}
+			ops.delete(StructuredPostal.CONTENT_ITEM_TYPE, adressType);
 		} else if (existingAddress == null && newAddress != null && !newAddress.isEmpty()) {
-			Log.d(TAG, "Add address " + adressType + "(" + existingC.getFirstName() + " " + existingC.getLastName() + ")");
-			ContentValues cv = new ContentValues();
-			cv.put(StructuredPostal.MIMETYPE, StructuredPostal.CONTENT_ITEM_TYPE);
-			cv.put(StructuredPostal.TYPE, adressType);
-			cv.put(StructuredPostal.STREET, newAddress.getStreet());
-			cv.put(StructuredPostal.CITY, newAddress.getCity());
-			cv.put(StructuredPostal.COUNTRY, newAddress.getCountry());
-			cv.put(StructuredPostal.POSTCODE, newAddress.getZip());
-			cv.put(StructuredPostal.REGION, newAddress.getState());
-			Builder insertOp = createInsert(rawContactId, cv);
-			ops.add(insertOp.build());
+			if (ADDRESS.sample()) {
+				LOG.d("Add address " + adressType + "(" + existingC.getFirstName() + " " + existingC.getLastName() + ")");
+			}
+			insertAddress(newAddress, adressType);
 		} else if (newAddress != null && !newAddress.isEmpty() && !newAddress.equals(existingAddress)) {
-			Log.d(TAG, "Update address " + adressType + "(" + existingC.getFirstName() + " " + existingC.getLastName() + ")");
-			ContentValues cv = new ContentValues();
-			cv.put(StructuredPostal.STREET, newAddress.getStreet());
-			cv.put(StructuredPostal.CITY, newAddress.getCity());
-			cv.put(StructuredPostal.COUNTRY, newAddress.getCountry());
-			cv.put(StructuredPostal.POSTCODE, newAddress.getZip());
-			cv.put(StructuredPostal.REGION, newAddress.getState());
-			Builder updateOp = ContentProviderOperation.newUpdate(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", StructuredPostal.CONTENT_ITEM_TYPE, adressType + "" }).withValues(cv);
-			ops.add(updateOp.build());
+			if (ADDRESS.sample()) {
+				LOG.d("Update address " + adressType + "(" + existingC.getFirstName() + " " + existingC.getLastName() + ")");
+			}
+			putAddress(ops.update(StructuredPostal.CONTENT_ITEM_TYPE, adressType), newAddress);
 		}
 	}
+
+	private void insertAddress(Address newAddress, int adressType) {
+		putAddress(ops.insert(StructuredPostal.CONTENT_ITEM_TYPE).put(StructuredPostal.TYPE, adressType), newAddress);
+	}
+
+	private static void putAddress(ContactOperations.Operation op, Address address) {
+		op.put(StructuredPostal.STREET, address.getStreet()).put(StructuredPostal.CITY, address.getCity()).put(StructuredPostal.COUNTRY,
+				address.getCountry()).put(StructuredPostal.POSTCODE, address.getZip()).put(StructuredPostal.REGION, address.getState());
+	}
 	
 	public void updateBirthday() {
-		String selection = Data.RAW_CONTACT_ID + "=? AND " + Event.MIMETYPE + "=?";
-		if (TextUtils.isEmpty(newC.getDateOfBirth()) && !TextUtils.isEmpty(existingC.getDateOfBirth())) {
-			Log.d(TAG, "Delete date of birth " + "(" + existingC.getDateOfBirth() + ")");
-			ops.add(ContentProviderOperation.newDelete(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Event.CONTENT_ITEM_TYPE }).build());
-		} else if (TextUtils.isEmpty(existingC.getDateOfBirth()) && !TextUtils.isEmpty(newC.getDateOfBirth())) {
-			Log.d(TAG, "Add date of birth " + " (" + newC.getDateOfBirth() + ")");
-			ContentValues cv = new ContentValues();
-			cv.put(Event.START_DATE, newC.getDateOfBirth());
-			cv.put(Event.TYPE, Event.TYPE_BIRTHDAY);
-			cv.put(Event.MIMETYPE, Event.CONTENT_ITEM_TYPE);
-			Builder insertOp = createInsert(rawContactId, cv);
-			ops.add(insertOp.build());
+		if (isEmpty(newC.getDateOfBirth()) && !isEmpty(existingC.getDateOfBirth())) {
+			if (BIRTHDAY.sample()) {
+				LOG.d("Delete date of birth " + "(" + existingC.getDateOfBirth() + ")");
+			}
+			ops.delete(Event.CONTENT_ITEM_TYPE, Event.TYPE_BIRTHDAY);
+		} else if (isEmpty(existingC.getDateOfBirth()) && !isEmpty(newC.getDateOfBirth())) {
+			if (BIRTHDAY.sample()) {
+				LOG.d("Add date of birth " + " (" + newC.getDateOfBirth() + ")");
+			}
+			insertBirthday();
 		} else if (existingC.getDateOfBirth() != null && !existingC.getDateOfBirth().equals(newC.getDateOfBirth())) {
-			Log.d(TAG, "Update date of birth " + " (" + existingC.getDateOfBirth() + " => " + newC.getDateOfBirth() + "/" + ")");
-			Builder updateOp = ContentProviderOperation.newUpdate(addCallerIsSyncAdapterFlag(Data.CONTENT_URI)).withSelection(selection,
-					new String[] { rawContactId + "", Event.CONTENT_ITEM_TYPE }).withValue(Event.START_DATE, newC.getDateOfBirth());
-			ops.add(updateOp.build());
+			if (BIRTHDAY.sample()) {
+				LOG.d("Update date of birth " + " (" + existingC.getDateOfBirth() + " => " + newC.getDateOfBirth() + "/" + ")");
+			}
+			ops.update(Event.CONTENT_ITEM_TYPE, Event.TYPE_BIRTHDAY).put(Event.START_DATE, newC.getDateOfBirth());
 		}
 	}
+
+	private void insertBirthday() {
+		ops.insert(Event.CONTENT_ITEM_TYPE).put(Event.START_DATE, newC.getDateOfBirth()).put(Event.TYPE, Event.TYPE_BIRTHDAY);
+	}
+
+	private static boolean isEmpty(String value) {
+		return value == null || value.length() == 0;
+	}
 }
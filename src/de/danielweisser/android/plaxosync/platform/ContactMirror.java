@@ -0,0 +1,232 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+import de.danielweisser.android.plaxosync.client.Address;
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * A database owned by the sync adapter, that mirrors the last synchronized state of every contact. The diff runs against the mirror, so that
+ * the data does not have to be read back from the contacts provider.
+ */
+public class ContactMirror extends SQLiteOpenHelper implements MirrorStore {
+	private static final String TAG = "ContactMirror";
+
+	private static final String DATABASE_NAME = "mirror.db";
+	private static final int DATABASE_VERSION = 1;
+
+	private static final String TABLE = "contacts";
+	private static final String RAW_CONTACT_ID = "raw_contact_id";
+	private static final String ACCOUNT_NAME = "account_name";
+	private static final String SOURCE_ID = "source_id";
+	private static final String IMAGE_DIGEST = "image_digest";
+	private static final String IMAGE_URL = "image_url";
+
+	private static final String[] FIELDS = new String[] { "name_prefix", "first_name", "last_name", "work_email", "home_email", "cell_work_phone",
+			"work_phone", "work_fax", "work_url", "cell_home_phone", "home_phone", "home_fax", "home_url", "company", "title", "date_of_birth" };
+	private static final String[] ADDRESS_FIELDS = new String[] { "street", "city", "state", "zip", "country" };
+	private static final String WORK_ADDRESS = "work_";
+	private static final String HOME_ADDRESS = "home_";
+
+	public ContactMirror(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		StringBuilder sql = new StringBuilder("CREATE TABLE " + TABLE + " (" + RAW_CONTACT_ID + " INTEGER PRIMARY KEY, " + ACCOUNT_NAME + " TEXT NOT NULL, "
+				+ SOURCE_ID + " TEXT, " + IMAGE_DIGEST + " TEXT, " + IMAGE_URL + " TEXT");
+		for (String field : FIELDS) {
+			sql.append(", ").append(field).append(" TEXT");
+		}
+		for (String prefix : new String[] { WORK_ADDRESS, HOME_ADDRESS }) {
+			for (String field : ADDRESS_FIELDS) {
+				sql.append(", ").append(prefix).append(field).append(" TEXT");
+			}
+		}
+		sql.append(")");
+		db.execSQL(sql.toString());
+		db.execSQL("CREATE INDEX " + TABLE + "_" + ACCOUNT_NAME + " ON " + TABLE + " (" + ACCOUNT_NAME + ")");
+		SQLiteDeferredPhotoQueue.createTable(db);
+		SQLitePendingAggregation.createTable(db);
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		// The mirror can always be rebuilt from the contacts provider
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+		db.execSQL("DROP TABLE IF EXISTS " + SQLiteDeferredPhotoQueue.TABLE);
+		db.execSQL("DROP TABLE IF EXISTS " + SQLitePendingAggregation.TABLE);
+		onCreate(db);
+	}
+
+	public HashMap<Long, Contact> load(String accountName) {
+		HashMap<Long, Contact> contacts = new HashMap<Long, Contact>();
+		try {
+			Cursor c = getReadableDatabase().query(TABLE, null, ACCOUNT_NAME + "=?", new String[] { accountName }, null, null, null);
+			if (c != null) {
+				while (c.moveToNext()) {
+					contacts.put(c.getLong(c.getColumnIndex(RAW_CONTACT_ID)), readContact(c));
+				}
+				c.close();
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+		return contacts;
+	}
+
+	public HashMap<Long, Contact> load(Collection<Long> rawContactIds) {
+		HashMap<Long, Contact> contacts = new HashMap<Long, Contact>();
+		if (rawContactIds.isEmpty()) {
+			return contacts;
+		}
+		StringBuilder selection = new StringBuilder(RAW_CONTACT_ID + " IN (");
+		for (Long rawContactId : rawContactIds) {
+			selection.append(rawContactId).append(',');
+		}
+		selection.setCharAt(selection.length() - 1, ')');
+		try {
+			Cursor c = getReadableDatabase().query(TABLE, null, selection.toString(), null, null, null, null);
+			if (c != null) {
+				while (c.moveToNext()) {
+					contacts.put(c.getLong(c.getColumnIndex(RAW_CONTACT_ID)), readContact(c));
+				}
+				c.close();
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+		return contacts;
+	}
+
+	public Contact get(long rawContactId) {
+		Contact contact = null;
+		try {
+			Cursor c = getReadableDatabase().query(TABLE, null, RAW_CONTACT_ID + "=?", new String[] { rawContactId + "" }, null, null, null);
+			if (c != null) {
+				if (c.moveToFirst()) {
+					contact = readContact(c);
+				}
+				c.close();
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+		return contact;
+	}
+
+	public void put(String accountName, long rawContactId, Contact contact, String imageDigest, String imageURL) {
+		ContentValues cv = new ContentValues();
+		cv.put(RAW_CONTACT_ID, rawContactId);
+		cv.put(ACCOUNT_NAME, accountName);
+		cv.put(SOURCE_ID, contact.getID());
+		cv.put(IMAGE_DIGEST, imageDigest);
+		cv.put(IMAGE_URL, imageURL);
+		String[] values = ContactFields.get(contact);
+		for (int i = 0; i < FIELDS.length; i++) {
+			cv.put(FIELDS[i], values[i]);
+		}
+		putAddress(cv, WORK_ADDRESS, contact.getWorkAddress());
+		putAddress(cv, HOME_ADDRESS, contact.getHomeAddress());
+		try {
+			getWritableDatabase().replaceOrThrow(TABLE, null, cv);
+		} catch (SQLiteException e) {
+			throw new MirrorException(e);
+		}
+	}
+
+	public void delete(long rawContactId) {
+		try {
+			getWritableDatabase().delete(TABLE, RAW_CONTACT_ID + "=?", new String[] { rawContactId + "" });
+		} catch (SQLiteException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+	}
+
+	public void clear(String accountName) {
+		try {
+			getWritableDatabase().delete(TABLE, ACCOUNT_NAME + "=?", new String[] { accountName });
+		} catch (SQLiteException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+	}
+
+	public void beginTransaction() {
+		try {
+			getWritableDatabase().beginTransaction();
+		} catch (SQLiteException e) {
+			throw new MirrorException(e);
+		}
+	}
+
+	public void commit() {
+		getWritableDatabase().setTransactionSuccessful();
+	}
+
+	public void endTransaction() {
+		try {
+			getWritableDatabase().endTransaction();
+		} catch (SQLiteException e) {
+			throw new MirrorException(e);
+		}
+	}
+
+	public DeferredPhotoQueue getDeferredPhotos() {
+		return new SQLiteDeferredPhotoQueue(this);
+	}
+
+	public PendingAggregation getPendingAggregation() {
+		return new SQLitePendingAggregation(this);
+	}
+
+	private static Contact readContact(Cursor c) {
+		Contact contact = new Contact();
+		contact.setID(c.getString(c.getColumnIndex(SOURCE_ID)));
+		contact.setImageDigest(c.getString(c.getColumnIndex(IMAGE_DIGEST)));
+		contact.setImageURL(c.getString(c.getColumnIndex(IMAGE_URL)));
+		String[] v = new String[FIELDS.length];
+		for (int i = 0; i < FIELDS.length; i++) {
+			v[i] = c.getString(c.getColumnIndex(FIELDS[i]));
+		}
+		ContactFields.set(contact, v);
+		contact.setWorkAddress(readAddress(c, WORK_ADDRESS));
+		contact.setHomeAddress(readAddress(c, HOME_ADDRESS));
+		return contact;
+	}
+
+	private static void putAddress(ContentValues cv, String prefix, Address address) {
+		if (address == null || address.isEmpty()) {
+			return;
+		}
+		cv.put(prefix + ADDRESS_FIELDS[0], address.getStreet());
+		cv.put(prefix + ADDRESS_FIELDS[1], address.getCity());
+		cv.put(prefix + ADDRESS_FIELDS[2], address.getState());
+		cv.put(prefix + ADDRESS_FIELDS[3], address.getZip());
+		cv.put(prefix + ADDRESS_FIELDS[4], address.getCountry());
+	}
+
+	/**
+	 * @return The address or <code>null</code>, if no address has been stored
+	 */
+	private static Address readAddress(Cursor c, String prefix) {
+		if (c.isNull(c.getColumnIndex(prefix + ADDRESS_FIELDS[0]))) {
+			return null;
+		}
+		Address address = new Address();
+		address.setStreet(c.getString(c.getColumnIndex(prefix + ADDRESS_FIELDS[0])));
+		address.setCity(c.getString(c.getColumnIndex(prefix + ADDRESS_FIELDS[1])));
+		address.setState(c.getString(c.getColumnIndex(prefix + ADDRESS_FIELDS[2])));
+		address.setZip(c.getString(c.getColumnIndex(prefix + ADDRESS_FIELDS[3])));
+		address.setCountry(c.getString(c.getColumnIndex(prefix + ADDRESS_FIELDS[4])));
+		return address;
+	}
+}
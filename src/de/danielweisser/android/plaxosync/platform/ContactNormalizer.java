@@ -0,0 +1,109 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.Locale;
+
+import de.danielweisser.android.plaxosync.client.Address;
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * Brings the contacts from Plaxo and from the phone into a canonical form before they are compared, so that unchanged data does not produce
+ * any operations. All fields are trimmed and never <code>null</code>, empty addresses are removed.
+ */
+public class ContactNormalizer {
+
+	private ContactNormalizer() {
+	}
+
+	/**
+	 * Normalizes the fields of the contact in place.
+	 */
+	public static void normalize(Contact c) {
+		c.setNamePrefix(normalize(c.getNamePrefix()));
+		c.setFirstName(normalize(c.getFirstName()));
+		c.setLastName(normalize(c.getLastName()));
+		c.setWorkEmail(normalize(c.getWorkEmail()));
+		c.setHomeEmail(normalize(c.getHomeEmail()));
+		c.setCellWorkPhone(normalize(c.getCellWorkPhone()));
+		c.setWorkPhone(normalize(c.getWorkPhone()));
+		c.setWorkFax(normalize(c.getWorkFax()));
+		c.setWorkURL(normalize(c.getWorkURL()));
+		c.setCellHomePhone(normalize(c.getCellHomePhone()));
+		c.setHomePhone(normalize(c.getHomePhone()));
+		c.setHomeFax(normalize(c.getHomeFax()));
+		c.setHomeURL(normalize(c.getHomeURL()));
+		c.setCompany(normalize(c.getCompany()));
+		c.setTitle(normalize(c.getTitle()));
+		c.setDateOfBirth(normalize(c.getDateOfBirth()));
+		c.setWorkAddress(normalize(c.getWorkAddress()));
+		c.setHomeAddress(normalize(c.getHomeAddress()));
+	}
+
+	/**
+	 * @return The trimmed value, never <code>null</code>
+	 */
+	public static String normalize(String value) {
+		return value == null ? "" : value.trim();
+	}
+
+	/**
+	 * @return The normalized address or <code>null</code>, if it is empty
+	 */
+	public static Address normalize(Address address) {
+		if (address == null) {
+			return null;
+		}
+		address.setStreet(normalize(address.getStreet()));
+		address.setCity(normalize(address.getCity()));
+		address.setState(normalize(address.getState()));
+		address.setZip(normalize(address.getZip()));
+		address.setCountry(normalize(address.getCountry()));
+		return address.isEmpty() ? null : address;
+	}
+
+	/**
+	 * Compares two phone numbers by their digits and a leading plus, ignoring any formatting.
+	 */
+	public static boolean isSamePhone(String a, String b) {
+		return phoneKey(a).equals(phoneKey(b));
+	}
+
+	/**
+	 * Compares two URLs ignoring the case of scheme and host, a missing http scheme and a trailing slash.
+	 */
+	public static boolean isSameURL(String a, String b) {
+		return urlKey(a).equals(urlKey(b));
+	}
+
+	private static String phoneKey(String phone) {
+		String value = normalize(phone);
+		StringBuilder sb = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char ch = value.charAt(i);
+			if (Character.isDigit(ch) || (ch == '+' && sb.length() == 0)) {
+				sb.append(ch);
+			} else if (Character.isLetter(ch)) {
+				// Extensions and vanity numbers are kept as they are
+				return value;
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String urlKey(String url) {
+		String value = normalize(url);
+		if (value.length() == 0) {
+			return value;
+		}
+		int schemeEnd = value.indexOf("://");
+		if (schemeEnd < 0) {
+			value = "http://" + value;
+			schemeEnd = 4;
+		}
+		int hostEnd = value.indexOf('/', schemeEnd + 3);
+		if (hostEnd < 0) {
+			hostEnd = value.length();
+		}
+		String key = value.substring(0, hostEnd).toLowerCase(Locale.US) + value.substring(hostEnd);
+		return key.endsWith("/") ? key.substring(0, key.length() - 1) : key;
+	}
+}
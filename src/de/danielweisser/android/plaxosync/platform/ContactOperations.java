@@ -0,0 +1,239 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * The operations of a single contact. An operation records its type, the MIME type of the row and the values, that it writes, so that the
+ * operations do not depend on the platform. A store turns them into its own writes, e.g. the {@link ProviderContactStore} into a batch of
+ * content provider operations, where the back references to a newly inserted raw contact are resolved, when the operations are appended
+ * together with the operations of other contacts.
+ */
+public class ContactOperations {
+
+	/**
+	 * The types of the operations, see {@link #getType(int)}.
+	 */
+	public static final int INSERT = 0;
+	public static final int UPDATE = 1;
+	public static final int DELETE = 2;
+
+	/**
+	 * The MIME type of the raw contact itself, which is <code>RawContacts.CONTENT_ITEM_TYPE</code>.
+	 */
+	public static final String RAW_CONTACT = "vnd.android.cursor.item/raw_contact";
+
+	/**
+	 * The row type of an update or delete, that changes all rows of its MIME type.
+	 */
+	public static final int ANY_TYPE = -1;
+
+	/**
+	 * A single operation on the raw contact or on one of its data rows.
+	 */
+	public static class Operation {
+		private final int type;
+		private final String mimeType;
+		private final int rowType;
+		private final LinkedHashMap<String, Object> values = new LinkedHashMap<String, Object>();
+
+		Operation(int type, String mimeType, int rowType) {
+			this.type = type;
+			this.mimeType = mimeType;
+			this.rowType = rowType;
+		}
+
+		/**
+		 * Adds a value, that the operation writes.
+		 *
+		 * @return This operation
+		 */
+		public Operation put(String column, Object value) {
+			values.put(column, value);
+			return this;
+		}
+
+		/**
+		 * @return {@link ContactOperations#INSERT}, {@link ContactOperations#UPDATE} or {@link ContactOperations#DELETE}
+		 */
+		public int getType() {
+			return type;
+		}
+
+		/**
+		 * @return The MIME type of the data row or {@link ContactOperations#RAW_CONTACT} for the raw contact itself
+		 */
+		public String getMimeType() {
+			return mimeType;
+		}
+
+		/**
+		 * @return The type of the rows, that an update or delete changes, or {@link ContactOperations#ANY_TYPE}
+		 */
+		public int getRowType() {
+			return rowType;
+		}
+
+		/**
+		 * @return The values by column in the order, in which they have been added
+		 */
+		public Map<String, Object> getValues() {
+			return values;
+		}
+	}
+
+	private final Contact contact;
+	private final long rawContactId;
+	private final ArrayList<Operation> ops = new ArrayList<Operation>();
+	private byte[] displayPhoto = null;
+	private String imageDigest = null;
+	private String imageURL = null;
+	private boolean mirrored = false;
+	private boolean photoDeferred = false;
+
+	/**
+	 * @param contact
+	 *            The contact from Plaxo
+	 * @param rawContactId
+	 *            The id of the raw contact or -1, if the first operation inserts the raw contact
+	 */
+	public ContactOperations(Contact contact, long rawContactId) {
+		this.contact = contact;
+		this.rawContactId = rawContactId;
+	}
+
+	public Contact getContact() {
+		return contact;
+	}
+
+	public String getSourceId() {
+		return contact.getID();
+	}
+
+	public long getRawContactId() {
+		return rawContactId;
+	}
+
+	public boolean isNew() {
+		return rawContactId == -1;
+	}
+
+	/**
+	 * Adds an insert of the raw contact or of a data row, that belongs to this raw contact.
+	 *
+	 * @return The operation, that receives the values of the row
+	 */
+	public Operation insert(String mimeType) {
+		return add(new Operation(INSERT, mimeType, ANY_TYPE));
+	}
+
+	/**
+	 * Adds an update of the rows of this raw contact with the given MIME type and row type.
+	 *
+	 * @return The operation, that receives the changed values
+	 */
+	public Operation update(String mimeType, int rowType) {
+		return add(new Operation(UPDATE, mimeType, rowType));
+	}
+
+	/**
+	 * Adds a delete of the rows of this raw contact with the given MIME type and row type.
+	 */
+	public void delete(String mimeType, int rowType) {
+		add(new Operation(DELETE, mimeType, rowType));
+	}
+
+	private Operation add(Operation op) {
+		ops.add(op);
+		return op;
+	}
+
+	public int size() {
+		return ops.size();
+	}
+
+	/**
+	 * @return The operation at the given index
+	 */
+	public Operation get(int index) {
+		return ops.get(index);
+	}
+
+	/**
+	 * @return The type of the operation at the given index
+	 */
+	public int getType(int index) {
+		return ops.get(index).getType();
+	}
+
+	/**
+	 * @return The MIME type of the row, that the operation at the given index changes
+	 */
+	public String getMimeType(int index) {
+		return ops.get(index).getMimeType();
+	}
+
+	public boolean isEmpty() {
+		return ops.isEmpty() && displayPhoto == null;
+	}
+
+	public byte[] getDisplayPhoto() {
+		return displayPhoto;
+	}
+
+	/**
+	 * Sets the picture, that has to be written with {@link ContactSink#writePhoto(long, byte[])} after the operations have been applied.
+	 */
+	public void setDisplayPhoto(byte[] displayPhoto) {
+		this.displayPhoto = displayPhoto;
+	}
+
+	/**
+	 * @return The digest of the picture of the contact from Plaxo
+	 */
+	public String getImageDigest() {
+		return imageDigest;
+	}
+
+	public void setImageDigest(String imageDigest) {
+		this.imageDigest = imageDigest;
+	}
+
+	/**
+	 * @return The URL of the picture, that is on the phone after the operations, which differs from the contact from Plaxo, when its
+	 *         picture is kept
+	 */
+	public String getImageURL() {
+		return imageURL;
+	}
+
+	public void setImageURL(String imageURL) {
+		this.imageURL = imageURL;
+	}
+
+	/**
+	 * @return true, if the operations have been created against the state in the {@link MirrorStore}, which needs no update when there are no
+	 *         changes
+	 */
+	public boolean isMirrored() {
+		return mirrored;
+	}
+
+	public void setMirrored(boolean mirrored) {
+		this.mirrored = mirrored;
+	}
+
+	/**
+	 * @return true, if the picture has not been downloaded and is queued in the {@link DeferredPhotoQueue}
+	 */
+	public boolean isPhotoDeferred() {
+		return photoDeferred;
+	}
+
+	public void setPhotoDeferred(boolean photoDeferred) {
+		this.photoDeferred = photoDeferred;
+	}
+}
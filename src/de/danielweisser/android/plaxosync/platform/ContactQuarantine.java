@@ -0,0 +1,31 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * Remembers contacts, whose operations could not be applied, together with the reason. They are skipped by later syncs until the contact
+ * changes on Plaxo. A contact is recognized by its {@link ContactDigest#fingerprint(Contact)}, which is independent of its normalization.
+ *
+ * @see PreferencesQuarantine
+ */
+public interface ContactQuarantine {
+
+	/**
+	 * Checks whether the contact is quarantined. A quarantined contact, that has changed since, is released.
+	 *
+	 * @param contact
+	 *            The contact from Plaxo
+	 * @return true, if the contact has to be skipped
+	 */
+	boolean isQuarantined(Contact contact);
+
+	/**
+	 * Puts the contact into the quarantine.
+	 *
+	 * @param contact
+	 *            The contact from Plaxo
+	 * @param reason
+	 *            The reason, why the contact could not be synchronized
+	 */
+	void add(Contact contact, String reason);
+}
@@ -0,0 +1,51 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.List;
+
+/**
+ * The write side of the store, that the {@link ContactSynchronizer} synchronizes into. The {@link BatchApplier} passes the operations of
+ * several contacts at once, so that a sink can write them in a single transaction.
+ *
+ * @see ContactSnapshotSource
+ */
+public interface ContactSink {
+
+	/**
+	 * Applies the operations of the contacts as one batch.
+	 *
+	 * @param contacts
+	 *            The operations of the contacts
+	 * @param yieldAllowed
+	 *            true, if the store may commit the batch between the contacts. Then the contacts before the failing one may have been
+	 *            written, when the batch fails.
+	 * @return The id of the raw contact of every contact, in the order of the contacts
+	 * @throws ApplyException
+	 *             If an operation of the batch has failed or if the batch could not be transferred to the store
+	 */
+	long[] apply(List<ContactOperations> contacts, boolean yieldAllowed) throws ApplyException;
+
+	/**
+	 * Checks whether a picture is too large for the batch. It is written with {@link #writePhoto(long, byte[])} after the batch instead.
+	 */
+	boolean isStreamed(byte[] photo);
+
+	/**
+	 * Writes a picture, that is too large for the batch.
+	 *
+	 * @return true, if the picture has been written
+	 * @see ContactOperations#getDisplayPhoto()
+	 */
+	boolean writePhoto(long rawContactId, byte[] photo);
+
+	/**
+	 * Deletes a raw contact with all of its data.
+	 */
+	void delete(long rawContactId);
+
+	/**
+	 * Switches imported raw contacts, that have been inserted with suspended aggregation, back to the default aggregation mode.
+	 *
+	 * @return false, if the aggregation of some raw contacts could not be resumed
+	 */
+	boolean resumeAggregation(List<Long> rawContactIds);
+}
@@ -0,0 +1,352 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.os.Environment;
+import de.danielweisser.android.plaxosync.Constants;
+import de.danielweisser.android.plaxosync.client.Address;
+import de.danielweisser.android.plaxosync.client.CollectionValidators;
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * A compact binary copy of the synchronized contacts of an account, that is written after every successful sync. When the contacts of the
+ * account are gone from the phone, the snapshot is restored without the network and the validators of the snapshot let the next sync fetch
+ * only, if the address book has changed since.
+ *
+ * Every string is stored once in a string table and referenced by its index. Lengths and indexes are varints, so that most of them take a
+ * single byte. The pictures are not part of the snapshot. A restored contact keeps the digest and the URL of its picture and the picture is
+ * downloaded again like a deferred picture.
+ *
+ * The snapshot is kept on the external storage, so that it survives when the data of the app is cleared and when the app is uninstalled and
+ * installed again, which removes the account together with its contacts. As the external storage is readable by other apps, the contacts
+ * are encrypted with a key, that is derived from the password of the Plaxo account. So a snapshot is only restored, when the account is
+ * added again with the same password. It is not restored on another device, without a mounted external storage or when the platform lacks
+ * PBKDF2, then the first sync fetches the whole address book.
+ */
+public class ContactSnapshot {
+	private static final String DIRECTORY = "PlaxoSync";
+	private static final String FILE_PREFIX = "snapshot_";
+
+	/**
+	 * "PXS4", the snapshots of the earlier versions were not encrypted or lack the projection of their validators and are rejected
+	 */
+	private static final int MAGIC = 0x50585334;
+
+	private static final String CIPHER = "AES/CBC/PKCS5Padding";
+	private static final String KEY_DERIVATION = "PBKDF2WithHmacSHA1";
+	private static final int KEY_ITERATIONS = 1000;
+	private static final int KEY_SIZE = 128;
+	private static final int SALT_SIZE = 16;
+	private static final int IV_SIZE = 16;
+
+	/**
+	 * The index of <code>null</code>, the strings start with index 1.
+	 */
+	private static final int NULL = 0;
+
+	private final File file;
+	private final String password;
+
+	public ContactSnapshot(Context context, String accountName) {
+		this(getFile(accountName), AccountManager.get(context).getPassword(new Account(accountName, Constants.ACCOUNT_TYPE)));
+	}
+
+	/**
+	 * @param file
+	 *            The file of the snapshot
+	 * @param password
+	 *            The password, that the key of the snapshot is derived from, or <code>null</code>, if there is none
+	 */
+	ContactSnapshot(File file, String password) {
+		this.file = file;
+		this.password = password;
+	}
+
+	/**
+	 * The name of the file does not reveal the account on the external storage.
+	 */
+	private static File getFile(String accountName) {
+		String name;
+		try {
+			name = ContactDigest.digest(accountName.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			name = Integer.toHexString(accountName.hashCode());
+		}
+		return new File(new File(Environment.getExternalStorageDirectory(), DIRECTORY), FILE_PREFIX + name);
+	}
+
+	private static boolean isMounted() {
+		return Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState());
+	}
+
+	/**
+	 * @return true, if there is a snapshot, that can be decrypted with the password of the account
+	 */
+	public boolean exists() {
+		return password != null && isMounted() && file.exists();
+	}
+
+	public void delete() {
+		file.delete();
+	}
+
+	/**
+	 * Writes the snapshot. The previous snapshot is only replaced, when the new one has been written completely.
+	 *
+	 * @param contacts
+	 *            The synchronized contacts with the digests and URLs of their pictures
+	 * @param validators
+	 *            The validators of the synchronized collection
+	 */
+	public void write(Collection<Contact> contacts, CollectionValidators validators) throws IOException {
+		if (password == null) {
+			throw new IOException("No password to encrypt the snapshot " + file);
+		}
+		// Intern all strings first, so that the table can be written in front of the contacts
+		final HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+		final ArrayList<String> strings = new ArrayList<String>();
+		final ArrayList<int[]> records = new ArrayList<int[]>(contacts.size());
+		int fieldCount = 0;
+		for (Contact contact : contacts) {
+			String[] fields = ContactFields.get(contact);
+			fieldCount = fields.length;
+			int[] record = new int[fields.length + 15];
+			int i = 0;
+			record[i++] = intern(contact.getID(), indexes, strings);
+			record[i++] = intern(contact.getImageDigest(), indexes, strings);
+			record[i++] = intern(contact.getImageURL(), indexes, strings);
+			for (String field : fields) {
+				record[i++] = intern(field, indexes, strings);
+			}
+			i = internAddress(contact.getWorkAddress(), record, i, indexes, strings);
+			internAddress(contact.getHomeAddress(), record, i, indexes, strings);
+			records.add(record);
+		}
+		final int etag = intern(validators.getEtag(), indexes, strings);
+		final int lastModified = intern(validators.getLastModified(), indexes, strings);
+		final int digest = intern(validators.getDigest(), indexes, strings);
+		final int projection = intern(validators.getProjection(), indexes, strings);
+
+		final byte[] salt = new byte[SALT_SIZE];
+		final byte[] iv = new byte[IV_SIZE];
+		final SecureRandom random = new SecureRandom();
+		random.nextBytes(salt);
+		random.nextBytes(iv);
+		final Cipher cipher = createCipher(Cipher.ENCRYPT_MODE, salt, iv);
+
+		file.getParentFile().mkdirs();
+		final File tmp = new File(file.getPath() + ".tmp");
+		final FileOutputStream stream = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+		try {
+			out.writeInt(MAGIC);
+			out.write(salt);
+			out.write(iv);
+			out.flush();
+			out = new DataOutputStream(new BufferedOutputStream(new CipherOutputStream(stream, cipher)));
+			// The encrypted magic tells a wrong password from a corrupt snapshot
+			out.writeInt(MAGIC);
+			writeVarint(out, strings.size());
+			for (String s : strings) {
+				byte[] bytes = s.getBytes("UTF-8");
+				writeVarint(out, bytes.length);
+				out.write(bytes);
+			}
+			writeVarint(out, etag);
+			writeVarint(out, lastModified);
+			writeVarint(out, digest);
+			writeVarint(out, projection);
+			writeVarint(out, fieldCount);
+			writeVarint(out, records.size());
+			for (int[] record : records) {
+				for (int index : record) {
+					writeVarint(out, index);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Cannot replace " + file);
+		}
+	}
+
+	/**
+	 * Reads the snapshot from the memory mapped file. The contacts are decrypted at once from the mapped file.
+	 *
+	 * @param validators
+	 *            Receives the validators of the snapshot
+	 * @return The contacts with the digests and URLs of their pictures
+	 * @throws IOException
+	 *             If the snapshot cannot be read or decrypted or is corrupt
+	 */
+	public ArrayList<Contact> read(CollectionValidators validators) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (mapped.getInt() != MAGIC) {
+				throw new IOException("Invalid snapshot " + file);
+			}
+			final byte[] salt = new byte[SALT_SIZE];
+			final byte[] iv = new byte[IV_SIZE];
+			mapped.get(salt);
+			mapped.get(iv);
+			final Cipher cipher = createCipher(Cipher.DECRYPT_MODE, salt, iv);
+			final ByteBuffer buffer = ByteBuffer.allocate(cipher.getOutputSize(mapped.remaining()));
+			try {
+				cipher.doFinal(mapped, buffer);
+			} catch (BadPaddingException e) {
+				throw new IOException("Cannot decrypt the snapshot " + file + " with the password of the account");
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Cannot decrypt the snapshot " + file + ": " + e.getMessage());
+			}
+			buffer.flip();
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("Cannot decrypt the snapshot " + file + " with the password of the account");
+			}
+			final String[] strings = new String[readVarint(buffer) + 1];
+			for (int i = 1; i < strings.length; i++) {
+				byte[] bytes = new byte[readVarint(buffer)];
+				buffer.get(bytes);
+				strings[i] = new String(bytes, "UTF-8");
+			}
+			validators.setValues(strings[readVarint(buffer)], strings[readVarint(buffer)], strings[readVarint(buffer)],
+					strings[readVarint(buffer)]);
+			final int fieldCount = readVarint(buffer);
+			final int count = readVarint(buffer);
+			final ArrayList<Contact> contacts = new ArrayList<Contact>(count);
+			for (int c = 0; c < count; c++) {
+				Contact contact = new Contact();
+				contact.setID(strings[readVarint(buffer)]);
+				contact.setImageDigest(strings[readVarint(buffer)]);
+				contact.setImageURL(strings[readVarint(buffer)]);
+				String[] fields = new String[fieldCount];
+				for (int i = 0; i < fieldCount; i++) {
+					fields[i] = strings[readVarint(buffer)];
+				}
+				ContactFields.set(contact, fields);
+				contact.setWorkAddress(readAddress(buffer, strings));
+				contact.setHomeAddress(readAddress(buffer, strings));
+				contacts.add(contact);
+			}
+			return contacts;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated snapshot " + file);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Invalid string index in snapshot " + file);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Creates the cipher of the snapshot with a key, that is derived from the password.
+	 *
+	 * @throws IOException
+	 *             If the platform does not provide the cipher or the key derivation
+	 */
+	private Cipher createCipher(int mode, byte[] salt, byte[] iv) throws IOException {
+		try {
+			SecretKeyFactory factory = SecretKeyFactory.getInstance(KEY_DERIVATION);
+			byte[] key = factory.generateSecret(new PBEKeySpec(password.toCharArray(), salt, KEY_ITERATIONS, KEY_SIZE)).getEncoded();
+			Cipher cipher = Cipher.getInstance(CIPHER);
+			cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+			return cipher;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Cannot encrypt the snapshot: " + e.getMessage());
+		}
+	}
+
+	private static int intern(String s, HashMap<String, Integer> indexes, ArrayList<String> strings) {
+		if (s == null) {
+			return NULL;
+		}
+		Integer index = indexes.get(s);
+		if (index == null) {
+			strings.add(s);
+			index = strings.size();
+			indexes.put(s, index);
+		}
+		return index;
+	}
+
+	/**
+	 * An address takes a flag and its five fields. The fields of a missing address are <code>null</code>.
+	 */
+	private static int internAddress(Address address, int[] record, int i, HashMap<String, Integer> indexes, ArrayList<String> strings) {
+		boolean present = address != null && !address.isEmpty();
+		record[i++] = present ? 1 : 0;
+		String[] fields = present ? new String[] { address.getStreet(), address.getCity(), address.getState(), address.getZip(),
+				address.getCountry() } : new String[5];
+		for (String field : fields) {
+			record[i++] = intern(field, indexes, strings);
+		}
+		return i;
+	}
+
+	private static Address readAddress(ByteBuffer buffer, String[] strings) {
+		boolean present = readVarint(buffer) != 0;
+		String[] fields = new String[5];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = strings[readVarint(buffer)];
+		}
+		if (!present) {
+			return null;
+		}
+		Address address = new Address();
+		address.setStreet(fields[0]);
+		address.setCity(fields[1]);
+		address.setState(fields[2]);
+		address.setZip(fields[3]);
+		address.setCountry(fields[4]);
+		return address;
+	}
+
+	private static void writeVarint(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarint(ByteBuffer buffer) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new ArrayIndexOutOfBoundsException("Varint too long");
+	}
+}
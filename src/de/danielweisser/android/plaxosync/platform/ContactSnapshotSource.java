@@ -0,0 +1,40 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Set;
+
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * The read side of the store, that the {@link ContactSynchronizer} synchronizes into. It provides the raw contacts of an account and their
+ * data.
+ *
+ * @see ContactSink
+ */
+public interface ContactSnapshotSource {
+
+	/**
+	 * Retrieves all raw contacts of the account.
+	 *
+	 * @param accountName
+	 *            The account name
+	 * @param dirtyContacts
+	 *            Receives the ids of the contacts, that have been edited by the user
+	 * @return The raw contact ids by source id
+	 */
+	SourceIdIndex getRawContacts(String accountName, Set<Long> dirtyContacts);
+
+	/**
+	 * Reads the data of the given raw contacts.
+	 *
+	 * @param rawContactIds
+	 *            The ids of the raw contacts
+	 * @param slicer
+	 *            The slicer of the sync, for reads that take several batches
+	 * @return The contacts by raw contact id
+	 * @throws InterruptedException
+	 *             If the sync has been canceled
+	 */
+	HashMap<Long, Contact> getContactData(Collection<Long> rawContactIds, TimeSlicer slicer) throws InterruptedException;
+}
@@ -0,0 +1,567 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+import android.provider.ContactsContract.CommonDataKinds.Website;
+import android.provider.ContactsContract.RawContacts;
+import de.danielweisser.android.plaxosync.Constants;
+import de.danielweisser.android.plaxosync.MemoryGovernor;
+import de.danielweisser.android.plaxosync.SyncLog;
+import de.danielweisser.android.plaxosync.SyncMetrics;
+import de.danielweisser.android.plaxosync.SyncTracer;
+import de.danielweisser.android.plaxosync.client.Contact;
+import de.danielweisser.android.plaxosync.client.FieldProjection;
+
+/**
+ * Synchronizes the contacts of an account into a store. The store, the mirror and the quarantine are passed in, so that the sync runs
+ * against the contacts provider in the {@link ContactManager} and against the memory stores on a desktop JVM. The synchronizer itself only
+ * uses the constants of the contacts contract.
+ */
+public class ContactSynchronizer {
+	private static final SyncLog LOG = SyncLog.get("ContactSynchronizer");
+	private static final SyncLog.Event ADDED = LOG.event("added");
+	private static final SyncLog.Event UPDATED = LOG.event("updated");
+	private static final SyncLog.Event DELETED = LOG.event("deleted");
+	private static final SyncLog.Event QUARANTINED = LOG.event("quarantined");
+	private static final SyncLog.Event CHUNK = LOG.event("chunk");
+
+	/**
+	 * The number of contacts, that are diffed together.
+	 */
+	private static final int DIFF_CHUNK_SIZE = 500;
+
+	private final ContactSnapshotSource source;
+	private final ContactSink sink;
+	private final MirrorStore mirror;
+	private final ContactQuarantine quarantine;
+
+	/**
+	 * @param source
+	 *            The read side of the store
+	 * @param sink
+	 *            The write side of the store
+	 * @param mirror
+	 *            The mirror of the store
+	 * @param quarantine
+	 *            The quarantine of the account
+	 */
+	public ContactSynchronizer(ContactSnapshotSource source, ContactSink sink, MirrorStore mirror, ContactQuarantine quarantine) {
+		this.source = source;
+		this.sink = sink;
+		this.mirror = mirror;
+		this.quarantine = quarantine;
+	}
+
+	/**
+	 * Synchronize raw contacts
+	 *
+	 * @param accountName
+	 *            The account name
+	 * @param contacts
+	 *            The retrieved Plaxo contacts, that are iterated once
+	 * @param projection
+	 *            The fields, that have been requested from Plaxo
+	 * @param deferPhotos
+	 *            true, if the pictures are not downloaded now, but queued in the {@link DeferredPhotoQueue}
+	 * @param metrics
+	 *            The metrics of the sync
+	 * @param counters
+	 *            The counters of the sync
+	 * @return false, if the sync has been canceled or the contacts cannot be read before all contacts have been synchronized
+	 */
+	public boolean syncContacts(String accountName, Collection<Contact> contacts, FieldProjection projection, boolean deferPhotos,
+			SyncMetrics metrics, SyncCounters counters) {
+		return syncContacts(accountName, contacts, projection, deferPhotos, sink, false, metrics, counters);
+	}
+
+	/**
+	 * Runs the sync of the raw contacts as a dry run. The contacts are diffed against the store like with
+	 * {@link #syncContacts(String, Collection, FieldProjection, boolean, SyncMetrics, SyncCounters)}, but the operations are passed to the
+	 * plan instead of the sink. Neither the contacts, nor the mirror or the queue of the deferred pictures are changed.
+	 *
+	 * @return false, if the dry run has been canceled or the contacts cannot be read
+	 */
+	public boolean planContacts(String accountName, Collection<Contact> contacts, FieldProjection projection, boolean deferPhotos,
+			ContactSink plan, SyncMetrics metrics) {
+		return syncContacts(accountName, contacts, projection, deferPhotos, plan, true, metrics, new SyncCounters());
+	}
+
+	private boolean syncContacts(String accountName, Collection<Contact> contacts, FieldProjection projection, boolean deferPhotos,
+			ContactSink sink, boolean dryRun, SyncMetrics metrics, SyncCounters counters) {
+		final TimeSlicer slicer = new TimeSlicer();
+		try {
+			applyContacts(accountName, contacts, projection, deferPhotos, sink, dryRun, slicer, metrics, counters);
+			return true;
+		} catch (InterruptedException e) {
+			LOG.w("Sync has been canceled after " + slicer.getSlices() + " slices");
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (IllegalStateException e) {
+			// The buffered contacts cannot be read, the contacts on the phone must not be deleted
+			LOG.e(e.getMessage(), e);
+			return false;
+		}
+	}
+
+	private void applyContacts(String accountName, Collection<Contact> contacts, final FieldProjection projection, final boolean deferPhotos,
+			final ContactSink sink, boolean dryRun, final TimeSlicer slicer, SyncMetrics metrics, SyncCounters counters)
+			throws InterruptedException {
+		final long start = now();
+		final DeferredPhotoQueue deferredPhotos = mirror.getDeferredPhotos();
+		final BatchApplier applier = new BatchApplier(sink, quarantine, mirror, accountName, slicer, metrics, counters);
+		applier.setDryRun(dryRun);
+
+		// Get all phone contacts for the Plaxo account
+		final HashSet<Long> dirtyContacts = new HashSet<Long>();
+		final SourceIdIndex contactsOnPhone = source.getRawContacts(accountName, dirtyContacts);
+
+		if (contactsOnPhone.isEmpty()) {
+			if (!dryRun) {
+				mirror.clear(accountName);
+				deferredPhotos.clear(accountName);
+			}
+			importContacts(sink, accountName, contacts, deferPhotos, false, applier, dryRun ? null : mirror.getPendingAggregation(), counters);
+			LOG.i("Imported " + contacts.size() + " contacts in " + (now() - start) + "ms (" + slicer.getSlices() + " slices)");
+			return;
+		}
+
+		// Update and create new contacts. The contacts are diffed and applied in chunks, so that only a chunk is in memory, when they are
+		// streamed from a ContactBuffer.
+		final Iterator<Contact> it = contacts.iterator();
+		final ArrayList<ContactOperations> contactOps = new ArrayList<ContactOperations>(DIFF_CHUNK_SIZE);
+		int total = 0;
+		int unchanged = 0;
+		int deferred = 0;
+		final ParallelDiff parallelDiff = new ParallelDiff();
+		try {
+			while (it.hasNext()) {
+				contactOps.clear();
+				while (it.hasNext() && contactOps.size() < DIFF_CHUNK_SIZE) {
+					final Contact contact = it.next();
+					final long contactId = contactsOnPhone.visit(contact.getID());
+					if (quarantine.isQuarantined(contact)) {
+						if (QUARANTINED.sample()) {
+							LOG.d("Skip quarantined contact: " + contact.getID());
+						}
+						counters.numSkippedEntries++;
+					} else if (contactId != SourceIdIndex.NOT_FOUND) {
+						ContactOperations ops = new ContactOperations(contact, contactId);
+						if (dirtyContacts.contains(contactId)) {
+							ops.update(ContactOperations.RAW_CONTACT, ContactOperations.ANY_TYPE).put(RawContacts.DIRTY, 0);
+						}
+						contactOps.add(ops);
+					} else {
+						if (ADDED.sample()) {
+							LOG.d("Add contact: " + contact.getFirstName() + " " + contact.getLastName());
+						}
+						contactOps.add(createContactOperations(accountName, contact, RawContacts.AGGREGATION_MODE_DEFAULT));
+					}
+				}
+
+				// The diff runs against the mirror. Only contacts, that are not mirrored yet or that have been edited on the phone, are read from
+				// the provider.
+				final ArrayList<Long> ids = new ArrayList<Long>(contactOps.size());
+				for (ContactOperations ops : contactOps) {
+					if (!ops.isNew()) {
+						ids.add(ops.getRawContactId());
+					}
+				}
+				final HashMap<Long, Contact> mirrorData = mirror.load(ids);
+				final HashSet<Long> unmirrored = new HashSet<Long>();
+				for (Long id : ids) {
+					if (!mirrorData.containsKey(id) || dirtyContacts.contains(id)) {
+						unmirrored.add(id);
+					}
+				}
+				if (CHUNK.sample()) {
+					LOG.d("Read " + unmirrored.size() + " of " + contactOps.size() + " contacts from the provider");
+				}
+				final HashMap<Long, Contact> dataOnPhone = source.getContactData(unmirrored, slicer);
+				final HashMap<Long, Contact> existingContacts = new HashMap<Long, Contact>(ids.size());
+				for (Long id : ids) {
+					final Contact existingContact = unmirrored.contains(id) ? dataOnPhone.get(id) : mirrorData.get(id);
+					if (existingContact != null) {
+						existingContacts.put(id, existingContact);
+					}
+				}
+
+				// The pictures are downloaded before the diff, so that the partitions of the diff only compare the contacts in memory
+				SyncTracer.begin("loadPictures");
+				try {
+					for (ContactOperations ops : contactOps) {
+						slicer.checkpoint();
+						loadPicture(ops, getExistingContact(ops, existingContacts), projection, deferPhotos);
+					}
+				} finally {
+					SyncTracer.end("loadPictures");
+				}
+
+				SyncTracer.begin("diffContacts");
+				try {
+					parallelDiff.diff(contactOps, new ParallelDiff.Differ() {
+						public void diff(ContactOperations ops) {
+							final String span = ops.isNew() ? "addContact" : "updateContact";
+							SyncTracer.begin(span);
+							try {
+								ContactNormalizer.normalize(ops.getContact());
+								final Contact existingContact = getExistingContact(ops, existingContacts);
+								ops.setMirrored(!ops.isNew() && !unmirrored.contains(ops.getRawContactId()));
+								ContactNormalizer.normalize(existingContact);
+								prepareFields(ops.getContact(), existingContact, ops, projection, sink);
+							} finally {
+								SyncTracer.end(span);
+							}
+						}
+					});
+				} finally {
+					SyncTracer.end("diffContacts");
+				}
+				for (ContactOperations ops : contactOps) {
+					if (!ops.isNew() && ops.isEmpty()) {
+						unchanged++;
+					} else if (!ops.isNew() && UPDATED.sample()) {
+						// Only contacts with operations are counted, the unchanged ones are in the summary of the skipped writes
+						LOG.d("Update contact: " + ops.getSourceId());
+					}
+					if (ops.isPhotoDeferred()) {
+						deferred++;
+					}
+					applier.add(ops);
+				}
+				total += contactOps.size();
+			}
+		} finally {
+			parallelDiff.shutdown();
+		}
+		contactOps.clear();
+		applier.flush();
+		if (total > 0) {
+			LOG.i("Skipped writes for " + unchanged + " of " + total + " contacts (" + (unchanged * 100 / total) + "%)");
+		}
+		if (deferred > 0) {
+			LOG.i("Deferred the pictures of " + deferred + " contacts");
+		}
+
+		// Delete contacts
+		final ArrayList<Long> deletedContacts = new ArrayList<Long>(contactsOnPhone.unvisitedSize());
+		contactsOnPhone.forEachUnvisited(new SourceIdIndex.Visitor() {
+			public void visit(String sourceId, long rawContactId) {
+				if (DELETED.sample()) {
+					LOG.d("Delete contact: " + sourceId + "(" + rawContactId + ")");
+				}
+				deletedContacts.add(rawContactId);
+			}
+		});
+		for (long rawContactId : deletedContacts) {
+			slicer.checkpoint();
+			sink.delete(rawContactId);
+			if (!dryRun) {
+				mirror.delete(rawContactId);
+				removeDeferredPhoto(deferredPhotos, rawContactId);
+			}
+			counters.numDeletes++;
+		}
+		LOG.i("Synchronized " + contacts.size() + " contacts in " + (now() - start) + "ms (" + slicer.getSlices() + " slices)");
+	}
+
+	/**
+	 * Imports all contacts into an account, that has no contacts on the phone yet. The raw contacts are inserted in batches with suspended
+	 * aggregation, which is resumed afterwards, so that the aggregation does not run for every single insert. The aggregation is also
+	 * resumed for the contacts, that have been inserted before the sync has been canceled. The inserted raw contacts are recorded in the
+	 * {@link PendingAggregation} until then, so that the next sync resumes them, if the import is killed.
+	 *
+	 * @param sink
+	 *            The sink of the contacts
+	 * @param accountName
+	 *            The account name
+	 * @param contacts
+	 *            The list of retrieved Plaxo contacts
+	 * @param deferPhotos
+	 *            true, if the pictures are queued instead of downloaded
+	 * @param restored
+	 *            true, if the contacts come from the snapshot instead of Plaxo
+	 * @param applier
+	 *            The batch applier
+	 * @param pendingAggregation
+	 *            The raw contacts with suspended aggregation or <code>null</code> in a dry run
+	 * @param counters
+	 *            The counters of the sync
+	 * @throws InterruptedException
+	 *             If the sync has been canceled
+	 */
+	private void importContacts(ContactSink sink, String accountName, Collection<Contact> contacts, boolean deferPhotos, boolean restored,
+			BatchApplier applier, PendingAggregation pendingAggregation, SyncCounters counters) throws InterruptedException {
+		applier.setPendingAggregation(pendingAggregation);
+		// The account has no contacts yet, so the committed part of a failed batch can be found by the source ids
+		applier.setYieldSource(source);
+		try {
+			for (final Contact contact : contacts) {
+				if (quarantine.isQuarantined(contact)) {
+					counters.numSkippedEntries++;
+					continue;
+				}
+				SyncTracer.begin("addContact");
+				ContactOperations ops = createContactOperations(accountName, contact, RawContacts.AGGREGATION_MODE_SUSPENDED);
+				ContactNormalizer.normalize(contact);
+				if (restored) {
+					// A restored contact is written without the network, its picture is downloaded later like a deferred picture
+					ops.setPhotoDeferred(!isEmpty(contact.getImageURL()));
+				} else {
+					ops.setPhotoDeferred(isPhotoDeferred(contact, deferPhotos) || isPhotoMissing(contact));
+				}
+				new ContactMerger(contact, null, ops, sink).insertContact(!ops.isPhotoDeferred());
+				SyncTracer.end("addContact");
+				applier.add(ops);
+			}
+			applier.flush();
+		} finally {
+			if (sink.resumeAggregation(applier.getInsertedIds()) && pendingAggregation != null) {
+				pendingAggregation.clear(accountName);
+			}
+		}
+	}
+
+	/**
+	 * Resumes the aggregation of the raw contacts, that an import has left suspended, because it has been killed.
+	 *
+	 * @param accountName
+	 *            The account name
+	 */
+	public void resumeAggregation(String accountName) {
+		final PendingAggregation pendingAggregation = mirror.getPendingAggregation();
+		final List<Long> rawContactIds = pendingAggregation.load(accountName);
+		if (!rawContactIds.isEmpty()) {
+			LOG.i("Resume the aggregation of " + rawContactIds.size() + " contacts");
+			if (sink.resumeAggregation(rawContactIds)) {
+				pendingAggregation.clear(accountName);
+			}
+		}
+	}
+
+	/**
+	 * Downloads the pictures, that have been deferred by earlier text only syncs, and writes them to the contacts. The contacts are taken from
+	 * the mirror, so that nothing has to be fetched from Plaxo again.
+	 *
+	 * @param accountName
+	 *            The account name
+	 * @param metrics
+	 *            The metrics of the sync
+	 * @param counters
+	 *            The counters of the sync
+	 * @return false, if the sync has been canceled before all pictures have been written
+	 */
+	public boolean syncDeferredPhotos(String accountName, SyncMetrics metrics, SyncCounters counters) {
+		final TimeSlicer slicer = new TimeSlicer();
+		try {
+			final DeferredPhotoQueue deferredPhotos = mirror.getDeferredPhotos();
+			final HashMap<Long, String> photos = deferredPhotos.load(accountName);
+			if (photos.isEmpty()) {
+				return true;
+			}
+			final long start = now();
+			final BatchApplier applier = new BatchApplier(sink, quarantine, mirror, accountName, slicer, metrics, counters);
+			int written = 0;
+			for (Long rawContactId : photos.keySet()) {
+				slicer.checkpoint();
+				if (!MemoryGovernor.allowsPhotos()) {
+					LOG.i("Stop downloading the deferred pictures under memory pressure");
+					break;
+				}
+				final Contact existingContact = mirror.get(rawContactId);
+				if (existingContact == null) {
+					removeDeferredPhoto(deferredPhotos, rawContactId);
+					continue;
+				}
+				final Contact contact = ContactFields.copy(existingContact);
+				contact.setImageURL(photos.get(rawContactId));
+				if (contact.getImage() == null) {
+					// Keep the current picture and try again with the next sync
+					LOG.w("Cannot download the deferred picture of contact " + contact.getID());
+					continue;
+				}
+				ContactOperations ops = new ContactOperations(contact, rawContactId);
+				new ContactMerger(contact, existingContact, ops, sink).updatePicture();
+				applier.add(ops);
+				written++;
+			}
+			applier.flush();
+			LOG.i("Downloaded " + written + " of " + photos.size() + " deferred pictures in " + (now() - start) + "ms");
+			return true;
+		} catch (InterruptedException e) {
+			LOG.w("Download of the deferred pictures has been canceled after " + slicer.getSlices() + " slices");
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Imports the contacts of a snapshot into an account, that has no contacts on the phone. Nothing is downloaded, the pictures are queued
+	 * like deferred pictures and downloaded by a later sync.
+	 *
+	 * @param accountName
+	 *            The account name
+	 * @param contacts
+	 *            The contacts of the snapshot
+	 * @param metrics
+	 *            The metrics of the sync
+	 * @param counters
+	 *            The counters of the sync
+	 * @return false, if the import has been canceled
+	 */
+	public boolean restoreContacts(String accountName, List<Contact> contacts, SyncMetrics metrics, SyncCounters counters) {
+		final long start = now();
+		final TimeSlicer slicer = new TimeSlicer();
+		try {
+			final BatchApplier applier = new BatchApplier(sink, quarantine, mirror, accountName, slicer, metrics, counters);
+			mirror.clear(accountName);
+			mirror.getDeferredPhotos().clear(accountName);
+			importContacts(sink, accountName, contacts, false, true, applier, mirror.getPendingAggregation(), counters);
+			LOG.i("Restored " + contacts.size() + " contacts from the snapshot in " + (now() - start) + "ms");
+			return true;
+		} catch (InterruptedException e) {
+			LOG.w("Restore has been canceled after " + slicer.getSlices() + " slices");
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Removes a queued picture outside of a transaction. A picture, that stays queued, is dropped by the next download of the queue.
+	 */
+	private static void removeDeferredPhoto(DeferredPhotoQueue deferredPhotos, long rawContactId) {
+		try {
+			deferredPhotos.remove(rawContactId);
+		} catch (MirrorException e) {
+			LOG.e(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return true, if the picture of the contact is not downloaded with this sync, but queued. The picture is always downloaded under
+	 *         critical memory pressure by a later sync.
+	 */
+	private static boolean isPhotoDeferred(Contact contact, boolean deferPhotos) {
+		return !isEmpty(contact.getImageURL()) && (deferPhotos || !MemoryGovernor.allowsPhotos());
+	}
+
+	/**
+	 * @return true, if the URL of the picture differs from the mirrored one or if the picture has not been written yet
+	 */
+	private static boolean isPhotoChanged(Contact newC, Contact existingC) {
+		if (existingC.getImageDigest() == null) {
+			return true;
+		}
+		return newC.getImageURL() == null ? existingC.getImageURL() != null : !newC.getImageURL().equals(existingC.getImageURL());
+	}
+
+	/**
+	 * Keeps the picture on the phone, so that the mirror keeps its digest and URL.
+	 */
+	private static void keepPicture(Contact existingC, ContactOperations ops) {
+		ops.setImageDigest(existingC.getImageDigest());
+		ops.setImageURL(existingC.getImageURL());
+	}
+
+	/**
+	 * Loads the picture of the contact.
+	 *
+	 * @return true, if the contact has a picture, that could not be loaded, e.g. under memory pressure. It is queued like a deferred picture,
+	 *         so that the current picture is not deleted.
+	 */
+	private static boolean isPhotoMissing(Contact contact) {
+		return !isEmpty(contact.getImageURL()) && contact.getImage() == null;
+	}
+
+	private static boolean isEmpty(String value) {
+		return value == null || value.length() == 0;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * Creates the operations for a new contact, starting with the insert into the raw contacts table.
+	 */
+	private static ContactOperations createContactOperations(String accountName, Contact contact, int aggregationMode) {
+		ContactOperations ops = new ContactOperations(contact, -1);
+		ops.insert(ContactOperations.RAW_CONTACT).put(RawContacts.ACCOUNT_TYPE, Constants.ACCOUNT_TYPE).put(RawContacts.ACCOUNT_NAME, accountName)
+				.put(RawContacts.SOURCE_ID, contact.getID()).put(RawContacts.AGGREGATION_MODE, aggregationMode);
+		return ops;
+	}
+
+	/**
+	 * @return The contact on the phone, that the diff compares with, or an empty contact for a new contact
+	 */
+	private static Contact getExistingContact(ContactOperations ops, HashMap<Long, Contact> existingContacts) {
+		final Contact existingContact = ops.isNew() ? null : existingContacts.get(ops.getRawContactId());
+		return existingContact != null ? existingContact : new Contact();
+	}
+
+	/**
+	 * Downloads the picture of a contact, when the diff has to write it. A picture is only downloaded, when its URL differs from the mirror.
+	 * Deferred pictures and pictures, that could not be loaded, are marked, so that the diff keeps them and they are queued for a later sync.
+	 */
+	private static void loadPicture(ContactOperations ops, Contact existingC, FieldProjection projection, boolean deferPhotos) {
+		final Contact newC = ops.getContact();
+		if (!projection.isEnabled(FieldProjection.PHOTOS) || isEmpty(newC.getImageURL()) || !isPhotoChanged(newC, existingC)) {
+			return;
+		}
+		if (isPhotoDeferred(newC, deferPhotos) || isPhotoMissing(newC)) {
+			ops.setPhotoDeferred(true);
+		}
+	}
+
+	/**
+	 * Creates the operations for the changed fields. The fields, that have not been requested from Plaxo, are kept as they are on the phone.
+	 * The pictures have been loaded by {@link #loadPicture(ContactOperations, Contact, FieldProjection, boolean)} before, so nothing is
+	 * downloaded here.
+	 */
+	private static void prepareFields(Contact newC, Contact existingC, ContactOperations ops, FieldProjection projection, ContactSink sink) {
+		ContactMerger contactMerger = new ContactMerger(newC, existingC, ops, sink);
+		contactMerger.updateName();
+		contactMerger.updateMail(Email.TYPE_WORK);
+		contactMerger.updateMail(Email.TYPE_HOME);
+
+		contactMerger.updatePhone(Phone.TYPE_HOME);
+		contactMerger.updatePhone(Phone.TYPE_MOBILE);
+		contactMerger.updatePhone(Phone.TYPE_WORK_MOBILE);
+		contactMerger.updatePhone(Phone.TYPE_WORK);
+		contactMerger.updatePhone(Phone.TYPE_FAX_WORK);
+		contactMerger.updatePhone(Phone.TYPE_FAX_HOME);
+
+		contactMerger.updateURL(Website.TYPE_HOME);
+		contactMerger.updateURL(Website.TYPE_WORK);
+		contactMerger.updateURL(Website.TYPE_PROFILE);
+
+		if (!projection.isEnabled(FieldProjection.PHOTOS)) {
+			keepPicture(existingC, ops);
+		} else if (!isEmpty(newC.getImageURL()) && !isPhotoChanged(newC, existingC)) {
+			// The picture on the phone is current, so it is not downloaded to compare it
+			keepPicture(existingC, ops);
+		} else if (ops.isPhotoDeferred()) {
+			// The picture is written with a later sync
+			keepPicture(existingC, ops);
+		} else {
+			contactMerger.updatePicture();
+		}
+		contactMerger.updateBirthday();
+		contactMerger.updateCompanyInformation();
+
+		if (projection.isEnabled(FieldProjection.ADDRESSES)) {
+			contactMerger.updateAddress(StructuredPostal.TYPE_WORK);
+			contactMerger.updateAddress(StructuredPostal.TYPE_HOME);
+		} else {
+			newC.setWorkAddress(existingC.getWorkAddress());
+			newC.setHomeAddress(existingC.getHomeAddress());
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * The pictures, that have not been downloaded by a text only sync. The queue is kept by the {@link MirrorStore}, so that it survives until
+ * the device is on an unmetered link or charging and the queue is drained.
+ */
+public interface DeferredPhotoQueue {
+
+	/**
+	 * Queues the picture of a contact. A picture, that is already queued, is replaced.
+	 *
+	 * @throws MirrorException
+	 *             If the picture cannot be queued, so that the transaction of the caller is not committed
+	 */
+	void add(String accountName, long rawContactId, String imageURL);
+
+	/**
+	 * @throws MirrorException
+	 *             If the picture cannot be removed, so that the transaction of the caller is not committed
+	 */
+	void remove(long rawContactId);
+
+	/**
+	 * Removes all pictures of an account.
+	 */
+	void clear(String accountName);
+
+	/**
+	 * @return The ids of the raw contacts, whose pictures are queued
+	 */
+	HashSet<Long> getIds(String accountName);
+
+	/**
+	 * Loads the queued pictures of an account.
+	 *
+	 * @return The URLs of the pictures by raw contact id
+	 */
+	HashMap<Long, String> load(String accountName);
+}
@@ -0,0 +1,334 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Event;
+import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+import android.provider.ContactsContract.CommonDataKinds.Website;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import de.danielweisser.android.plaxosync.client.Address;
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * A store of a single account, that keeps the raw contacts and their data rows in memory. It is used to run the sync without the contacts
+ * provider, e.g. to check the result and the throughput of the sync of a large address book. The store only uses the constants of the
+ * contacts contract, so that it can be used on a desktop JVM.
+ *
+ * The store applies the recorded operations to its rows like the contacts provider: an insert adds a data row, an update and a delete change
+ * the rows of the raw contact with the MIME type and the type of the operation. The contacts are read back from the rows like the
+ * {@link ProviderContactStore} reads them, so that a sync, that writes the wrong rows, reads the wrong contacts.
+ */
+public class MemoryContactStore implements ContactSnapshotSource, ContactSink {
+
+	/**
+	 * A data row of a raw contact.
+	 */
+	private static class Row {
+		final String mimeType;
+		final HashMap<String, Object> values = new HashMap<String, Object>();
+
+		Row(String mimeType) {
+			this.mimeType = mimeType;
+		}
+
+		String getString(String column) {
+			Object value = values.get(column);
+			return value != null ? value.toString() : null;
+		}
+
+		int getInt(String column) {
+			Object value = values.get(column);
+			return value instanceof Number ? ((Number) value).intValue() : 0;
+		}
+
+		boolean matches(ContactOperations.Operation op) {
+			return mimeType.equals(op.getMimeType()) && (op.getRowType() == ContactOperations.ANY_TYPE || getInt(Data.DATA2) == op.getRowType());
+		}
+	}
+
+	private static class RawContact {
+		final String sourceId;
+		final ArrayList<Row> rows = new ArrayList<Row>();
+		boolean dirty;
+
+		RawContact(String sourceId) {
+			this.sourceId = sourceId;
+		}
+
+		Row getPhotoRow() {
+			for (Row row : rows) {
+				if (Photo.CONTENT_ITEM_TYPE.equals(row.mimeType)) {
+					return row;
+				}
+			}
+			return null;
+		}
+	}
+
+	private final String accountName;
+	private final HashMap<Long, RawContact> rawContacts = new HashMap<Long, RawContact>();
+	private long nextId = 1;
+	private int batches = 0;
+	private int operations = 0;
+
+	public MemoryContactStore(String accountName) {
+		this.accountName = accountName;
+	}
+
+	public synchronized SourceIdIndex getRawContacts(String accountName, Set<Long> dirtyContacts) {
+		SourceIdIndex index = new SourceIdIndex(rawContacts.size());
+		if (!this.accountName.equals(accountName)) {
+			return index;
+		}
+		for (Map.Entry<Long, RawContact> entry : rawContacts.entrySet()) {
+			index.put(entry.getValue().sourceId, entry.getKey());
+			if (entry.getValue().dirty) {
+				dirtyContacts.add(entry.getKey());
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Reads the contacts like the {@link ProviderContactStore}: a picture with a digest is only read by its digest.
+	 */
+	public synchronized HashMap<Long, Contact> getContactData(Collection<Long> rawContactIds, TimeSlicer slicer) {
+		HashMap<Long, Contact> data = new HashMap<Long, Contact>();
+		for (Long rawContactId : rawContactIds) {
+			RawContact rawContact = rawContacts.get(rawContactId);
+			if (rawContact != null && !rawContact.rows.isEmpty()) {
+				Contact contact = read(rawContact);
+				if (contact.getImageDigest() == null) {
+					contact.setImage(getPhoto(rawContactId));
+				}
+				data.put(rawContactId, contact);
+			}
+		}
+		return data;
+	}
+
+	public synchronized long[] apply(List<ContactOperations> contacts, boolean yieldAllowed) {
+		final long[] rawContactIds = new long[contacts.size()];
+		for (int i = 0; i < contacts.size(); i++) {
+			ContactOperations ops = contacts.get(i);
+			rawContactIds[i] = ops.getRawContactId();
+			RawContact rawContact = rawContacts.get(rawContactIds[i]);
+			for (int j = 0; j < ops.size(); j++) {
+				ContactOperations.Operation op = ops.get(j);
+				if (ContactOperations.RAW_CONTACT.equals(op.getMimeType())) {
+					if (op.getType() == ContactOperations.INSERT) {
+						rawContactIds[i] = nextId++;
+						rawContact = new RawContact((String) op.getValues().get(RawContacts.SOURCE_ID));
+						rawContacts.put(rawContactIds[i], rawContact);
+					} else if (rawContact != null && op.getType() == ContactOperations.DELETE) {
+						rawContacts.remove(rawContactIds[i]);
+						rawContact = null;
+					} else if (rawContact != null && op.getValues().containsKey(RawContacts.DIRTY)) {
+						rawContact.dirty = ((Number) op.getValues().get(RawContacts.DIRTY)).intValue() != 0;
+					}
+				} else if (rawContact != null) {
+					// The provider ignores the changes of deleted raw contacts as well
+					applyDataOperation(rawContact, op);
+				}
+			}
+			operations += ops.size();
+		}
+		batches++;
+		return rawContactIds;
+	}
+
+	private static void applyDataOperation(RawContact rawContact, ContactOperations.Operation op) {
+		if (op.getType() == ContactOperations.INSERT) {
+			Row row = new Row(op.getMimeType());
+			row.values.putAll(op.getValues());
+			rawContact.rows.add(row);
+			return;
+		}
+		for (Iterator<Row> it = rawContact.rows.iterator(); it.hasNext();) {
+			Row row = it.next();
+			if (!row.matches(op)) {
+				continue;
+			}
+			if (op.getType() == ContactOperations.DELETE) {
+				it.remove();
+			} else {
+				row.values.putAll(op.getValues());
+			}
+		}
+	}
+
+	public boolean isStreamed(byte[] photo) {
+		// The store supports display photos like the provider since Android 4.0
+		return photo != null && photo.length > PhotoWriter.MAX_INLINE_PHOTO_SIZE;
+	}
+
+	/**
+	 * Writes the display photo and its digest like the {@link PhotoWriter}. The photo row is created, if the raw contact has none.
+	 */
+	public synchronized boolean writePhoto(long rawContactId, byte[] photo) {
+		RawContact rawContact = rawContacts.get(rawContactId);
+		if (rawContact == null) {
+			return false;
+		}
+		Row row = rawContact.getPhotoRow();
+		if (row == null) {
+			row = new Row(Photo.CONTENT_ITEM_TYPE);
+			rawContact.rows.add(row);
+		}
+		row.values.put(Photo.PHOTO, photo);
+		row.values.put(PhotoWriter.PHOTO_DIGEST, ContactDigest.digest(photo));
+		return true;
+	}
+
+	public synchronized void delete(long rawContactId) {
+		rawContacts.remove(rawContactId);
+	}
+
+	public boolean resumeAggregation(List<Long> rawContactIds) {
+		// Nothing is aggregated
+		return true;
+	}
+
+	/**
+	 * Reads the data rows of a raw contact like {@link ProviderContactStore} reads them.
+	 */
+	private static Contact read(RawContact rawContact) {
+		Contact contact = new Contact();
+		for (Row row : rawContact.rows) {
+			int type = row.getInt(Data.DATA2);
+			if (row.mimeType.equals(StructuredName.CONTENT_ITEM_TYPE)) {
+				contact.setFirstName(row.getString(Data.DATA2));
+				contact.setLastName(row.getString(Data.DATA3));
+				contact.setNamePrefix(row.getString(Data.DATA4));
+			} else if (row.mimeType.equals(Email.CONTENT_ITEM_TYPE)) {
+				if (type == Email.TYPE_HOME) {
+					contact.setHomeEmail(row.getString(Data.DATA1));
+				} else if (type == Email.TYPE_WORK) {
+					contact.setWorkEmail(row.getString(Data.DATA1));
+				}
+			} else if (row.mimeType.equals(Phone.CONTENT_ITEM_TYPE)) {
+				if (type == Phone.TYPE_WORK_MOBILE) {
+					contact.setCellWorkPhone(row.getString(Data.DATA1));
+				} else if (type == Phone.TYPE_WORK) {
+					contact.setWorkPhone(row.getString(Data.DATA1));
+				} else if (type == Phone.TYPE_HOME) {
+					contact.setHomePhone(row.getString(Data.DATA1));
+				} else if (type == Phone.TYPE_MOBILE) {
+					contact.setCellHomePhone(row.getString(Data.DATA1));
+				} else if (type == Phone.TYPE_FAX_HOME) {
+					contact.setHomeFax(row.getString(Data.DATA1));
+				} else if (type == Phone.TYPE_FAX_WORK) {
+					contact.setWorkFax(row.getString(Data.DATA1));
+				}
+			} else if (row.mimeType.equals(Website.CONTENT_ITEM_TYPE)) {
+				if (type == Website.TYPE_HOME) {
+					contact.setHomeURL(row.getString(Data.DATA1));
+				} else if (type == Website.TYPE_WORK) {
+					contact.setWorkURL(row.getString(Data.DATA1));
+				}
+			} else if (row.mimeType.equals(Organization.CONTENT_ITEM_TYPE)) {
+				if (type == Organization.TYPE_WORK) {
+					contact.setCompany(row.getString(Data.DATA1));
+					contact.setTitle(row.getString(Data.DATA4));
+				}
+			} else if (row.mimeType.equals(Event.CONTENT_ITEM_TYPE)) {
+				if (type == Event.TYPE_BIRTHDAY) {
+					contact.setDateOfBirth(row.getString(Data.DATA1));
+				}
+			} else if (row.mimeType.equals(Photo.CONTENT_ITEM_TYPE)) {
+				contact.setImageDigest(row.getString(PhotoWriter.PHOTO_DIGEST));
+			} else if (row.mimeType.equals(StructuredPostal.CONTENT_ITEM_TYPE)) {
+				Address address = new Address();
+				address.setStreet(row.getString(Data.DATA4));
+				address.setCity(row.getString(Data.DATA7));
+				address.setCountry(row.getString(Data.DATA10));
+				address.setZip(row.getString(Data.DATA9));
+				address.setState(row.getString(Data.DATA8));
+				if (type == StructuredPostal.TYPE_WORK) {
+					contact.setWorkAddress(address);
+				} else if (type == StructuredPostal.TYPE_HOME) {
+					contact.setHomeAddress(address);
+				}
+			}
+		}
+		return contact;
+	}
+
+	/**
+	 * Marks a contact as edited by the user, so that the next sync reads it from the store instead of the mirror.
+	 */
+	public synchronized void setDirty(long rawContactId) {
+		RawContact rawContact = rawContacts.get(rawContactId);
+		if (rawContact != null) {
+			rawContact.dirty = true;
+		}
+	}
+
+	/**
+	 * @return The contact as it is read from the rows with its picture or <code>null</code>, if there is no such raw contact
+	 */
+	public synchronized Contact get(long rawContactId) {
+		RawContact rawContact = rawContacts.get(rawContactId);
+		if (rawContact == null) {
+			return null;
+		}
+		Contact contact = read(rawContact);
+		contact.setImage(getPhoto(rawContactId));
+		return contact;
+	}
+
+	/**
+	 * @return The picture, that has been written with a batch or separately, or <code>null</code>
+	 */
+	public synchronized byte[] getPhoto(long rawContactId) {
+		RawContact rawContact = rawContacts.get(rawContactId);
+		Row row = rawContact != null ? rawContact.getPhotoRow() : null;
+		return row != null ? (byte[]) row.values.get(Photo.PHOTO) : null;
+	}
+
+	/**
+	 * @return The number of data rows of the raw contact with the given MIME type, e.g. to find duplicate rows
+	 */
+	public synchronized int getRows(long rawContactId, String mimeType) {
+		RawContact rawContact = rawContacts.get(rawContactId);
+		int rows = 0;
+		if (rawContact != null) {
+			for (Row row : rawContact.rows) {
+				if (row.mimeType.equals(mimeType)) {
+					rows++;
+				}
+			}
+		}
+		return rows;
+	}
+
+	public synchronized int size() {
+		return rawContacts.size();
+	}
+
+	/**
+	 * @return The number of batches, that have been applied
+	 */
+	public synchronized int getBatches() {
+		return batches;
+	}
+
+	/**
+	 * @return The number of operations, that have been applied
+	 */
+	public synchronized int getOperations() {
+		return operations;
+	}
+}
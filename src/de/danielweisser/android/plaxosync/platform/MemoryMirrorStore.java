@@ -0,0 +1,227 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * A mirror, that keeps the contacts, the queue of the deferred pictures and the raw contacts with suspended aggregation in memory. It is
+ * used together with the {@link MemoryContactStore} to run the sync on a desktop JVM. The contacts are copied in and out like they are
+ * written to and read from the database of the {@link ContactMirror}.
+ *
+ * A transaction keeps the previous values of the changed entries and puts them back, when it ends without a commit.
+ */
+public class MemoryMirrorStore implements MirrorStore {
+
+	private static class Entry {
+		final String accountName;
+		final Contact contact;
+
+		Entry(String accountName, Contact contact) {
+			this.accountName = accountName;
+			this.contact = contact;
+		}
+	}
+
+	/**
+	 * The value of an entry before a change of the transaction.
+	 */
+	private static class Change {
+		final HashMap<Long, Object> map;
+		final long rawContactId;
+		final Object previous;
+
+		Change(HashMap<Long, Object> map, long rawContactId) {
+			this.map = map;
+			this.rawContactId = rawContactId;
+			this.previous = map.get(rawContactId);
+		}
+
+		void undo() {
+			if (previous == null) {
+				map.remove(rawContactId);
+			} else {
+				map.put(rawContactId, previous);
+			}
+		}
+	}
+
+	private final HashMap<Long, Entry> contacts = new HashMap<Long, Entry>();
+	private final HashMap<Long, String[]> deferredPhotos = new HashMap<Long, String[]>();
+	private final HashMap<Long, String> pendingAggregation = new HashMap<Long, String>();
+
+	/**
+	 * The changes of the transaction or <code>null</code> outside of a transaction.
+	 */
+	private ArrayList<Change> journal = null;
+	private boolean committed = false;
+
+	public synchronized HashMap<Long, Contact> load(String accountName) {
+		HashMap<Long, Contact> result = new HashMap<Long, Contact>();
+		for (Map.Entry<Long, Entry> entry : contacts.entrySet()) {
+			if (entry.getValue().accountName.equals(accountName)) {
+				result.put(entry.getKey(), ContactFields.copy(entry.getValue().contact));
+			}
+		}
+		return result;
+	}
+
+	public synchronized HashMap<Long, Contact> load(Collection<Long> rawContactIds) {
+		HashMap<Long, Contact> result = new HashMap<Long, Contact>();
+		for (Long rawContactId : rawContactIds) {
+			Entry entry = contacts.get(rawContactId);
+			if (entry != null) {
+				result.put(rawContactId, ContactFields.copy(entry.contact));
+			}
+		}
+		return result;
+	}
+
+	public synchronized Contact get(long rawContactId) {
+		Entry entry = contacts.get(rawContactId);
+		return entry != null ? ContactFields.copy(entry.contact) : null;
+	}
+
+	public synchronized void put(String accountName, long rawContactId, Contact contact, String imageDigest, String imageURL) {
+		Contact copy = ContactFields.copy(contact);
+		copy.setImageDigest(imageDigest);
+		copy.setImageURL(imageURL);
+		put(contacts, rawContactId, new Entry(accountName, copy));
+	}
+
+	public synchronized void delete(long rawContactId) {
+		remove(contacts, rawContactId);
+	}
+
+	public synchronized void clear(String accountName) {
+		for (Long rawContactId : new ArrayList<Long>(contacts.keySet())) {
+			if (contacts.get(rawContactId).accountName.equals(accountName)) {
+				remove(contacts, rawContactId);
+			}
+		}
+	}
+
+	public synchronized void beginTransaction() {
+		if (journal != null) {
+			throw new IllegalStateException("The mirror is already in a transaction");
+		}
+		journal = new ArrayList<Change>();
+		committed = false;
+	}
+
+	public synchronized void commit() {
+		committed = true;
+	}
+
+	public synchronized void endTransaction() {
+		if (!committed) {
+			for (int i = journal.size() - 1; i >= 0; i--) {
+				journal.get(i).undo();
+			}
+		}
+		journal = null;
+	}
+
+	public DeferredPhotoQueue getDeferredPhotos() {
+		return new DeferredPhotoQueue() {
+			public void add(String accountName, long rawContactId, String imageURL) {
+				synchronized (MemoryMirrorStore.this) {
+					put(deferredPhotos, rawContactId, new String[] { accountName, imageURL });
+				}
+			}
+
+			public void remove(long rawContactId) {
+				synchronized (MemoryMirrorStore.this) {
+					MemoryMirrorStore.this.remove(deferredPhotos, rawContactId);
+				}
+			}
+
+			public void clear(String accountName) {
+				synchronized (MemoryMirrorStore.this) {
+					for (Long rawContactId : new ArrayList<Long>(deferredPhotos.keySet())) {
+						if (deferredPhotos.get(rawContactId)[0].equals(accountName)) {
+							MemoryMirrorStore.this.remove(deferredPhotos, rawContactId);
+						}
+					}
+				}
+			}
+
+			public HashSet<Long> getIds(String accountName) {
+				return new HashSet<Long>(load(accountName).keySet());
+			}
+
+			public HashMap<Long, String> load(String accountName) {
+				synchronized (MemoryMirrorStore.this) {
+					HashMap<Long, String> photos = new HashMap<Long, String>();
+					for (Map.Entry<Long, String[]> entry : deferredPhotos.entrySet()) {
+						if (entry.getValue()[0].equals(accountName)) {
+							photos.put(entry.getKey(), entry.getValue()[1]);
+						}
+					}
+					return photos;
+				}
+			}
+		};
+	}
+
+	public PendingAggregation getPendingAggregation() {
+		return new PendingAggregation() {
+			public void add(String accountName, long rawContactId) {
+				synchronized (MemoryMirrorStore.this) {
+					put(pendingAggregation, rawContactId, accountName);
+				}
+			}
+
+			public void clear(String accountName) {
+				synchronized (MemoryMirrorStore.this) {
+					for (Long rawContactId : new ArrayList<Long>(pendingAggregation.keySet())) {
+						if (pendingAggregation.get(rawContactId).equals(accountName)) {
+							remove(pendingAggregation, rawContactId);
+						}
+					}
+				}
+			}
+
+			public List<Long> load(String accountName) {
+				synchronized (MemoryMirrorStore.this) {
+					ArrayList<Long> ids = new ArrayList<Long>();
+					for (Map.Entry<Long, String> entry : pendingAggregation.entrySet()) {
+						if (entry.getValue().equals(accountName)) {
+							ids.add(entry.getKey());
+						}
+					}
+					return ids;
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return The number of mirrored contacts of all accounts
+	 */
+	public synchronized int size() {
+		return contacts.size();
+	}
+
+	private <T> void put(HashMap<Long, T> map, long rawContactId, T value) {
+		journal(map, rawContactId);
+		map.put(rawContactId, value);
+	}
+
+	private <T> void remove(HashMap<Long, T> map, long rawContactId) {
+		journal(map, rawContactId);
+		map.remove(rawContactId);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void journal(HashMap<Long, ?> map, long rawContactId) {
+		if (journal != null) {
+			journal.add(new Change((HashMap<Long, Object>) map, rawContactId));
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.HashMap;
+
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * A quarantine, that is kept in memory, e.g. for a sync on a desktop JVM.
+ */
+public class MemoryQuarantine implements ContactQuarantine {
+
+	/**
+	 * The fingerprint and the reason by source id.
+	 */
+	private final HashMap<String, String[]> entries = new HashMap<String, String[]>();
+
+	public synchronized boolean isQuarantined(Contact contact) {
+		String[] entry = entries.get(contact.getID());
+		if (entry == null) {
+			return false;
+		}
+		if (entry[0].equals(ContactDigest.fingerprint(contact))) {
+			return true;
+		}
+		entries.remove(contact.getID());
+		return false;
+	}
+
+	public synchronized void add(Contact contact, String reason) {
+		entries.put(contact.getID(), new String[] { ContactDigest.fingerprint(contact), reason });
+	}
+
+	/**
+	 * @return The reason, why the contact has been quarantined, or <code>null</code>, if it is not quarantined
+	 */
+	public synchronized String getReason(String sourceId) {
+		String[] entry = entries.get(sourceId);
+		return entry != null ? entry[1] : null;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+}
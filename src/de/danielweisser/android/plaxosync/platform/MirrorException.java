@@ -0,0 +1,10 @@
+package de.danielweisser.android.plaxosync.platform;
+
+/**
+ * The {@link MirrorStore} could not be written. The transaction of the caller is not committed.
+ */
+public class MirrorException extends RuntimeException {
+	public MirrorException(Throwable cause) {
+		super(cause.getMessage(), cause);
+	}
+}
@@ -0,0 +1,90 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * The last synchronized state of every contact. The diff runs against the mirror, so that the data does not have to be read back from the
+ * store of the contacts. The queue of the deferred pictures and the raw contacts with suspended aggregation are kept next to the mirrored
+ * contacts, so that they are written in the same transaction.
+ *
+ * @see ContactMirror
+ */
+public interface MirrorStore {
+
+	/**
+	 * Loads the mirrored contacts of an account.
+	 *
+	 * @return The contacts by raw contact id
+	 */
+	HashMap<Long, Contact> load(String accountName);
+
+	/**
+	 * Loads the mirrored contacts with the given raw contact ids.
+	 *
+	 * @return The contacts by raw contact id, contacts, that are not mirrored, are missing
+	 */
+	HashMap<Long, Contact> load(Collection<Long> rawContactIds);
+
+	/**
+	 * Loads a single mirrored contact.
+	 *
+	 * @return The contact or <code>null</code>, if it is not mirrored
+	 */
+	Contact get(long rawContactId);
+
+	/**
+	 * Stores the synchronized state of a contact.
+	 *
+	 * @param accountName
+	 *            The account name
+	 * @param rawContactId
+	 *            The id of the raw contact
+	 * @param contact
+	 *            The contact, that has been written
+	 * @param imageDigest
+	 *            The digest of the written picture or <code>null</code>
+	 * @param imageURL
+	 *            The URL of the written picture or <code>null</code>, if the picture of the contact has not been written
+	 * @throws MirrorException
+	 *             If the contact cannot be written, so that the transaction of the caller is not committed
+	 */
+	void put(String accountName, long rawContactId, Contact contact, String imageDigest, String imageURL);
+
+	void delete(long rawContactId);
+
+	/**
+	 * Removes all contacts of an account.
+	 */
+	void clear(String accountName);
+
+	/**
+	 * Begins a transaction, that is only committed, when {@link #commit()} is called before {@link #endTransaction()}.
+	 *
+	 * @throws MirrorException
+	 *             If the transaction cannot be started
+	 */
+	void beginTransaction();
+
+	/**
+	 * Marks the transaction as successful, it is called as the last statement of the transaction.
+	 */
+	void commit();
+
+	/**
+	 * Ends the transaction. It is rolled back, if it has not been committed.
+	 */
+	void endTransaction();
+
+	/**
+	 * @return The pictures, that have not been downloaded yet
+	 */
+	DeferredPhotoQueue getDeferredPhotos();
+
+	/**
+	 * @return The raw contacts, that have been imported with suspended aggregation
+	 */
+	PendingAggregation getPendingAggregation();
+}
@@ -0,0 +1,112 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.danielweisser.android.plaxosync.SyncLog;
+
+/**
+ * Creates the operations of many contacts on a bounded pool of threads. The contacts are split into contiguous partitions, so that the
+ * operations stay in the order of the contacts and can be applied deterministically by a single writer. The pool is kept for all chunks of
+ * a sync and shut down at its end.
+ */
+public class ParallelDiff {
+	private static final SyncLog LOG = SyncLog.get("ParallelDiff");
+	private static final SyncLog.Event PARTITIONED = LOG.event("partitioned");
+
+	/**
+	 * The maximum number of threads, that are used for the diff.
+	 */
+	private static final int MAX_THREADS = 4;
+
+	/**
+	 * Partitions smaller than this are not worth a thread of their own.
+	 */
+	private static final int MIN_PARTITION_SIZE = 50;
+
+	private final int threads = Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * The pool of the sync, it is created with the first diff, that is split into partitions.
+	 */
+	private ExecutorService executor = null;
+
+	/**
+	 * Fills the operations of a single contact. It must not access shared mutable state.
+	 */
+	public interface Differ {
+		void diff(ContactOperations ops);
+	}
+
+	/**
+	 * Runs the differ for all contacts and waits until all partitions are finished.
+	 *
+	 * @param contacts
+	 *            The operations of the contacts, that are filled by the differ
+	 * @param differ
+	 *            The differ
+	 * @throws InterruptedException
+	 *             If the sync has been canceled while waiting for the partitions
+	 */
+	public void diff(List<ContactOperations> contacts, final Differ differ) throws InterruptedException {
+		final int partitions = Math.max(1, Math.min(threads, contacts.size() / MIN_PARTITION_SIZE));
+		if (partitions == 1) {
+			for (ContactOperations ops : contacts) {
+				differ.diff(ops);
+			}
+			return;
+		}
+
+		if (PARTITIONED.sample()) {
+			LOG.d("Diff " + contacts.size() + " contacts in " + partitions + " partitions");
+		}
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(threads);
+		}
+		final List<Future<Void>> futures = new ArrayList<Future<Void>>(partitions);
+		try {
+			final int partitionSize = (contacts.size() + partitions - 1) / partitions;
+			for (int from = 0; from < contacts.size(); from += partitionSize) {
+				final List<ContactOperations> partition = contacts.subList(from, Math.min(from + partitionSize, contacts.size()));
+				futures.add(executor.submit(new Callable<Void>() {
+					public Void call() {
+						for (ContactOperations ops : partition) {
+							differ.diff(ops);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			// The partitions of a failed or canceled diff must not run into the next chunk
+			for (Future<Void> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Stops the threads at the end of the sync.
+	 */
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+}
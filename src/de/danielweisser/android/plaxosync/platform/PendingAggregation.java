@@ -0,0 +1,27 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.List;
+
+/**
+ * The raw contacts, that have been imported with suspended aggregation. The ids are kept by the {@link MirrorStore} together with the
+ * mirrored contact, so that an import, that is killed before it resumes the aggregation, does not leave the contacts unaggregated. Their
+ * aggregation is resumed at the start of the next sync.
+ */
+public interface PendingAggregation {
+
+	/**
+	 * @throws MirrorException
+	 *             If the raw contact cannot be recorded, so that the transaction of the caller is not committed
+	 */
+	void add(String accountName, long rawContactId);
+
+	/**
+	 * Removes all raw contacts of an account.
+	 */
+	void clear(String accountName);
+
+	/**
+	 * @return The ids of the raw contacts of the account, whose aggregation has not been resumed
+	 */
+	List<Long> load(String accountName);
+}
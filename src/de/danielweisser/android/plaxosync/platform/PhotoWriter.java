@@ -0,0 +1,115 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+/**
+ * Writes contact pictures as display photos through a file descriptor, so that large images do not have to travel inside a batch of
+ * {@link android.content.ContentProviderOperation}s.
+ */
+public class PhotoWriter {
+	private static final String TAG = "PhotoWriter";
+
+	/**
+	 * Pictures up to this size are small enough to be stored inline as thumbnail.
+	 */
+	public static final int MAX_INLINE_PHOTO_SIZE = 16 * 1024;
+
+	/**
+	 * The data column, that holds the digest of the last written picture.
+	 */
+	public static final String PHOTO_DIGEST = Data.SYNC1;
+
+	/**
+	 * RawContacts.DisplayPhoto.CONTENT_DIRECTORY, which is available since Android 4.0 (API level 14).
+	 */
+	private static final String DISPLAY_PHOTO_DIRECTORY = "display_photo";
+	private static final int DISPLAY_PHOTO_SDK_VERSION = 14;
+
+	private static final int CHUNK_SIZE = 8 * 1024;
+
+	private final ContentResolver resolver;
+
+	public PhotoWriter(ContentResolver resolver) {
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Checks whether the picture has to be written with {@link #write(long, byte[])} instead of being stored inline in the data row.
+	 *
+	 * @param photo
+	 *            The picture
+	 * @return true, if the picture is too large for an inline thumbnail and the platform supports display photos
+	 */
+	public static boolean isStreamed(byte[] photo) {
+		return photo != null && photo.length > MAX_INLINE_PHOTO_SIZE && Build.VERSION.SDK_INT >= DISPLAY_PHOTO_SDK_VERSION;
+	}
+
+	/**
+	 * Streams the picture to the display photo of the raw contact and records its digest.
+	 *
+	 * @param rawContactId
+	 *            The id of the raw contact
+	 * @param photo
+	 *            The picture
+	 * @return true, if the picture has been written
+	 */
+	public boolean write(long rawContactId, byte[] photo) {
+		Uri rawContactUri = ContentUris.withAppendedId(RawContacts.CONTENT_URI, rawContactId);
+		Uri displayPhotoUri = Uri.withAppendedPath(rawContactUri, DISPLAY_PHOTO_DIRECTORY);
+		AssetFileDescriptor fd = null;
+		try {
+			fd = resolver.openAssetFileDescriptor(displayPhotoUri, "rw");
+			if (fd == null) {
+				return false;
+			}
+			OutputStream os = fd.createOutputStream();
+			try {
+				for (int offset = 0; offset < photo.length; offset += CHUNK_SIZE) {
+					os.write(photo, offset, Math.min(CHUNK_SIZE, photo.length - offset));
+				}
+			} finally {
+				os.close();
+			}
+		} catch (FileNotFoundException e) {
+			Log.e(TAG, e.getMessage(), e);
+			return false;
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
+			return false;
+		} finally {
+			if (fd != null) {
+				try {
+					fd.close();
+				} catch (IOException e) {
+					Log.e(TAG, e.getMessage(), e);
+				}
+			}
+		}
+
+		try {
+			// The provider creates the photo row, so the digest can only be attached afterwards
+			ContentValues cv = new ContentValues();
+			cv.put(PHOTO_DIGEST, ContactDigest.digest(photo));
+			Uri uri = Data.CONTENT_URI.buildUpon().appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
+			resolver.update(uri, cv, Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?", new String[] { rawContactId + "", Photo.CONTENT_ITEM_TYPE });
+		} catch (SQLiteException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,38 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * The quarantine of an account in its shared preferences.
+ */
+public class PreferencesQuarantine implements ContactQuarantine {
+	private static final String TAG = "ContactQuarantine";
+	private static final String PREFERENCES = "quarantine_";
+
+	private final SharedPreferences preferences;
+
+	public PreferencesQuarantine(Context context, String accountName) {
+		preferences = context.getSharedPreferences(PREFERENCES + accountName, Context.MODE_PRIVATE);
+	}
+
+	public boolean isQuarantined(Contact contact) {
+		String entry = preferences.getString(contact.getID(), null);
+		if (entry == null) {
+			return false;
+		}
+		if (entry.startsWith(ContactDigest.fingerprint(contact) + " ")) {
+			return true;
+		}
+		Log.i(TAG, "Release changed contact " + contact.getID());
+		preferences.edit().remove(contact.getID()).commit();
+		return false;
+	}
+
+	public void add(Contact contact, String reason) {
+		Log.w(TAG, "Quarantine contact " + contact.getID() + ": " + reason);
+		preferences.edit().putString(contact.getID(), ContactDigest.fingerprint(contact) + " " + reason).commit();
+	}
+}
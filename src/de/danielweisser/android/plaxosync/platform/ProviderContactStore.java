@@ -0,0 +1,390 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderOperation.Builder;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Build;
+import android.os.RemoteException;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Event;
+import android.provider.ContactsContract.CommonDataKinds.Organization;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
+import android.provider.ContactsContract.CommonDataKinds.Website;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+import de.danielweisser.android.plaxosync.client.Address;
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * The contacts provider as {@link ContactSnapshotSource} and {@link ContactSink} of the sync.
+ */
+public class ProviderContactStore implements ContactSnapshotSource, ContactSink {
+	private static final String TAG = "ProviderContactStore";
+
+	/**
+	 * The number of raw contacts, for which the aggregation is resumed at once after a bulk import.
+	 */
+	private static final int AGGREGATION_BATCH_SIZE = 100;
+
+	/**
+	 * The number of raw contacts, whose data is read with one query.
+	 */
+	private static final int QUERY_BATCH_SIZE = 500;
+
+	/**
+	 * <code>Builder.withYieldAllowed(boolean)</code>, once it has been looked up.
+	 */
+	private static Method withYieldAllowed = null;
+
+	private final ContentResolver resolver;
+	private final PhotoWriter photoWriter;
+
+	public ProviderContactStore(ContentResolver resolver) {
+		this.resolver = resolver;
+		this.photoWriter = new PhotoWriter(resolver);
+	}
+
+	public long[] apply(List<ContactOperations> contacts, boolean yieldAllowed) throws ApplyException {
+		final ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>();
+		final int[] offsets = new int[contacts.size()];
+		for (int i = 0; i < contacts.size(); i++) {
+			offsets[i] = appendTo(contacts.get(i), batch, yieldAllowed);
+		}
+		final ContentProviderResult[] res;
+		try {
+			res = resolver.applyBatch(ContactsContract.AUTHORITY, batch);
+		} catch (OperationApplicationException e) {
+			throw new ApplyException(e, false);
+		} catch (SQLiteException e) {
+			throw new ApplyException(e, false);
+		} catch (IllegalArgumentException e) {
+			throw new ApplyException(e, false);
+		} catch (RemoteException e) {
+			// The batch may have been too large for the transaction
+			throw new ApplyException(e, true);
+		}
+		final long[] rawContactIds = new long[contacts.size()];
+		for (int i = 0; i < contacts.size(); i++) {
+			ContactOperations ops = contacts.get(i);
+			rawContactIds[i] = ops.isNew() ? ContentUris.parseId(res[offsets[i]].uri) : ops.getRawContactId();
+		}
+		return rawContactIds;
+	}
+
+	public boolean isStreamed(byte[] photo) {
+		return PhotoWriter.isStreamed(photo);
+	}
+
+	/**
+	 * Appends the operations of a contact to a batch of content provider operations. The data rows of a new raw contact refer back to its
+	 * insert, the rows of an existing raw contact are selected by its id, the MIME type and the type of the row.
+	 *
+	 * @param ops
+	 *            The operations of the contact
+	 * @param batch
+	 *            The batch
+	 * @param yieldAllowed
+	 *            true, if the provider may commit the operations before this contact, so that other apps are not blocked by a large batch.
+	 *            A batch with yield points is partly written, when it fails, so it must not simply be applied again.
+	 * @return The index of the first operation within the batch
+	 */
+	static int appendTo(ContactOperations ops, ArrayList<ContentProviderOperation> batch, boolean yieldAllowed) {
+		final int offset = batch.size();
+		for (int i = 0; i < ops.size(); i++) {
+			final ContactOperations.Operation op = ops.get(i);
+			final Builder builder;
+			if (ContactOperations.RAW_CONTACT.equals(op.getMimeType())) {
+				builder = createRawContactOperation(op, ops.getRawContactId());
+			} else {
+				builder = createDataOperation(op, ops.getRawContactId(), offset);
+			}
+			for (Map.Entry<String, Object> value : op.getValues().entrySet()) {
+				builder.withValue(value.getKey(), value.getValue());
+			}
+			if (i == 0 && Build.VERSION.SDK_INT >= 8) {
+				allowYield(builder, yieldAllowed);
+			}
+			batch.add(builder.build());
+		}
+		return offset;
+	}
+
+	private static Builder createRawContactOperation(ContactOperations.Operation op, long rawContactId) {
+		final Uri uri = addCallerIsSyncAdapterFlag(RawContacts.CONTENT_URI);
+		final String[] args = new String[] { rawContactId + "" };
+		switch (op.getType()) {
+		case ContactOperations.INSERT:
+			return ContentProviderOperation.newInsert(uri);
+		case ContactOperations.UPDATE:
+			return ContentProviderOperation.newUpdate(uri).withSelection(RawContacts._ID + "=?", args);
+		default:
+			return ContentProviderOperation.newDelete(uri).withSelection(RawContacts._ID + "=?", args);
+		}
+	}
+
+	private static Builder createDataOperation(ContactOperations.Operation op, long rawContactId, int rawContactIndex) {
+		final Uri uri = addCallerIsSyncAdapterFlag(Data.CONTENT_URI);
+		if (op.getType() == ContactOperations.INSERT) {
+			final Builder builder = ContentProviderOperation.newInsert(uri).withValue(Data.MIMETYPE, op.getMimeType());
+			if (rawContactId == -1) {
+				return builder.withValueBackReference(Data.RAW_CONTACT_ID, rawContactIndex);
+			}
+			return builder.withValue(Data.RAW_CONTACT_ID, rawContactId);
+		}
+		String selection = Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?";
+		String[] args = new String[] { rawContactId + "", op.getMimeType() };
+		if (op.getRowType() != ContactOperations.ANY_TYPE) {
+			selection += " AND " + Data.DATA2 + "=?";
+			args = new String[] { rawContactId + "", op.getMimeType(), op.getRowType() + "" };
+		}
+		if (op.getType() == ContactOperations.UPDATE) {
+			return ContentProviderOperation.newUpdate(uri).withSelection(selection, args);
+		}
+		return ContentProviderOperation.newDelete(uri).withSelection(selection, args);
+	}
+
+	/**
+	 * Calls <code>Builder.withYieldAllowed(boolean)</code> of Android 2.2 and later. The method is looked up once.
+	 */
+	private static void allowYield(Builder op, boolean yieldAllowed) {
+		if (withYieldAllowed == null) {
+			try {
+				withYieldAllowed = Builder.class.getMethod("withYieldAllowed", boolean.class);
+			} catch (NoSuchMethodException e) {
+				Log.w(TAG, e.getMessage(), e);
+				return;
+			}
+		}
+		try {
+			withYieldAllowed.invoke(op, yieldAllowed);
+		} catch (IllegalAccessException e) {
+			Log.w(TAG, e.getMessage(), e);
+		} catch (InvocationTargetException e) {
+			Log.w(TAG, e.getMessage(), e);
+		}
+	}
+
+	public boolean writePhoto(long rawContactId, byte[] photo) {
+		return photoWriter.write(rawContactId, photo);
+	}
+
+	/**
+	 * Switches the imported raw contacts back to the default aggregation mode in a few large transactions.
+	 */
+	public boolean resumeAggregation(List<Long> rawContactIds) {
+		final Uri uri = addCallerIsSyncAdapterFlag(RawContacts.CONTENT_URI);
+		final ContentValues cv = new ContentValues();
+		cv.put(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DEFAULT);
+		boolean resumed = true;
+		for (int i = 0; i < rawContactIds.size(); i += AGGREGATION_BATCH_SIZE) {
+			StringBuilder selection = new StringBuilder(RawContacts._ID + " IN (");
+			int end = Math.min(i + AGGREGATION_BATCH_SIZE, rawContactIds.size());
+			for (int j = i; j < end; j++) {
+				selection.append(j > i ? "," : "").append(rawContactIds.get(j));
+			}
+			selection.append(")");
+			try {
+				resolver.update(uri, cv, selection.toString(), null);
+			} catch (SQLiteException e) {
+				Log.e(TAG, e.getMessage(), e);
+				resumed = false;
+			} catch (IllegalStateException e) {
+				Log.e(TAG, e.getMessage(), e);
+				resumed = false;
+			}
+		}
+		return resumed;
+	}
+
+	public HashMap<Long, Contact> getContactData(Collection<Long> rawContactIds, TimeSlicer slicer) throws InterruptedException {
+		HashMap<Long, Contact> dataOnPhone = new HashMap<Long, Contact>();
+		final ArrayList<Long> ids = new ArrayList<Long>(rawContactIds);
+		for (int i = 0; i < ids.size(); i += QUERY_BATCH_SIZE) {
+			slicer.checkpoint();
+			StringBuilder selection = new StringBuilder(Data.RAW_CONTACT_ID + " IN (");
+			int end = Math.min(i + QUERY_BATCH_SIZE, ids.size());
+			for (int j = i; j < end; j++) {
+				selection.append(j > i ? "," : "").append(ids.get(j));
+			}
+			selection.append(")");
+			readContactData(selection.toString(), dataOnPhone);
+		}
+		return dataOnPhone;
+	}
+
+	/**
+	 * Reads the data rows of the raw contacts. The pictures, that the sync has written, are only compared by their digest, so their blobs are
+	 * not read. Only the pictures without a digest, e.g. set by the user, are read with a second query.
+	 */
+	private void readContactData(String selection, HashMap<Long, Contact> dataOnPhone) {
+		final String[] projection = new String[] { Data.RAW_CONTACT_ID, Data.MIMETYPE, Data.DATA1, Data.DATA2, Data.DATA3, Data.DATA4, Data.DATA7,
+				Data.DATA8, Data.DATA9, Data.DATA10, PhotoWriter.PHOTO_DIGEST };
+
+		final ArrayList<Long> undigestedPhotos = new ArrayList<Long>();
+		try {
+			final Cursor c = resolver.query(Data.CONTENT_URI, projection, selection, null, null);
+			if (c != null) {
+				final int rawContactIdColumn = c.getColumnIndex(Data.RAW_CONTACT_ID);
+				while (c.moveToNext()) {
+					long rawContactId = c.getLong(rawContactIdColumn);
+					Contact contact = dataOnPhone.get(rawContactId);
+					if (contact == null) {
+						contact = new Contact();
+						dataOnPhone.put(rawContactId, contact);
+					}
+					readDataRow(c, contact);
+					if (Photo.CONTENT_ITEM_TYPE.equals(c.getString(c.getColumnIndex(Data.MIMETYPE))) && contact.getImageDigest() == null) {
+						undigestedPhotos.add(rawContactId);
+					}
+				}
+				c.close();
+			}
+			if (!undigestedPhotos.isEmpty()) {
+				readPhotos(undigestedPhotos, dataOnPhone);
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, e.getMessage(), e);
+		} catch (IllegalStateException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+	}
+
+	private void readPhotos(List<Long> rawContactIds, HashMap<Long, Contact> dataOnPhone) {
+		StringBuilder selection = new StringBuilder(Data.MIMETYPE + "=? AND " + Data.RAW_CONTACT_ID + " IN (");
+		for (int i = 0; i < rawContactIds.size(); i++) {
+			selection.append(i > 0 ? "," : "").append(rawContactIds.get(i));
+		}
+		selection.append(")");
+		final Cursor c = resolver.query(Data.CONTENT_URI, new String[] { Data.RAW_CONTACT_ID, Photo.PHOTO }, selection.toString(),
+				new String[] { Photo.CONTENT_ITEM_TYPE }, null);
+		if (c != null) {
+			while (c.moveToNext()) {
+				dataOnPhone.get(c.getLong(0)).setImage(c.getBlob(1));
+			}
+			c.close();
+		}
+	}
+
+	/**
+	 * Reads a single data row into the contact.
+	 */
+	private static void readDataRow(Cursor c, Contact contact) {
+		String mimetype = c.getString(c.getColumnIndex(Data.MIMETYPE));
+		if (mimetype.equals(StructuredName.CONTENT_ITEM_TYPE)) {
+			contact.setFirstName(c.getString(c.getColumnIndex(Data.DATA2)));
+			contact.setLastName(c.getString(c.getColumnIndex(Data.DATA3)));
+			contact.setNamePrefix(c.getString(c.getColumnIndex(Data.DATA4)));
+		} else if (mimetype.equals(Email.CONTENT_ITEM_TYPE)) {
+			int type = c.getInt(c.getColumnIndex(Data.DATA2));
+			if (type == Email.TYPE_HOME) {
+				contact.setHomeEmail(c.getString(c.getColumnIndex(Data.DATA1)));
+			} else if (type == Email.TYPE_WORK) {
+				contact.setWorkEmail(c.getString(c.getColumnIndex(Data.DATA1)));
+			}
+		} else if (mimetype.equals(Phone.CONTENT_ITEM_TYPE)) {
+			int type = c.getInt(c.getColumnIndex(Data.DATA2));
+			if (type == Phone.TYPE_WORK_MOBILE) {
+				contact.setCellWorkPhone(c.getString(c.getColumnIndex(Data.DATA1)));
+			} else if (type == Phone.TYPE_WORK) {
+				contact.setWorkPhone(c.getString(c.getColumnIndex(Data.DATA1)));
+			} else if (type == Phone.TYPE_HOME) {
+				contact.setHomePhone(c.getString(c.getColumnIndex(Data.DATA1)));
+			} else if (type == Phone.TYPE_MOBILE) {
+				contact.setCellHomePhone(c.getString(c.getColumnIndex(Data.DATA1)));
+			} else if (type == Phone.TYPE_FAX_HOME) {
+				contact.setHomeFax(c.getString(c.getColumnIndex(Data.DATA1)));
+			} else if (type == Phone.TYPE_FAX_WORK) {
+				contact.setWorkFax(c.getString(c.getColumnIndex(Data.DATA1)));
+			}
+		} else if (mimetype.equals(Website.CONTENT_ITEM_TYPE)) {
+			int type = c.getInt(c.getColumnIndex(Data.DATA2));
+			if (type == Website.TYPE_HOME) {
+				contact.setHomeURL(c.getString(c.getColumnIndex(Data.DATA1)));
+			} else if (type == Website.TYPE_WORK) {
+				contact.setWorkURL(c.getString(c.getColumnIndex(Data.DATA1)));
+			}
+		} else if (mimetype.equals(Organization.CONTENT_ITEM_TYPE)) {
+			int type = c.getInt(c.getColumnIndex(Data.DATA2));
+			if (type == Organization.TYPE_WORK) {
+				contact.setCompany(c.getString(c.getColumnIndex(Data.DATA1)));
+				contact.setTitle(c.getString(c.getColumnIndex(Data.DATA4)));
+			}
+		} else if (mimetype.equals(Event.CONTENT_ITEM_TYPE)) {
+			// Other events, e.g. an anniversary added on the phone, are not synchronized
+			if (c.getInt(c.getColumnIndex(Data.DATA2)) == Event.TYPE_BIRTHDAY) {
+				contact.setDateOfBirth(c.getString(c.getColumnIndex(Data.DATA1)));
+			}
+		} else if (mimetype.equals(Photo.CONTENT_ITEM_TYPE)) {
+			contact.setImageDigest(c.getString(c.getColumnIndex(PhotoWriter.PHOTO_DIGEST)));
+		} else if (mimetype.equals(StructuredPostal.CONTENT_ITEM_TYPE)) {
+			int type = c.getInt(c.getColumnIndex(Data.DATA2));
+			Address address = new Address();
+			address.setStreet(c.getString(c.getColumnIndex(Data.DATA4)));
+			address.setCity(c.getString(c.getColumnIndex(Data.DATA7)));
+			address.setCountry(c.getString(c.getColumnIndex(Data.DATA10)));
+			address.setZip(c.getString(c.getColumnIndex(Data.DATA9)));
+			address.setState(c.getString(c.getColumnIndex(Data.DATA8)));
+			if (type == StructuredPostal.TYPE_WORK) {
+				contact.setWorkAddress(address);
+			} else if (type == StructuredPostal.TYPE_HOME) {
+				contact.setHomeAddress(address);
+			}
+		}
+	}
+
+	public void delete(long rawContactId) {
+		try {
+			resolver.delete(RawContacts.CONTENT_URI, RawContacts._ID + "=?", new String[] { "" + rawContactId });
+		} catch (SQLiteException e) {
+			Log.e(TAG, e.getMessage(), e);
+		} catch (IllegalStateException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+	}
+
+	public SourceIdIndex getRawContacts(String accountName, Set<Long> dirtyContacts) {
+		final String[] projection = new String[] { RawContacts._ID, RawContacts.SYNC1, RawContacts.SOURCE_ID, RawContacts.DIRTY };
+		final String selection = RawContacts.ACCOUNT_NAME + "=?";
+
+		final Cursor c = resolver.query(RawContacts.CONTENT_URI, projection, selection, new String[] { accountName }, null);
+		SourceIdIndex contactsOnPhone = new SourceIdIndex(c != null ? c.getCount() : 0);
+		if (c != null) {
+			while (c.moveToNext()) {
+				contactsOnPhone.put(c.getString(c.getColumnIndex(RawContacts.SOURCE_ID)), c.getLong(c.getColumnIndex(Data._ID)));
+				if (c.getInt(c.getColumnIndex(RawContacts.DIRTY)) != 0) {
+					dirtyContacts.add(c.getLong(c.getColumnIndex(Data._ID)));
+				}
+			}
+			c.close();
+		}
+
+		return contactsOnPhone;
+	}
+
+	private static Uri addCallerIsSyncAdapterFlag(Uri uri) {
+		Uri.Builder b = uri.buildUpon();
+		b.appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true");
+		return b.build();
+	}
+}
@@ -0,0 +1,82 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+/**
+ * The queue of the deferred pictures in the database of the {@link ContactMirror}.
+ */
+class SQLiteDeferredPhotoQueue implements DeferredPhotoQueue {
+	private static final String TAG = "DeferredPhotoQueue";
+
+	static final String TABLE = "deferred_photos";
+	private static final String RAW_CONTACT_ID = "raw_contact_id";
+	private static final String ACCOUNT_NAME = "account_name";
+	private static final String IMAGE_URL = "image_url";
+
+	private final ContactMirror mirror;
+
+	SQLiteDeferredPhotoQueue(ContactMirror mirror) {
+		this.mirror = mirror;
+	}
+
+	static void createTable(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE + " (" + RAW_CONTACT_ID + " INTEGER PRIMARY KEY, " + ACCOUNT_NAME + " TEXT NOT NULL, " + IMAGE_URL
+				+ " TEXT NOT NULL)");
+	}
+
+	public void add(String accountName, long rawContactId, String imageURL) {
+		ContentValues cv = new ContentValues();
+		cv.put(RAW_CONTACT_ID, rawContactId);
+		cv.put(ACCOUNT_NAME, accountName);
+		cv.put(IMAGE_URL, imageURL);
+		try {
+			mirror.getWritableDatabase().replaceOrThrow(TABLE, null, cv);
+		} catch (SQLiteException e) {
+			throw new MirrorException(e);
+		}
+	}
+
+	public void remove(long rawContactId) {
+		try {
+			mirror.getWritableDatabase().delete(TABLE, RAW_CONTACT_ID + "=?", new String[] { rawContactId + "" });
+		} catch (SQLiteException e) {
+			throw new MirrorException(e);
+		}
+	}
+
+	public void clear(String accountName) {
+		try {
+			mirror.getWritableDatabase().delete(TABLE, ACCOUNT_NAME + "=?", new String[] { accountName });
+		} catch (SQLiteException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+	}
+
+	public HashSet<Long> getIds(String accountName) {
+		return new HashSet<Long>(load(accountName).keySet());
+	}
+
+	public HashMap<Long, String> load(String accountName) {
+		HashMap<Long, String> photos = new HashMap<Long, String>();
+		try {
+			Cursor c = mirror.getReadableDatabase().query(TABLE, new String[] { RAW_CONTACT_ID, IMAGE_URL }, ACCOUNT_NAME + "=?",
+					new String[] { accountName }, null, null, null);
+			if (c != null) {
+				while (c.moveToNext()) {
+					photos.put(c.getLong(0), c.getString(1));
+				}
+				c.close();
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+		return photos;
+	}
+}
@@ -0,0 +1,67 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+/**
+ * The raw contacts with suspended aggregation in the database of the {@link ContactMirror}.
+ */
+class SQLitePendingAggregation implements PendingAggregation {
+	private static final String TAG = "PendingAggregation";
+
+	static final String TABLE = "pending_aggregation";
+	private static final String RAW_CONTACT_ID = "raw_contact_id";
+	private static final String ACCOUNT_NAME = "account_name";
+
+	private final ContactMirror mirror;
+
+	SQLitePendingAggregation(ContactMirror mirror) {
+		this.mirror = mirror;
+	}
+
+	static void createTable(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE + " (" + RAW_CONTACT_ID + " INTEGER PRIMARY KEY, " + ACCOUNT_NAME + " TEXT NOT NULL)");
+	}
+
+	public void add(String accountName, long rawContactId) {
+		ContentValues cv = new ContentValues();
+		cv.put(RAW_CONTACT_ID, rawContactId);
+		cv.put(ACCOUNT_NAME, accountName);
+		try {
+			mirror.getWritableDatabase().replaceOrThrow(TABLE, null, cv);
+		} catch (SQLiteException e) {
+			throw new MirrorException(e);
+		}
+	}
+
+	public void clear(String accountName) {
+		try {
+			mirror.getWritableDatabase().delete(TABLE, ACCOUNT_NAME + "=?", new String[] { accountName });
+		} catch (SQLiteException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+	}
+
+	public List<Long> load(String accountName) {
+		ArrayList<Long> ids = new ArrayList<Long>();
+		try {
+			Cursor c = mirror.getReadableDatabase().query(TABLE, new String[] { RAW_CONTACT_ID }, ACCOUNT_NAME + "=?", new String[] { accountName },
+					null, null, null);
+			if (c != null) {
+				while (c.moveToNext()) {
+					ids.add(c.getLong(0));
+				}
+				c.close();
+			}
+		} catch (SQLiteException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+		return ids;
+	}
+}
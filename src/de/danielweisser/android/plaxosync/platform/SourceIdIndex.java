@@ -0,0 +1,142 @@
+package de.danielweisser.android.plaxosync.platform;
+
+/**
+ * An open addressing hash index from the Plaxo id of a contact to the id of its raw contact. Found entries are marked as visited instead of
+ * being removed, so that the unvisited entries are the contacts, which have been deleted on Plaxo.
+ */
+public class SourceIdIndex {
+
+	/**
+	 * Returned for source ids, that are not in the index.
+	 */
+	public static final long NOT_FOUND = -1;
+
+	private static final int MIN_CAPACITY = 16;
+
+	/**
+	 * Raw contacts without source id are stored with this key, so that they do not collide with an empty source id.
+	 */
+	private static final Object NULL_KEY = new Object();
+
+	private Object[] keys;
+	private long[] values;
+	private boolean[] visited;
+	private int size = 0;
+	private int visitedCount = 0;
+
+	/**
+	 * Receives the unvisited entries of the index.
+	 */
+	public interface Visitor {
+		void visit(String sourceId, long rawContactId);
+	}
+
+	public SourceIdIndex(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new Object[capacity];
+		values = new long[capacity];
+		visited = new boolean[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return The number of entries, that have not been visited
+	 */
+	public int unvisitedSize() {
+		return size - visitedCount;
+	}
+
+	/**
+	 * Adds or replaces an entry.
+	 */
+	public void put(String sourceId, long rawContactId) {
+		if ((size + 1) * 2 > keys.length) {
+			grow();
+		}
+		Object key = sourceId == null ? NULL_KEY : sourceId;
+		int slot = slot(key);
+		if (keys[slot] == null) {
+			keys[slot] = key;
+			size++;
+		}
+		values[slot] = rawContactId;
+	}
+
+	/**
+	 * @return The raw contact id or {@link #NOT_FOUND}
+	 */
+	public long get(String sourceId) {
+		int slot = slot(sourceId == null ? NULL_KEY : sourceId);
+		return keys[slot] == null ? NOT_FOUND : values[slot];
+	}
+
+	/**
+	 * Looks up the source id and marks its entry as visited.
+	 *
+	 * @return The raw contact id or {@link #NOT_FOUND}
+	 */
+	public long visit(String sourceId) {
+		int slot = slot(sourceId == null ? NULL_KEY : sourceId);
+		if (keys[slot] == null) {
+			return NOT_FOUND;
+		}
+		if (!visited[slot]) {
+			visited[slot] = true;
+			visitedCount++;
+		}
+		return values[slot];
+	}
+
+	/**
+	 * Passes all entries, that have not been visited, to the visitor.
+	 */
+	public void forEachUnvisited(Visitor visitor) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null && !visited[i]) {
+				visitor.visit(keys[i] == NULL_KEY ? null : (String) keys[i], values[i]);
+			}
+		}
+	}
+
+	/**
+	 * Finds the slot of the key or the free slot, where it has to be inserted (linear probing).
+	 */
+	private int slot(Object key) {
+		final int mask = keys.length - 1;
+		int h = key.hashCode() * 0x9E3779B9;
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (keys[slot] != null && !keys[slot].equals(key)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		final Object[] oldKeys = keys;
+		final long[] oldValues = values;
+		final boolean[] oldVisited = visited;
+		allocate(oldKeys.length << 1);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+				visited[slot] = oldVisited[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,17 @@
+package de.danielweisser.android.plaxosync.platform;
+
+/**
+ * The counts of a sync, that the sync adapter reports to the platform in the <code>SyncStats</code> of its <code>SyncResult</code>. The
+ * fields have the names of the fields of the <code>SyncStats</code>.
+ */
+public class SyncCounters {
+	public long numInserts = 0;
+	public long numUpdates = 0;
+	public long numDeletes = 0;
+	public long numSkippedEntries = 0;
+
+	/**
+	 * The contacts, that have not been written for a temporary reason, so that the collection has to be fetched again.
+	 */
+	public long numIoExceptions = 0;
+}
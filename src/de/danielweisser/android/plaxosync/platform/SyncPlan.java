@@ -0,0 +1,125 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.content.ContentProviderOperation;
+import android.os.Parcel;
+import android.provider.ContactsContract.RawContacts;
+
+/**
+ * A sink, that writes nothing, but counts the operations, that a sync would apply. It is used for a dry run of the sync, so that the cost of a
+ * sync and the writes of every kind of data can be seen before they reach the contacts of the user.
+ *
+ * The bytes are the size of the parceled operations, which is what applyBatch transfers to the contacts provider. Pictures, that are too
+ * large for a batch, are counted separately.
+ */
+public class SyncPlan implements ContactSink {
+	private static final String[] TYPES = { "insert", "update", "delete" };
+
+	/**
+	 * The number of operations by MIME type, indexed by the type of the operation.
+	 */
+	private final TreeMap<String, int[]> operations = new TreeMap<String, int[]>();
+	private int contacts = 0;
+	private int batches = 0;
+	private int batchOperations = 0;
+	private long bytes = 0;
+	private int photos = 0;
+	private long photoBytes = 0;
+
+	public synchronized long[] apply(List<ContactOperations> contacts, boolean yieldAllowed) {
+		final long[] rawContactIds = new long[contacts.size()];
+		final ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>();
+		for (int i = 0; i < contacts.size(); i++) {
+			ContactOperations ops = contacts.get(i);
+			for (int j = 0; j < ops.size(); j++) {
+				count(ops.getType(j), ops.getMimeType(j));
+			}
+			ProviderContactStore.appendTo(ops, batch, yieldAllowed);
+			// New contacts get no id, nothing refers to it in a dry run
+			rawContactIds[i] = ops.getRawContactId();
+		}
+		final Parcel parcel = Parcel.obtain();
+		try {
+			for (ContentProviderOperation op : batch) {
+				op.writeToParcel(parcel, 0);
+			}
+			bytes += parcel.dataSize();
+		} finally {
+			parcel.recycle();
+		}
+		this.contacts += contacts.size();
+		batchOperations += batch.size();
+		batches++;
+		return rawContactIds;
+	}
+
+	public boolean isStreamed(byte[] photo) {
+		return PhotoWriter.isStreamed(photo);
+	}
+
+	public synchronized boolean writePhoto(long rawContactId, byte[] photo) {
+		photos++;
+		photoBytes += photo.length;
+		return true;
+	}
+
+	public synchronized void delete(long rawContactId) {
+		count(ContactOperations.DELETE, RawContacts.CONTENT_ITEM_TYPE);
+	}
+
+	public boolean resumeAggregation(List<Long> rawContactIds) {
+		// Nothing has been inserted
+		return true;
+	}
+
+	/**
+	 * @return The number of planned operations of the given type and MIME type
+	 */
+	public synchronized int getOperations(int type, String mimeType) {
+		int[] counts = operations.get(mimeType);
+		return counts != null ? counts[type] : 0;
+	}
+
+	/**
+	 * @return The number of batches, that would be applied
+	 */
+	public synchronized int getBatches() {
+		return batches;
+	}
+
+	/**
+	 * @return The estimated number of bytes, that would be transferred with the batches
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	private void count(int type, String mimeType) {
+		int[] counts = operations.get(mimeType);
+		if (counts == null) {
+			counts = new int[TYPES.length];
+			operations.put(mimeType, counts);
+		}
+		counts[type]++;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(contacts).append(" contacts in ").append(batches).append(" batches with ").append(batchOperations).append(" operations (")
+				.append(bytes).append(" bytes), ").append(photos).append(" streamed pictures (").append(photoBytes).append(" bytes)");
+		for (Map.Entry<String, int[]> entry : operations.entrySet()) {
+			sb.append(", ").append(entry.getKey()).append(':');
+			for (int type = 0; type < TYPES.length; type++) {
+				if (entry.getValue()[type] > 0) {
+					sb.append(' ').append(TYPES[type]).append(' ').append(entry.getValue()[type]);
+				}
+			}
+		}
+		return sb.toString();
+	}
+}
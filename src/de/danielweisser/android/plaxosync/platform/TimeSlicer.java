@@ -0,0 +1,55 @@
+package de.danielweisser.android.plaxosync.platform;
+
+/**
+ * Splits the work of a sync into time slices. The sync calls {@link #checkpoint()} between its batches. A canceled sync stops there, and
+ * after a full slice the sync pauses briefly, so that other apps get access to the contacts provider.
+ *
+ * The progress of an interrupted sync does not have to be stored separately. Every applied batch is in the provider and in the
+ * {@link ContactMirror}, and the conditional fetch is only confirmed after a complete sync. The next sync therefore fetches the contacts
+ * again and only writes the contacts, that have not been written yet.
+ */
+public class TimeSlicer {
+	/**
+	 * The duration of a slice in ms.
+	 */
+	private static final long SLICE_DURATION = 2000;
+
+	/**
+	 * The pause between two slices in ms.
+	 */
+	private static final long YIELD_DURATION = 200;
+
+	private long sliceStart = now();
+	private int slices = 1;
+
+	/**
+	 * Ends the current batch of work. Pauses, if the slice is used up.
+	 *
+	 * @throws InterruptedException
+	 *             If the sync has been canceled
+	 */
+	public void checkpoint() throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException("Sync has been canceled");
+		}
+		if (now() - sliceStart >= SLICE_DURATION) {
+			Thread.sleep(YIELD_DURATION);
+			sliceStart = now();
+			slices++;
+		}
+	}
+
+	/**
+	 * @return The monotonic time in ms
+	 */
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * @return The number of slices so far
+	 */
+	public int getSlices() {
+		return slices;
+	}
+}
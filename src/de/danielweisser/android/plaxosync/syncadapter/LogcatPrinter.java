@@ -0,0 +1,19 @@
+package de.danielweisser.android.plaxosync.syncadapter;
+
+import android.util.Log;
+import de.danielweisser.android.plaxosync.SyncLog;
+
+/**
+ * Writes the lines of the {@link SyncLog}s to the platform log.
+ */
+public class LogcatPrinter implements SyncLog.Printer {
+
+	public boolean isLoggable(String tag, int level) {
+		return Log.isLoggable(tag, level);
+	}
+
+	public void println(int level, String tag, String message, Throwable throwable) {
+		// The platform log rejects a line without message
+		Log.println(level, tag, throwable == null ? String.valueOf(message) : message + '\n' + Log.getStackTraceString(throwable));
+	}
+}
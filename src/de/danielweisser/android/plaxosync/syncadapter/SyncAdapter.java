@@ -1,9 +1,7 @@
 package de.danielweisser.android.plaxosync.syncadapter;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
@@ -11,13 +9,24 @@ import android.accounts.AuthenticatorException;
 import android.accounts.OperationCanceledException;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SyncResult;
 import android.os.Bundle;
 import android.util.Log;
 import de.danielweisser.android.plaxosync.Constants;
+import de.danielweisser.android.plaxosync.SyncLog;
+import de.danielweisser.android.plaxosync.SyncMetrics;
+import de.danielweisser.android.plaxosync.SyncTracer;
+import de.danielweisser.android.plaxosync.client.CollectionValidators;
+import de.danielweisser.android.plaxosync.client.ContactBuffer;
 import de.danielweisser.android.plaxosync.client.Contact;
+import de.danielweisser.android.plaxosync.client.FieldProjection;
+import de.danielweisser.android.plaxosync.client.HedgedRequest;
+import de.danielweisser.android.plaxosync.client.PagePrefetcher;
+import de.danielweisser.android.plaxosync.client.PhotoLoader;
 import de.danielweisser.android.plaxosync.client.PlaxoUtilities;
+import de.danielweisser.android.plaxosync.client.RetryPolicy;
 import de.danielweisser.android.plaxosync.platform.ContactManager;
 
 /**
@@ -26,11 +35,21 @@ import de.danielweisser.android.plaxosync.platform.ContactManager;
 public class SyncAdapter extends AbstractThreadedSyncAdapter {
 	private static final String TAG = "PlaxoSyncAdapter";
 
+	/**
+	 * The extra of a requested sync, that runs the sync as a dry run. The whole address book is fetched and diffed against the contacts on
+	 * the phone, but only the planned operations are logged.
+	 */
+	public static final String EXTRA_DRY_RUN = "dry_run";
+
+	/**
+	 * The user data of an account, that traces its syncs with the {@link SyncTracer}, when it is true. The trace of the last sync is written
+	 * to <code>trace_&lt;account&gt;.json</code> in the cache directory.
+	 */
+	private static final String KEY_TRACE = "sync.trace";
+
 	private final AccountManager mAccountManager;
 	private final Context mContext;
 
-	private Date mLastUpdated;
-
 	public SyncAdapter(Context context, boolean autoInitialize) {
 		super(context, autoInitialize);
 		mContext = context;
@@ -40,23 +59,80 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 	@Override
 	public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
 		Log.d(TAG, "Start the sync.");
-		List<Contact> users = new ArrayList<Contact>();
+		SyncLog.reset();
+		final boolean traced = Boolean.parseBoolean(mAccountManager.getUserData(account, KEY_TRACE));
+		if (traced) {
+			SyncTracer.start();
+		}
+		SyncTracer.begin("onPerformSync");
+		final ContactBuffer users = new ContactBuffer(mContext.getCacheDir(), ContactBuffer.loadThreshold(mAccountManager, account));
 		String authtoken = null;
+		SyncMetrics metrics = new SyncMetrics();
+		RetryPolicy retryPolicy = new RetryPolicy();
+		final boolean dryRun = extras.getBoolean(EXTRA_DRY_RUN, false);
+		final HedgedRequest hedgedRequest = new HedgedRequest();
+		final PhotoLoader photoLoader = new PhotoLoader(hedgedRequest, metrics);
+		Contact.setImageLoader(photoLoader);
 		try {
+			if (!extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false) && RetryPolicy.isDelayed(mAccountManager, account)) {
+				Log.i(TAG, "Skip the sync within the backoff of the last failed sync");
+				return;
+			}
 			// use the account manager to request the credentials
 			authtoken = mAccountManager.blockingGetAuthToken(account, Constants.AUTHTOKEN_TYPE, true /* notifyAuthFailure */);
-			users = PlaxoUtilities.fetchContacts(account.name, authtoken, mLastUpdated, this.getContext());
+			FieldProjection projection = FieldProjection.load(mAccountManager, account);
+			CollectionValidators validators = dryRun ? new CollectionValidators()
+					: CollectionValidators.load(mAccountManager, account, projection);
+			SyncProfile profile = SyncProfile.detect(mContext);
+			Log.i(TAG, "Sync profile: " + profile + (dryRun ? ", dry run" : ""));
+			ContactManager cm = new ContactManager();
+			if (!dryRun) {
+				cm.resumeAggregation(mContext, account.name);
+			}
+			if (!dryRun && cm.restoreSnapshot(mContext, account.name, validators, metrics, syncResult)) {
+				// Only the changes since the snapshot are fetched
+				validators.save(mAccountManager, account);
+			} else if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			boolean fetched = PlaxoUtilities.fetchContacts(account.name, authtoken, validators, projection,
+					PagePrefetcher.loadWindow(mAccountManager, account), users, retryPolicy, hedgedRequest, metrics, this.getContext()) != null;
 
-			if (users == null) {
+			if (!fetched && Thread.currentThread().isInterrupted()) {
+				Log.i(TAG, "Sync has been canceled while fetching the contacts");
+				return;
+			}
+			if (!fetched) {
 				syncResult.stats.numIoExceptions++;
+				if (!dryRun) {
+					retryPolicy.onSyncFailed(mAccountManager, account, syncResult);
+				}
+				return;
+			}
+			if (dryRun) {
+				// A dry run does not change the backoff, the validators or any other state of the account
+				cm.planContacts(mContext, account.name, users, projection, profile.isTextOnly(), metrics);
+				return;
+			}
+			retryPolicy.onSyncSucceeded(mAccountManager, account);
+			if (validators.isNotModified()) {
+				Log.d(TAG, "Address book is unchanged, nothing to sync");
+				if (!profile.isTextOnly() && cm.syncDeferredPhotos(mContext, account.name, metrics, syncResult) && syncResult.stats.numUpdates > 0
+						&& isClean(syncResult)) {
+					// The snapshot has to reference the new pictures
+					cm.writeSnapshot(mContext, account.name, validators);
+				}
 				return;
 			}
-			// update the last synced date.
-			mLastUpdated = new Date();
 			// update platform contacts.
 			Log.d(TAG, "Calling contactManager's sync contacts");
-			ContactManager cm = new ContactManager();
-			cm.syncContacts(mContext, account.name, users, syncResult);
+			if (cm.syncContacts(mContext, account.name, users, projection, profile.isTextOnly(), metrics, syncResult) && !syncResult.hasError()) {
+				// The next sync may only skip the collection, when every contact has been written or quarantined
+				validators.save(mAccountManager, account);
+				if (isClean(syncResult)) {
+					cm.writeSnapshot(mContext, account.name, validators);
+				}
+			}
 			// ContactManager.syncContacts(mContext, account.name, users, syncResult, l);
 		} catch (final AuthenticatorException e) {
 			syncResult.stats.numParseExceptions++;
@@ -66,6 +142,38 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 		} catch (final IOException e) {
 			Log.e(TAG, "IOException", e);
 			syncResult.stats.numIoExceptions++;
+			if (!dryRun) {
+				retryPolicy.onSyncFailed(mAccountManager, account, syncResult);
+			}
+		} finally {
+			users.close();
+			Contact.setImageLoader(null);
+			photoLoader.close();
+			hedgedRequest.shutdown();
+			SyncLog.logSummary();
+			Log.i(TAG, "Sync finished: " + metrics);
+			SyncTracer.end("onPerformSync");
+			if (traced) {
+				exportTrace(account);
+			}
+		}
+	}
+
+	/**
+	 * @return true, if every contact has been written, so that the contacts on the phone match the fetched collection
+	 */
+	private static boolean isClean(SyncResult syncResult) {
+		return !syncResult.hasError() && syncResult.stats.numSkippedEntries == 0;
+	}
+
+	private void exportTrace(Account account) {
+		SyncTracer.stop();
+		File file = new File(mContext.getCacheDir(), "trace_" + account.name + ".json");
+		try {
+			SyncTracer.export(file);
+			Log.i(TAG, "Wrote the trace to " + file);
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
 		}
 	}
 }
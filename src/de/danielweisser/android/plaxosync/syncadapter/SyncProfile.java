@@ -0,0 +1,101 @@
+package de.danielweisser.android.plaxosync.syncadapter;
+
+import java.lang.reflect.InvocationTargetException;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+/**
+ * Chooses how much a sync transfers from the current connection. On slow links, and on metered links while the device is not charging,
+ * only the text of the contacts is synchronized and the photos are deferred until the device is on an unmetered link or charging.
+ */
+public class SyncProfile {
+	private static final String TAG = "SyncProfile";
+
+	/**
+	 * The constants of later platforms, that are not available with the target platform.
+	 */
+	private static final int TYPE_ETHERNET = 9;
+	private static final int NETWORK_TYPE_IDEN = 11;
+
+	private final boolean metered;
+	private final boolean slow;
+	private final boolean charging;
+
+	private SyncProfile(boolean metered, boolean slow, boolean charging) {
+		this.metered = metered;
+		this.slow = slow;
+		this.charging = charging;
+	}
+
+	/**
+	 * Detects the profile from the active network and the battery state.
+	 */
+	public static SyncProfile detect(Context context) {
+		boolean metered = true;
+		boolean slow = false;
+		ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo network = cm != null ? cm.getActiveNetworkInfo() : null;
+		if (network != null) {
+			metered = network.getType() != ConnectivityManager.TYPE_WIFI && network.getType() != TYPE_ETHERNET;
+			if (Build.VERSION.SDK_INT >= 16) {
+				metered = isActiveNetworkMetered(cm, metered);
+			}
+			if (network.getType() == ConnectivityManager.TYPE_MOBILE) {
+				switch (network.getSubtype()) {
+				case TelephonyManager.NETWORK_TYPE_GPRS:
+				case TelephonyManager.NETWORK_TYPE_EDGE:
+				case TelephonyManager.NETWORK_TYPE_CDMA:
+				case TelephonyManager.NETWORK_TYPE_1xRTT:
+				case NETWORK_TYPE_IDEN:
+					slow = true;
+					break;
+				default:
+					break;
+				}
+			}
+		}
+
+		// The battery state is a sticky broadcast, so no receiver is needed
+		Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		boolean charging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) > 0;
+		return new SyncProfile(metered, slow, charging);
+	}
+
+	/**
+	 * Calls <code>ConnectivityManager.isActiveNetworkMetered()</code> of Android 4.1 and later.
+	 *
+	 * @return The result or the given default, if it cannot be called
+	 */
+	private static boolean isActiveNetworkMetered(ConnectivityManager cm, boolean defaultValue) {
+		try {
+			return (Boolean) ConnectivityManager.class.getMethod("isActiveNetworkMetered").invoke(cm);
+		} catch (NoSuchMethodException e) {
+			Log.w(TAG, e.getMessage(), e);
+		} catch (IllegalAccessException e) {
+			Log.w(TAG, e.getMessage(), e);
+		} catch (InvocationTargetException e) {
+			Log.w(TAG, e.getMessage(), e);
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * @return true, if the photos are deferred
+	 */
+	public boolean isTextOnly() {
+		return slow || (metered && !charging);
+	}
+
+	@Override
+	public String toString() {
+		return (isTextOnly() ? "text only" : "full") + " (metered: " + metered + ", slow: " + slow + ", charging: " + charging + ")";
+	}
+}
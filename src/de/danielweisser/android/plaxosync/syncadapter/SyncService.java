@@ -4,6 +4,8 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
 import android.util.Log;
+import de.danielweisser.android.plaxosync.MemoryGovernor;
+import de.danielweisser.android.plaxosync.SyncLog;
 
 /**
  * Service to handle Account sync. This is invoked with an intent with action
@@ -22,6 +24,7 @@ public class SyncService extends Service {
     @Override
     public void onCreate() {
     	Log.v(TAG, "onCreate");
+        SyncLog.setPrinter(new LogcatPrinter());
         synchronized (sSyncAdapterLock) {
             if (sSyncAdapter == null) {
                 sSyncAdapter = new SyncAdapter(getApplicationContext(), true);
@@ -29,6 +32,24 @@ public class SyncService extends Service {
         }
     }
 
+    /**
+     * Overrides ComponentCallbacks2.onTrimMemory(int) of Android 4.0 and
+     * later, the older platforms never call it.
+     */
+    public void onTrimMemory(int level) {
+        Log.v(TAG, "onTrimMemory " + level);
+        MemoryGovernor.onTrimMemory(level);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onLowMemory() {
+        Log.v(TAG, "onLowMemory");
+        MemoryGovernor.onLowMemory();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,132 @@
+package de.danielweisser.android.plaxosync;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * Compiles the classes of the sync, that do not depend on the platform, on their own. The core is the contact model and its parser, the
+ * helpers of the diff, the batches with the interfaces of the stores and the metrics and logs of the sync. The packages of the platform
+ * and all other classes of the app are hidden from the compiler, so a core class, that imports <code>android.*</code> or a platform class
+ * of the app, fails the test, even though the <code>android.jar</code> is on the class path of the tests. The test runs from the root of
+ * the project like the other tests.
+ */
+public class CoreCompileTest extends TestCase {
+
+	/**
+	 * The sources of the core below <code>src</code>. They only need the JDK and <code>org.json</code>.
+	 */
+	static final String[] CORE = { "de/danielweisser/android/plaxosync/MemoryGovernor.java",
+			"de/danielweisser/android/plaxosync/SyncLog.java", "de/danielweisser/android/plaxosync/SyncMetrics.java",
+			"de/danielweisser/android/plaxosync/SyncTracer.java", "de/danielweisser/android/plaxosync/client/Address.java",
+			"de/danielweisser/android/plaxosync/client/Contact.java", "de/danielweisser/android/plaxosync/client/ContactParser.java",
+			"de/danielweisser/android/plaxosync/client/CountingInputStream.java",
+			"de/danielweisser/android/plaxosync/client/LatencyTracker.java",
+			"de/danielweisser/android/plaxosync/platform/ApplyException.java",
+			"de/danielweisser/android/plaxosync/platform/BatchApplier.java",
+			"de/danielweisser/android/plaxosync/platform/BatchSizeController.java",
+			"de/danielweisser/android/plaxosync/platform/ContactDigest.java",
+			"de/danielweisser/android/plaxosync/platform/ContactFields.java",
+			"de/danielweisser/android/plaxosync/platform/ContactNormalizer.java",
+			"de/danielweisser/android/plaxosync/platform/ContactOperations.java",
+			"de/danielweisser/android/plaxosync/platform/ContactQuarantine.java",
+			"de/danielweisser/android/plaxosync/platform/ContactSink.java",
+			"de/danielweisser/android/plaxosync/platform/ContactSnapshotSource.java",
+			"de/danielweisser/android/plaxosync/platform/DeferredPhotoQueue.java",
+			"de/danielweisser/android/plaxosync/platform/MemoryMirrorStore.java",
+			"de/danielweisser/android/plaxosync/platform/MemoryQuarantine.java",
+			"de/danielweisser/android/plaxosync/platform/MirrorException.java",
+			"de/danielweisser/android/plaxosync/platform/MirrorStore.java", "de/danielweisser/android/plaxosync/platform/ParallelDiff.java",
+			"de/danielweisser/android/plaxosync/platform/PendingAggregation.java",
+			"de/danielweisser/android/plaxosync/platform/SourceIdIndex.java",
+			"de/danielweisser/android/plaxosync/platform/SyncCounters.java",
+			"de/danielweisser/android/plaxosync/platform/TimeSlicer.java" };
+
+	/**
+	 * The packages, that the core must not use.
+	 */
+	private static final String[] HIDDEN_PACKAGES = { "android", "com.android", "de.danielweisser" };
+
+	public void testCoreCompilesWithoutThePlatform() throws Exception {
+		final File src = new File("src");
+		assertTrue("Run the test from the root of the project", src.isDirectory());
+		final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertNotNull("The tests need a JDK", compiler);
+
+		final List<File> sources = new ArrayList<File>();
+		for (String path : CORE) {
+			sources.add(new File(src, path));
+		}
+		final File out = createTempDir();
+		final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+		final StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, null, null);
+		try {
+			files.setLocation(StandardLocation.CLASS_OUTPUT, Collections.singletonList(out));
+			final JavaFileManager withoutPlatform = new ForwardingJavaFileManager<JavaFileManager>(files) {
+				@Override
+				public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse)
+						throws IOException {
+					if (isHidden(packageName)) {
+						return Collections.emptyList();
+					}
+					return super.list(location, packageName, kinds, recurse);
+				}
+			};
+			final boolean compiled = compiler.getTask(null, withoutPlatform, diagnostics, Arrays.asList("-proc:none", "-implicit:none"), null,
+					files.getJavaFileObjectsFromFiles(sources)).call();
+			final StringBuilder errors = new StringBuilder();
+			for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+				if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+					errors.append('\n').append(diagnostic);
+				}
+			}
+			assertTrue("The core depends on the platform:" + errors, compiled);
+		} finally {
+			files.close();
+			delete(out);
+		}
+	}
+
+	private static boolean isHidden(String packageName) {
+		for (String hidden : HIDDEN_PACKAGES) {
+			if (packageName.equals(hidden) || packageName.startsWith(hidden + ".")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static File createTempDir() throws IOException {
+		final File dir = File.createTempFile("core", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		return dir;
+	}
+
+	private static void delete(File file) {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
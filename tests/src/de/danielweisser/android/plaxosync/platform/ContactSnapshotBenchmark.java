@@ -0,0 +1,109 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.danielweisser.android.plaxosync.client.Address;
+import de.danielweisser.android.plaxosync.client.CollectionValidators;
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * Measures the write and the read of a {@link ContactSnapshot} and its size per contact. The snapshot does not call the platform, so the
+ * benchmark runs on a desktop JVM with the compiled classes and the android.jar of the target platform on the class path:
+ *
+ * <pre>
+ * java -cp bin/classes:tests/bin:android.jar de.danielweisser.android.plaxosync.platform.ContactSnapshotBenchmark [contacts] [runs]
+ * </pre>
+ */
+public class ContactSnapshotBenchmark {
+	private static final String[] COMPANIES = { "Plaxo", "Comcast", "Acme", "Initech", "Globex", "Umbrella", "Hooli", "Stark" };
+	private static final String[] CITIES = { "Berlin", "Hamburg", "Munich", "Cologne", "Frankfurt", "Stuttgart", "Leipzig", "Dresden" };
+
+	public static void main(String[] args) throws IOException {
+		final int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		final List<Contact> contacts = createContacts(count);
+		final CollectionValidators validators = new CollectionValidators();
+		validators.setValues("\"etag\"", "Mon, 01 Jan 2024 00:00:00 GMT", "digest", "id,name");
+
+		final File file = File.createTempFile("snapshot", ".bin");
+		try {
+			final ContactSnapshot snapshot = new ContactSnapshot(file, "secret");
+			final long[] writeTimes = new long[runs];
+			final long[] readTimes = new long[runs];
+			for (int run = 0; run < runs; run++) {
+				long start = System.nanoTime();
+				snapshot.write(contacts, validators);
+				writeTimes[run] = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				List<Contact> restored = snapshot.read(new CollectionValidators());
+				readTimes[run] = System.nanoTime() - start;
+				verify(contacts, restored);
+			}
+			System.out.println(count + " contacts, " + file.length() + " bytes (" + file.length() / count + " bytes per contact)");
+			System.out.println("write: median " + median(writeTimes) / 1000000 + "ms, read: median " + median(readTimes) / 1000000 + "ms over "
+					+ runs + " runs");
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Creates contacts, whose fields repeat like in a real address book, so that the string table is used.
+	 */
+	private static List<Contact> createContacts(int count) {
+		final ArrayList<Contact> contacts = new ArrayList<Contact>(count);
+		for (int i = 0; i < count; i++) {
+			Contact c = new Contact();
+			c.setID(Integer.toString(100000 + i));
+			c.setFirstName("First" + (i % 500));
+			c.setLastName("Last" + i);
+			c.setWorkEmail("user" + i + "@example.com");
+			c.setCellHomePhone("+49 170 " + (1000000 + i));
+			c.setCompany(COMPANIES[i % COMPANIES.length]);
+			c.setTitle(i % 3 == 0 ? "Engineer" : null);
+			if (i % 4 == 0) {
+				c.setImageDigest(Integer.toHexString(i * 31) + "0123456789abcdef0123456789abcdef");
+				c.setImageURL("http://www.plaxo.com/photos/" + i + ".jpg");
+			}
+			if (i % 2 == 0) {
+				Address address = new Address();
+				address.setStreet(i + " Main Street");
+				address.setCity(CITIES[i % CITIES.length]);
+				address.setZip(Integer.toString(10000 + i % 90000));
+				address.setCountry("Germany");
+				c.setHomeAddress(address);
+			}
+			contacts.add(c);
+		}
+		return contacts;
+	}
+
+	private static void verify(List<Contact> expected, List<Contact> actual) {
+		if (expected.size() != actual.size()) {
+			throw new IllegalStateException("Restored " + actual.size() + " of " + expected.size() + " contacts");
+		}
+		for (int i = 0; i < expected.size(); i++) {
+			Contact e = expected.get(i);
+			Contact a = actual.get(i);
+			if (!Arrays.equals(ContactFields.get(e), ContactFields.get(a)) || !equals(e.getImageURL(), a.getImageURL())
+					|| !equals(e.getImageDigest(), a.getImageDigest()) || !equals(e.getHomeAddress(), a.getHomeAddress())) {
+				throw new IllegalStateException("Contact " + e.getID() + " differs after the restore");
+			}
+		}
+	}
+
+	private static boolean equals(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static long median(long[] times) {
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+}
@@ -0,0 +1,211 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Event;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import de.danielweisser.android.plaxosync.SyncMetrics;
+import de.danielweisser.android.plaxosync.client.Address;
+import de.danielweisser.android.plaxosync.client.Contact;
+import de.danielweisser.android.plaxosync.client.FieldProjection;
+
+/**
+ * Runs the {@link ContactSynchronizer} over a large address book against the memory stores. The synchronizer and the memory stores only use
+ * the constants of the contacts contract, so the test passes on a desktop JVM without <code>android.jar</code> on the class path at run
+ * time. The pictures are generated from their URLs, every tenth picture is large enough to be streamed.
+ */
+public class ContactSynchronizerTest extends TestCase {
+	private static final String ACCOUNT = "test@plaxo.com";
+	private static final int CONTACTS = 5000;
+
+	private MemoryContactStore store;
+	private MemoryMirrorStore mirror;
+	private ContactSynchronizer synchronizer;
+	private Thread syncThread;
+	private volatile int diffLoads;
+
+	@Override
+	protected void setUp() throws Exception {
+		store = new MemoryContactStore(ACCOUNT);
+		mirror = new MemoryMirrorStore();
+		synchronizer = new ContactSynchronizer(store, store, mirror, new MemoryQuarantine());
+		syncThread = Thread.currentThread();
+		Contact.setImageLoader(new Contact.ImageLoader() {
+			public byte[] load(String url) {
+				if (Thread.currentThread() != syncThread) {
+					diffLoads++;
+				}
+				return createPicture(url);
+			}
+		});
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		Contact.setImageLoader(null);
+	}
+
+	public void testImportAndResync() throws Exception {
+		SyncCounters counters = sync(createAddressBook(0));
+		assertEquals(CONTACTS, counters.numInserts);
+		assertEquals(CONTACTS, store.size());
+		assertEquals(CONTACTS, mirror.size());
+		assertTrue(mirror.getPendingAggregation().load(ACCOUNT).isEmpty());
+		assertStored(createAddressBook(0));
+
+		// Nothing has changed, so nothing is written
+		final int operations = store.getOperations();
+		counters = sync(createAddressBook(0));
+		assertEquals(0, counters.numInserts);
+		assertEquals(0, counters.numUpdates);
+		assertEquals(0, counters.numDeletes);
+		assertEquals(operations, store.getOperations());
+		assertStored(createAddressBook(0));
+	}
+
+	public void testEditedContacts() throws Exception {
+		sync(createAddressBook(0));
+		final SourceIdIndex index = store.getRawContacts(ACCOUNT, new HashSet<Long>());
+
+		// Every third contact is edited on the phone, so that it is read from the store instead of the mirror
+		for (int i = 0; i < CONTACTS; i += 3) {
+			store.setDirty(index.get(createId(i)));
+		}
+		final List<Contact> contacts = createAddressBook(1);
+		SyncCounters counters = sync(contacts);
+		assertEquals(0, counters.numInserts);
+		assertTrue(counters.numUpdates > 0);
+		assertStored(createAddressBook(1));
+
+		final HashSet<Long> dirty = new HashSet<Long>();
+		store.getRawContacts(ACCOUNT, dirty);
+		assertTrue(dirty.isEmpty());
+		for (int i = 0; i < CONTACTS; i++) {
+			final long rawContactId = index.get(createId(i));
+			assertEquals(1, store.getRows(rawContactId, StructuredName.CONTENT_ITEM_TYPE));
+			assertTrue(store.getRows(rawContactId, Email.CONTENT_ITEM_TYPE) <= 2);
+			assertTrue(store.getRows(rawContactId, Phone.CONTENT_ITEM_TYPE) <= 6);
+			assertTrue(store.getRows(rawContactId, Photo.CONTENT_ITEM_TYPE) <= 1);
+			assertTrue(store.getRows(rawContactId, Event.CONTENT_ITEM_TYPE) <= 1);
+		}
+
+		// The edits are written, so the next sync writes nothing
+		final int operations = store.getOperations();
+		sync(createAddressBook(1));
+		assertEquals(operations, store.getOperations());
+	}
+
+	public void testDeletedContacts() throws Exception {
+		sync(createAddressBook(0));
+		final List<Contact> contacts = createAddressBook(0);
+		final List<Contact> remaining = new ArrayList<Contact>();
+		for (int i = 0; i < contacts.size(); i++) {
+			if (i % 4 != 0) {
+				remaining.add(contacts.get(i));
+			}
+		}
+
+		SyncCounters counters = sync(remaining);
+		assertEquals(CONTACTS / 4, counters.numDeletes);
+		assertEquals(remaining.size(), store.size());
+		assertEquals(remaining.size(), mirror.size());
+		assertStored(remaining);
+	}
+
+	private SyncCounters sync(List<Contact> contacts) {
+		final SyncCounters counters = new SyncCounters();
+		assertTrue(synchronizer.syncContacts(ACCOUNT, contacts, new FieldProjection(), false, new SyncMetrics(), counters));
+		// The pictures are loaded before the diff, the threads of the diff do not download
+		assertEquals(0, diffLoads);
+		return counters;
+	}
+
+	/**
+	 * Checks the contacts, as they are read back from the rows of the store.
+	 */
+	private void assertStored(List<Contact> contacts) {
+		final SourceIdIndex index = store.getRawContacts(ACCOUNT, new HashSet<Long>());
+		assertEquals(contacts.size(), index.size());
+		for (Contact expected : contacts) {
+			final long rawContactId = index.get(expected.getID());
+			assertTrue(expected.getID(), rawContactId != SourceIdIndex.NOT_FOUND);
+			final Contact stored = store.get(rawContactId);
+			ContactNormalizer.normalize(expected);
+			ContactNormalizer.normalize(stored);
+			assertEquals(expected.getID(), Arrays.asList(ContactFields.get(expected)), Arrays.asList(ContactFields.get(stored)));
+			assertEquals(expected.getID(), toString(expected.getWorkAddress()), toString(stored.getWorkAddress()));
+			assertEquals(expected.getID(), toString(expected.getHomeAddress()), toString(stored.getHomeAddress()));
+			assertTrue(expected.getID(), Arrays.equals(createPicture(expected.getImageURL()), stored.getImage()));
+		}
+	}
+
+	/**
+	 * Creates the address book in a version. Every version changes other fields of other contacts.
+	 */
+	private static List<Contact> createAddressBook(int version) {
+		final List<Contact> contacts = new ArrayList<Contact>(CONTACTS);
+		for (int i = 0; i < CONTACTS; i++) {
+			final boolean edited = version > 0 && i % 5 == 0;
+			final Contact contact = new Contact();
+			contact.setID(createId(i));
+			contact.setFirstName("First" + i);
+			contact.setLastName("Last" + i);
+			contact.setWorkEmail(edited ? "first" + i + "@lab.example.com" : "first" + i + "@example.com");
+			if (i % 2 == 0 && !(edited && i % 10 == 0)) {
+				contact.setHomeEmail("first" + i + "@home.example.com");
+			}
+			contact.setWorkPhone("+49 711 " + i);
+			if (i % 3 == 0) {
+				contact.setCellHomePhone(edited ? "+49 170 " + (i + 1) : "+49 170 " + i);
+			}
+			contact.setHomeURL("http://example.com/" + i);
+			contact.setCompany("Company " + (i % 50));
+			contact.setTitle(i % 7 == 0 ? "" : "Title " + i);
+			if (i % 6 != 5 && !(edited && i % 15 == 0)) {
+				contact.setDateOfBirth(edited ? "1970-02-" + (10 + i % 18) : "1970-01-" + (10 + i % 18));
+			}
+			final Address address = new Address();
+			address.setStreet((edited ? "New Street " : "Street ") + i);
+			address.setCity("Stuttgart");
+			address.setZip("70173");
+			address.setCountry("Germany");
+			contact.setWorkAddress(address);
+			if (i % 4 != 1) {
+				contact.setImageURL("http://photos.example.com/" + i + (edited && i % 20 == 0 ? "/2" : "/1"));
+			}
+			contacts.add(contact);
+		}
+		return contacts;
+	}
+
+	private static String createId(int i) {
+		return Integer.toString(100000 + i);
+	}
+
+	/**
+	 * @return The picture of the URL, every tenth picture is streamed
+	 */
+	private static byte[] createPicture(String url) {
+		if (url == null || url.length() == 0) {
+			return null;
+		}
+		final byte[] name = url.getBytes();
+		final byte[] picture = new byte[(url.hashCode() & 0x7fffffff) % 10 == 0 ? PhotoWriter.MAX_INLINE_PHOTO_SIZE + name.length : name.length];
+		System.arraycopy(name, 0, picture, 0, name.length);
+		return picture;
+	}
+
+	private static String toString(Address address) {
+		if (address == null) {
+			return "";
+		}
+		return address.getStreet() + "|" + address.getCity() + "|" + address.getZip() + "|" + address.getState() + "|" + address.getCountry();
+	}
+}
@@ -0,0 +1,196 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import junit.framework.TestCase;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Event;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.RawContacts;
+import de.danielweisser.android.plaxosync.client.Contact;
+
+/**
+ * Tests the {@link MemoryContactStore} on a desktop JVM. The store applies the recorded operations to its rows, the contact of the
+ * operations is not read.
+ */
+public class MemoryContactStoreTest extends TestCase {
+	private static final String ACCOUNT = "test@plaxo.com";
+	private static final byte[] PICTURE = new byte[] { 1, 2, 3 };
+
+	private MemoryContactStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		store = new MemoryContactStore(ACCOUNT);
+	}
+
+	public void testOperationsAreApplied() throws Exception {
+		Contact contact = createContact("1", "Ada");
+		long rawContactId = insertWithPicture(contact);
+
+		// The sync drops the picture and reuses the contact after it has been applied
+		contact.setImage(null);
+		contact.setFirstName("Grace");
+
+		Contact stored = store.get(rawContactId);
+		assertEquals("Ada", stored.getFirstName());
+		assertEquals("Lovelace", stored.getLastName());
+		assertEquals("digest", stored.getImageDigest());
+		assertTrue(Arrays.equals(PICTURE, stored.getImage()));
+		assertTrue(Arrays.equals(PICTURE, store.getPhoto(rawContactId)));
+	}
+
+	public void testOperationsOfTheContactAreIgnored() throws Exception {
+		long rawContactId = insertWithPicture(createContact("1", "Ada"));
+
+		// The contact of the operations differs, but nothing is written
+		store.apply(Arrays.asList(new ContactOperations(createContact("1", "Grace"), rawContactId)), false);
+
+		assertEquals("Ada", store.get(rawContactId).getFirstName());
+	}
+
+	public void testUpdateKeepsThePicture() throws Exception {
+		long rawContactId = insertWithPicture(createContact("1", "Ada"));
+
+		ContactOperations ops = new ContactOperations(createContact("1", "Ada"), rawContactId);
+		ops.update(StructuredName.CONTENT_ITEM_TYPE, ContactOperations.ANY_TYPE).put(StructuredName.GIVEN_NAME, "Grace");
+		store.apply(Arrays.asList(ops), false);
+
+		Contact stored = store.get(rawContactId);
+		assertEquals("Grace", stored.getFirstName());
+		assertEquals("Lovelace", stored.getLastName());
+		assertTrue(Arrays.equals(PICTURE, stored.getImage()));
+		assertEquals(1, store.getRows(rawContactId, StructuredName.CONTENT_ITEM_TYPE));
+	}
+
+	public void testUpdateAndDeleteMatchTheType() throws Exception {
+		ContactOperations ops = new ContactOperations(createContact("1", "Ada"), -1);
+		ops.insert(ContactOperations.RAW_CONTACT).put(RawContacts.SOURCE_ID, "1");
+		ops.insert(Email.CONTENT_ITEM_TYPE).put(Email.DATA, "ada@home").put(Email.TYPE, Email.TYPE_HOME);
+		ops.insert(Email.CONTENT_ITEM_TYPE).put(Email.DATA, "ada@work").put(Email.TYPE, Email.TYPE_WORK);
+		long rawContactId = store.apply(Arrays.asList(ops), false)[0];
+
+		ops = new ContactOperations(createContact("1", "Ada"), rawContactId);
+		ops.update(Email.CONTENT_ITEM_TYPE, Email.TYPE_WORK).put(Email.DATA, "ada@lab");
+		store.apply(Arrays.asList(ops), false);
+		assertEquals("ada@home", store.get(rawContactId).getHomeEmail());
+		assertEquals("ada@lab", store.get(rawContactId).getWorkEmail());
+
+		ops = new ContactOperations(createContact("1", "Ada"), rawContactId);
+		ops.delete(Email.CONTENT_ITEM_TYPE, Email.TYPE_HOME);
+		store.apply(Arrays.asList(ops), false);
+		assertEquals(1, store.getRows(rawContactId, Email.CONTENT_ITEM_TYPE));
+		assertEquals("ada@lab", store.get(rawContactId).getWorkEmail());
+	}
+
+	public void testBirthdayIsReadFromTheEvents() throws Exception {
+		ContactOperations ops = new ContactOperations(createContact("1", "Ada"), -1);
+		ops.insert(ContactOperations.RAW_CONTACT).put(RawContacts.SOURCE_ID, "1");
+		ops.insert(Event.CONTENT_ITEM_TYPE).put(Event.START_DATE, "1990-05-01").put(Event.TYPE, Event.TYPE_ANNIVERSARY);
+		ops.insert(Event.CONTENT_ITEM_TYPE).put(Event.START_DATE, "1815-12-10").put(Event.TYPE, Event.TYPE_BIRTHDAY);
+		long rawContactId = store.apply(Arrays.asList(ops), false)[0];
+		assertEquals("1815-12-10", store.get(rawContactId).getDateOfBirth());
+
+		// The sync only changes the birthday
+		ops = new ContactOperations(createContact("1", "Ada"), rawContactId);
+		ops.update(Event.CONTENT_ITEM_TYPE, Event.TYPE_BIRTHDAY).put(Event.START_DATE, "1815-12-11");
+		store.apply(Arrays.asList(ops), false);
+		assertEquals("1815-12-11", store.getContactData(Arrays.asList(rawContactId), new TimeSlicer()).get(rawContactId).getDateOfBirth());
+
+		ops = new ContactOperations(createContact("1", "Ada"), rawContactId);
+		ops.delete(Event.CONTENT_ITEM_TYPE, Event.TYPE_BIRTHDAY);
+		store.apply(Arrays.asList(ops), false);
+		assertEquals("", store.get(rawContactId).getDateOfBirth());
+		assertEquals(1, store.getRows(rawContactId, Event.CONTENT_ITEM_TYPE));
+	}
+
+	public void testDeletedPicture() throws Exception {
+		long rawContactId = insertWithPicture(createContact("1", "Ada"));
+
+		ContactOperations ops = new ContactOperations(createContact("1", "Ada"), rawContactId);
+		ops.delete(Photo.CONTENT_ITEM_TYPE, ContactOperations.ANY_TYPE);
+		store.apply(Arrays.asList(ops), false);
+
+		assertNull(store.get(rawContactId).getImage());
+		assertNull(store.get(rawContactId).getImageDigest());
+		assertEquals("Ada", store.get(rawContactId).getFirstName());
+	}
+
+	public void testStreamedPicture() throws Exception {
+		long rawContactId = insertWithPicture(createContact("1", "Ada"));
+		byte[] large = new byte[PhotoWriter.MAX_INLINE_PHOTO_SIZE + 1];
+		assertTrue(store.isStreamed(large));
+		assertFalse(store.isStreamed(PICTURE));
+
+		assertTrue(store.writePhoto(rawContactId, large));
+		assertTrue(Arrays.equals(large, store.getPhoto(rawContactId)));
+		assertEquals(ContactDigest.digest(large), store.get(rawContactId).getImageDigest());
+		assertEquals(1, store.getRows(rawContactId, Photo.CONTENT_ITEM_TYPE));
+		assertFalse(store.writePhoto(rawContactId + 1, large));
+	}
+
+	public void testContactDataReadsTheDigest() throws Exception {
+		long rawContactId = insertWithPicture(createContact("1", "Ada"));
+
+		HashMap<Long, Contact> data = store.getContactData(Arrays.asList(rawContactId, rawContactId + 1), new TimeSlicer());
+		assertEquals(1, data.size());
+		assertEquals("digest", data.get(rawContactId).getImageDigest());
+		// A picture with a digest is compared by its digest, so it is not read
+		assertNull(data.get(rawContactId).getImage());
+	}
+
+	public void testDeletedRawContactIsNotChanged() throws Exception {
+		long rawContactId = insertWithPicture(createContact("1", "Ada"));
+		store.delete(rawContactId);
+
+		ContactOperations ops = new ContactOperations(createContact("1", "Ada"), rawContactId);
+		ops.insert(Email.CONTENT_ITEM_TYPE).put(Email.DATA, "ada@home").put(Email.TYPE, Email.TYPE_HOME);
+		store.apply(Arrays.asList(ops), false);
+
+		assertNull(store.get(rawContactId));
+		assertEquals(0, store.size());
+	}
+
+	public void testRawContactsAndDirtyContacts() throws Exception {
+		long ada = insertWithPicture(createContact("1", "Ada"));
+		long grace = insertWithPicture(createContact("2", "Grace"));
+		long alan = insertWithPicture(createContact("3", "Alan"));
+		store.setDirty(grace);
+		store.setDirty(alan);
+		store.delete(ada);
+
+		// The sync clears the dirty flag with its update
+		ContactOperations ops = new ContactOperations(createContact("3", "Alan"), alan);
+		ops.update(ContactOperations.RAW_CONTACT, ContactOperations.ANY_TYPE).put(RawContacts.DIRTY, 0);
+		store.apply(Arrays.asList(ops), false);
+
+		HashSet<Long> dirty = new HashSet<Long>();
+		SourceIdIndex index = store.getRawContacts(ACCOUNT, dirty);
+		assertEquals(2, index.size());
+		assertEquals(grace, index.get("2"));
+		assertEquals(SourceIdIndex.NOT_FOUND, index.get("1"));
+		assertEquals(new HashSet<Long>(Arrays.asList(grace)), dirty);
+		assertTrue(store.getRawContacts("other@plaxo.com", dirty).isEmpty());
+	}
+
+	private long insertWithPicture(Contact contact) throws Exception {
+		contact.setImage(PICTURE);
+		ContactOperations ops = new ContactOperations(contact, -1);
+		ops.insert(ContactOperations.RAW_CONTACT).put(RawContacts.SOURCE_ID, contact.getID());
+		ops.insert(StructuredName.CONTENT_ITEM_TYPE).put(StructuredName.GIVEN_NAME, contact.getFirstName()).put(StructuredName.FAMILY_NAME,
+				contact.getLastName());
+		ops.insert(Photo.CONTENT_ITEM_TYPE).put(Photo.PHOTO, PICTURE).put(PhotoWriter.PHOTO_DIGEST, "digest");
+		return store.apply(Arrays.asList(ops), false)[0];
+	}
+
+	private static Contact createContact(String id, String firstName) {
+		Contact contact = new Contact();
+		contact.setID(id);
+		contact.setFirstName(firstName);
+		contact.setLastName("Lovelace");
+		return contact;
+	}
+}
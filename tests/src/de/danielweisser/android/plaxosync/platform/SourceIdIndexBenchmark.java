@@ -0,0 +1,141 @@
+package de.danielweisser.android.plaxosync.platform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compares the {@link SourceIdIndex} with the <code>HashMap&lt;String, Long&gt;</code>, that it replaced, by the retained heap and by the
+ * time of a sync pass: every raw contact is looked up once and the unfound ones are the deleted contacts. The map needs
+ * <code>containsKey</code>, <code>get</code> and <code>remove</code> per contact, the index a single <code>visit</code>. The index does not
+ * call the platform, so the benchmark runs on a desktop JVM with the compiled classes on the class path:
+ *
+ * <pre>
+ * java -cp bin/classes:tests/bin de.danielweisser.android.plaxosync.platform.SourceIdIndexBenchmark [entries] [runs]
+ * </pre>
+ *
+ * The source ids are shared by both structures and not counted.
+ */
+public class SourceIdIndexBenchmark {
+
+	/**
+	 * Every tenth contact has been deleted on Plaxo and is left unvisited.
+	 */
+	private static final int DELETED_EVERY = 10;
+
+	private static Object retained;
+
+	public static void main(String[] args) {
+		final int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		final String[] sourceIds = new String[count];
+		final List<String> remoteIds = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			sourceIds[i] = Integer.toString(1000000 + i * 7);
+			if (i % DELETED_EVERY != 0) {
+				remoteIds.add(sourceIds[i]);
+			}
+		}
+		verify(sourceIds, remoteIds);
+
+		long before = usedMemory();
+		retained = createIndex(sourceIds);
+		final long indexBytes = usedMemory() - before;
+		retained = null;
+		before = usedMemory();
+		retained = createMap(sourceIds);
+		final long mapBytes = usedMemory() - before;
+		retained = null;
+
+		final long[] indexTimes = new long[runs];
+		final long[] mapTimes = new long[runs];
+		int deleted = 0;
+		for (int run = 0; run < runs; run++) {
+			long start = System.nanoTime();
+			deleted += passIndex(createIndex(sourceIds), remoteIds);
+			indexTimes[run] = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			deleted -= passMap(createMap(sourceIds), remoteIds);
+			mapTimes[run] = System.nanoTime() - start;
+		}
+		if (deleted != 0) {
+			throw new IllegalStateException("The index and the map found different deleted contacts");
+		}
+
+		System.out.println(count + " entries");
+		System.out.println("SourceIdIndex: " + indexBytes / 1024 + " KB (" + indexBytes / count + " bytes per entry), build and pass: median "
+				+ median(indexTimes) / 1000 + "us over " + runs + " runs");
+		System.out.println("HashMap<String, Long>: " + mapBytes / 1024 + " KB (" + mapBytes / count + " bytes per entry), build and pass: median "
+				+ median(mapTimes) / 1000 + "us over " + runs + " runs");
+	}
+
+	private static SourceIdIndex createIndex(String[] sourceIds) {
+		final SourceIdIndex index = new SourceIdIndex(sourceIds.length);
+		for (int i = 0; i < sourceIds.length; i++) {
+			index.put(sourceIds[i], i);
+		}
+		return index;
+	}
+
+	private static HashMap<String, Long> createMap(String[] sourceIds) {
+		final HashMap<String, Long> map = new HashMap<String, Long>();
+		for (int i = 0; i < sourceIds.length; i++) {
+			map.put(sourceIds[i], (long) i);
+		}
+		return map;
+	}
+
+	private static int passIndex(SourceIdIndex index, List<String> remoteIds) {
+		for (String id : remoteIds) {
+			index.visit(id);
+		}
+		final int[] deleted = new int[1];
+		index.forEachUnvisited(new SourceIdIndex.Visitor() {
+			public void visit(String sourceId, long rawContactId) {
+				deleted[0]++;
+			}
+		});
+		return deleted[0];
+	}
+
+	private static int passMap(HashMap<String, Long> map, List<String> remoteIds) {
+		for (String id : remoteIds) {
+			if (map.containsKey(id)) {
+				map.get(id);
+				map.remove(id);
+			}
+		}
+		return map.size();
+	}
+
+	/**
+	 * Checks, that a raw contact without source id does not collide with an empty source id.
+	 */
+	private static void verify(String[] sourceIds, List<String> remoteIds) {
+		final SourceIdIndex index = createIndex(sourceIds);
+		index.put(null, -2);
+		index.put("", -3);
+		if (index.get(null) != -2 || index.get("") != -3 || index.size() != sourceIds.length + 2) {
+			throw new IllegalStateException("The empty source id collides with the missing source id");
+		}
+		if (passIndex(index, remoteIds) != sourceIds.length - remoteIds.size() + 2) {
+			throw new IllegalStateException("Wrong number of unvisited entries");
+		}
+	}
+
+	private static long usedMemory() {
+		final Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long median(long[] times) {
+		long[] sorted = times.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+}